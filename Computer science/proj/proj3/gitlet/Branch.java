@@ -17,6 +17,10 @@ public class Branch implements Serializable {
      * The branch name.
      */
     private String name;
+    /**
+     * Whether the head moved since the branch was last saved.
+     */
+    private transient boolean changed = true;
 
     /**
      * Creates a branch.
@@ -47,5 +51,20 @@ public class Branch implements Serializable {
      */
     public void setHead(Commit commit) {
         this.head = commit;
+        this.changed = true;
+    }
+
+    /**
+     * @return whether the branch needs to be saved.
+     */
+    public boolean changed() {
+        return changed;
+    }
+
+    /**
+     * Marks the branch as persisted.
+     */
+    public void markSaved() {
+        this.changed = false;
     }
 }
@@ -0,0 +1,274 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A Bloom filter for each commit of the commit graph, of the paths it
+ * changes from its first parent, so a log of a path reads only the
+ * commits that may change it. A changed file adds its path and those of
+ * the directories above it, so directories are looked up as well.
+ *
+ * The file holds MAGIC, VERSION, the number of commit-graph records it
+ * covers and the hash of the last one, then for each record the length
+ * of its filter and the filter. An empty filter matches every path: it
+ * is that of a commit without parents, or changing more than MAX_PATHS
+ * paths. Records appended to the graph since the file was written are
+ * added the next time it is updated, and if the graph no longer starts
+ * as recorded, the file is rebuilt.
+ *
+ * @author Charlie Zhou
+ */
+public class ChangedPaths {
+    /**
+     * The leading int of the file.
+     */
+    private static final int MAGIC = 0x47435046;
+    /**
+     * The format version.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The raw hash size.
+     */
+    private static final int HASH = Utils.UID_LENGTH / 2;
+    /**
+     * The header size: magic, version, covered records and the last
+     * covered hash.
+     */
+    private static final int HEADER = 12 + HASH;
+    /**
+     * The filter bits per path.
+     */
+    private static final int BITS_PER_PATH = 10;
+    /**
+     * The bits set for each path.
+     */
+    private static final int PROBES = 7;
+    /**
+     * The most paths a filter holds; commits changing more match every
+     * path.
+     */
+    private static final int MAX_PATHS = 512;
+
+    /**
+     * The file content.
+     */
+    private final byte[] content;
+    /**
+     * The offset of each record's filter in the content.
+     */
+    private final int[] starts;
+    /**
+     * The length of each record's filter.
+     */
+    private final int[] lengths;
+    /**
+     * The end of the records in the content.
+     */
+    private final int end;
+
+    /**
+     * Creates the filters.
+     * @param content0 the file content.
+     * @param starts0 the offsets of the filters.
+     * @param lengths0 the lengths of the filters.
+     * @param end0 the end of the records.
+     */
+    private ChangedPaths(byte[] content0, int[] starts0, int[] lengths0,
+                         int end0) {
+        this.content = content0;
+        this.starts = starts0;
+        this.lengths = lengths0;
+        this.end = end0;
+    }
+
+    /**
+     * Reads the filters, adding those of the commit-graph records not
+     * covered yet and saving them if there are any.
+     * @param file the file.
+     * @param graphFile the commit-graph file.
+     * @param changes gives the paths a commit changes from its first
+     *                parent, separated by slashes, or null for all.
+     * @return the filters.
+     */
+    public static ChangedPaths update(Path file, Path graphFile,
+                                      Function<String, Collection<String>>
+                                              changes) {
+        ChangedPaths filters = read(file);
+        int covered = filters.covered();
+        List<String> tail = CommitGraph.readHashes(graphFile,
+                Math.max(covered - 1, 0));
+        if (covered > 0 && (tail.isEmpty()
+                || !tail.remove(0).equals(filters.lastHash()))) {
+            filters = read(null);
+            tail = CommitGraph.readHashes(graphFile, 0);
+        }
+        if (tail.isEmpty()) {
+            return filters;
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        records.write(filters.content, HEADER, filters.end - HEADER);
+        for (String hash : tail) {
+            byte[] filter = filter(changes.apply(hash));
+            IO.writeVarint(records, filter.length);
+            records.writeBytes(filter);
+        }
+        try {
+            Path temp = Files.createTempFile(file.getParent(), ".tmp-", "");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(filters.covered() + tail.size());
+                out.write(Utils.hexToBytes(tail.get(tail.size() - 1)));
+                records.writeTo(out);
+            }
+            IO.move(temp, file);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return read(file);
+    }
+
+    /**
+     * @return the number of commit-graph records covered.
+     */
+    public int covered() {
+        return starts.length;
+    }
+
+    /**
+     * @param id the commit's graph ID.
+     * @param path the path, separated by slashes.
+     * @return false if the commit surely does not change the path, true
+     * if it may.
+     */
+    public boolean mayChange(int id, String path) {
+        if (id < 0 || id >= covered() || path.isEmpty()) {
+            return true;
+        }
+        int start = starts[id];
+        int bits = lengths[id] * Byte.SIZE;
+        if (bits == 0) {
+            return true;
+        }
+        long[] hashes = hashes(path);
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (int) Long.remainderUnsigned(
+                    hashes[0] + i * hashes[1], bits);
+            if ((content[start + bit / Byte.SIZE]
+                    & (1 << (bit % Byte.SIZE))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the hash of the last covered record.
+     */
+    private String lastHash() {
+        byte[] hash = new byte[HASH];
+        System.arraycopy(content, 12, hash, 0, HASH);
+        return Utils.bytesToHex(hash);
+    }
+
+    /**
+     * Reads the filters from a file.
+     * @param file the file, or null.
+     * @return the filters, none if the file is null, missing or
+     * unreadable.
+     */
+    private static ChangedPaths read(Path file) {
+        byte[] content = new byte[0];
+        if (file != null && Files.exists(file)) {
+            try {
+                content = Files.readAllBytes(file);
+            } catch (IOException e) {
+                throw new GitletException(e);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        ChangedPaths none = new ChangedPaths(new byte[HEADER], new int[0],
+                new int[0], HEADER);
+        if (content.length < HEADER || buffer.getInt() != MAGIC
+                || buffer.getInt() != VERSION) {
+            return none;
+        }
+        int count = buffer.getInt();
+        if (count < 0 || count > content.length - HEADER) {
+            return none;
+        }
+        int[] starts = new int[count];
+        int[] lengths = new int[count];
+        buffer.position(HEADER);
+        for (int id = 0; id < count; id++) {
+            long length = buffer.hasRemaining()
+                    ? IO.readVarint(buffer) : Long.MAX_VALUE;
+            if (length > buffer.remaining()) {
+                return none;
+            }
+            starts[id] = buffer.position();
+            lengths[id] = (int) length;
+            buffer.position(buffer.position() + (int) length);
+        }
+        return new ChangedPaths(content, starts, lengths, buffer.position());
+    }
+
+    /**
+     * @param paths the changed paths, or null for all.
+     * @return their filter, empty to match every path.
+     */
+    private static byte[] filter(Collection<String> paths) {
+        if (paths == null || paths.size() > MAX_PATHS) {
+            return new byte[0];
+        }
+        int bytes = Math.max(8, (paths.size() * BITS_PER_PATH + 7) / 8);
+        byte[] filter = new byte[bytes];
+        for (String path : paths) {
+            long[] hashes = hashes(path);
+            for (int i = 0; i < PROBES; i++) {
+                int bit = (int) Long.remainderUnsigned(
+                        hashes[0] + i * hashes[1], bytes * Byte.SIZE);
+                filter[bit / Byte.SIZE] |= 1 << (bit % Byte.SIZE);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Hashes a path twice, FNV-1a mixed as in SplitMix64, for double
+     * hashing.
+     * @param path the path.
+     * @return the two hashes, the second odd.
+     */
+    private static long[] hashes(String path) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        long first = mix(hash);
+        return new long[] {first, mix(first ^ 0x9e3779b97f4a7c15L) | 1};
+    }
+
+    /**
+     * @param z a value.
+     * @return the value's bits mixed.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,142 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream into chunks at points chosen by its content, in the
+ * manner of FastCDC, so that an insertion only changes the chunks around
+ * it and the rest are found again in the new version. A gear hash rolls
+ * over the last 64 bytes and a chunk ends where its top bits are zero.
+ * Cuts before the average size need more zero bits than cuts after it,
+ * which keeps chunk sizes close to the average.
+ *
+ * @author Charlie Zhou
+ */
+public class Chunker {
+    /**
+     * The smallest chunk, but for the last.
+     */
+    static final int MIN_SIZE = 4 << 10;
+    /**
+     * The average chunk size, a power of two.
+     */
+    static final int AVG_SIZE = 16 << 10;
+    /**
+     * The largest chunk.
+     */
+    static final int MAX_SIZE = 64 << 10;
+    /**
+     * The bits a cut before the average size needs zero.
+     */
+    private static final long MASK_SMALL = -1L << (Long.SIZE
+            - Integer.numberOfTrailingZeros(AVG_SIZE) - 2);
+    /**
+     * The bits a cut after the average size needs zero.
+     */
+    private static final long MASK_LARGE = -1L << (Long.SIZE
+            - Integer.numberOfTrailingZeros(AVG_SIZE) + 2);
+    /**
+     * A random value for each byte, fixed so that the same content is
+     * always cut the same way.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x676974_6c6574L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * The stream.
+     */
+    private final InputStream in;
+    /**
+     * The bytes read and not yet returned, from position start.
+     */
+    private final byte[] buffer = new byte[2 * MAX_SIZE];
+    /**
+     * The position of the next chunk in the buffer.
+     */
+    private int start;
+    /**
+     * The end of the bytes read in the buffer.
+     */
+    private int end;
+    /**
+     * Whether the stream is exhausted.
+     */
+    private boolean eof;
+
+    /**
+     * Creates a chunker.
+     * @param in0 the stream, which the caller closes.
+     */
+    public Chunker(InputStream in0) {
+        this.in = in0;
+    }
+
+    /**
+     * @return the next chunk, or null at the end of the stream.
+     * @throws IOException if reading fails.
+     */
+    public byte[] next() throws IOException {
+        if (end - start < MAX_SIZE && !eof) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+            while (end < buffer.length && !eof) {
+                int n = in.read(buffer, end, buffer.length - end);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    end += n;
+                }
+            }
+        }
+        if (start == end) {
+            return null;
+        }
+        int length = cut(buffer, start, end - start);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /**
+     * Finds where the chunk starting at an offset ends.
+     * @param bytes the bytes.
+     * @param offset the start of the chunk.
+     * @param length the bytes available from there.
+     * @return the chunk's length.
+     */
+    static int cut(byte[] bytes, int offset, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int limit = Math.min(length, MAX_SIZE);
+        int normal = Math.min(limit, AVG_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[bytes[offset + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[bytes[offset + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
@@ -1,12 +1,17 @@
 package gitlet;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.function.Function;
@@ -22,6 +27,16 @@ public class Commit {
      */
     private static final DateTimeFormatter FORMATTER =
             DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss uuuu ZZ");
+    /**
+     * The leading bytes of a commit in the binary format, ending with its
+     * version.
+     */
+    private static final byte[] MAGIC = {'g', 'l', 'c', 1};
+    /**
+     * Written by Java serialization in place of the number of staged files
+     * when a commit refers to a root tree instead of listing its files.
+     */
+    private static final int TREE_MARKER = -1;
     /**
      * The default time zone.
      */
@@ -37,9 +52,17 @@ public class Commit {
      */
     private Instant date;
     /**
-     * The parent commits.
+     * The parent commits, null until resolved.
      */
     private List<Commit> parents;
+    /**
+     * The parent hashes.
+     */
+    private List<String> parentHashes;
+    /**
+     * Resolves parent hashes on first access, null once resolved.
+     */
+    private Function<String, Commit> commitResolver;
     /**
      * The commit message.
      */
@@ -87,6 +110,30 @@ public class Commit {
         this.hash = hash0;
         this.date = date0;
         this.parents = parents0;
+        this.parentHashes = new ArrayList<>(parents0.size());
+        for (Commit parent : parents0) {
+            this.parentHashes.add(parent.hash());
+        }
+        this.message = message0;
+        this.stagedFiles = stagedFiles0;
+    }
+
+    /**
+     * A commit read from disk whose parents are loaded on demand.
+     * @param hash0 the hash.
+     * @param date0 the date.
+     * @param parentHashes0 the parent hashes.
+     * @param commitResolver0 the resolver of parent hashes.
+     * @param message0 the message.
+     * @param stagedFiles0 the staged files.
+     */
+    private Commit(String hash0, Instant date0, List<String> parentHashes0,
+                   Function<String, Commit> commitResolver0,
+                   String message0, StagedFiles stagedFiles0) {
+        this.hash = hash0;
+        this.date = date0;
+        this.parentHashes = parentHashes0;
+        this.commitResolver = commitResolver0;
         this.message = message0;
         this.stagedFiles = stagedFiles0;
     }
@@ -108,53 +155,117 @@ public class Commit {
     }
 
     /**
-     * Write a commit to an object stream.
+     * Write a commit to a stream in the binary format: the date as
+     * seconds and nanoseconds, the message, the raw parent hashes and the
+     * raw hash of the root tree, with varint counts and lengths.
      * @param commit the commit.
-     * @param s the steam.
+     * @param out the steam.
      * @throws IOException the IOException.
      */
-    public static void writeCommit(Commit commit,
-                                   ObjectOutputStream s)
+    public static void writeCommit(Commit commit, OutputStream out)
             throws IOException {
-        s.writeObject(commit.date);
-        s.writeUTF(commit.message);
-        s.writeInt(commit.parents.size());
-
-        for (Commit parent : commit.parents) {
-            s.writeUTF(parent.hash());
+        out.write(MAGIC);
+        IO.writeVarint(out, commit.date.getEpochSecond());
+        IO.writeVarint(out, commit.date.getNano());
+        byte[] message = commit.message.getBytes(StandardCharsets.UTF_8);
+        IO.writeVarint(out, message.length);
+        out.write(message);
+        IO.writeVarint(out, commit.parentHashes.size());
+        for (String parentHash : commit.parentHashes) {
+            out.write(Utils.hexToBytes(parentHash));
         }
+        out.write(Utils.hexToBytes(commit.stagedFiles.writeTree()));
+    }
 
-        StagedFiles.writeStaging(commit.stagedFiles, s);
+    /**
+     * Read a commit written by writeCommit. Parents are not read until
+     * {@link #parents()} is called.
+     * @param in the stream.
+     * @param fileStore the file store.
+     * @param commitResolver the commit resolver.
+     * @param hash the hash of commit.
+     * @return the Commit
+     * @throws IOException the IOException.
+     */
+    public static Commit readCommit(InputStream in, FileStore fileStore,
+                                    Function<String, Commit> commitResolver,
+                                    String hash) throws IOException {
+        DataInputStream s = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        s.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw Utils.error("Unknown commit format.");
+        }
+        long seconds = IO.readVarint(s);
+        Instant date = Instant.ofEpochSecond(seconds, IO.readVarint(s));
+        byte[] message = new byte[(int) IO.readVarint(s)];
+        s.readFully(message);
+        int size = (int) IO.readVarint(s);
+        List<String> parentHashes = new ArrayList<>(size);
+        byte[] raw = new byte[Utils.UID_LENGTH / 2];
+        for (int i = 0; i < size; i++) {
+            s.readFully(raw);
+            parentHashes.add(Utils.bytesToHex(raw));
+        }
+        s.readFully(raw);
+        return new Commit(hash, date, parentHashes, commitResolver,
+                new String(message, StandardCharsets.UTF_8),
+                StagedFiles.readTree(fileStore, Utils.bytesToHex(raw)));
     }
 
     /**
-     * Read commit from an object stream.
+     * Read a commit written by Java serialization, as before the binary
+     * format. Parents are not read until {@link #parents()} is called.
      * @param s the stream.
-     * @param workingDir the working directory.
+     * @param fileStore the file store.
      * @param commitResolver the commit resolver.
      * @param hash the hash of commit.
      * @return the Commit
      * @throws IOException the IOException.
      * @throws ClassNotFoundException the ClassNotFoundException.
      */
-    public static Commit readCommit(ObjectInputStream s,
-                                    Path workingDir,
-                                    Function<String, Commit> commitResolver,
-                                    String hash)
+    public static Commit readSerialized(ObjectInputStream s,
+                                        FileStore fileStore,
+                                        Function<String, Commit>
+                                                commitResolver,
+                                        String hash)
             throws IOException, ClassNotFoundException {
         Instant date = (Instant) s.readObject();
         String message = s.readUTF();
 
         int size = s.readInt();
 
-        List<Commit> parents = new LinkedList<>();
+        List<String> parentHashes = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
-            String parentHash = s.readUTF();
-            parents.add(commitResolver.apply(parentHash));
+            parentHashes.add(s.readUTF());
         }
-        StagedFiles stagedFiles = StagedFiles.readStaging(s, workingDir);
+        int files = s.readInt();
+        StagedFiles stagedFiles = files == TREE_MARKER
+                ? StagedFiles.readTree(fileStore, s.readUTF())
+                : StagedFiles.readSerialized(s, fileStore, files);
+
+        return new Commit(hash, date, parentHashes, commitResolver,
+                message, stagedFiles);
+    }
 
-        return new Commit(hash, date, parents, message, stagedFiles);
+    /**
+     * Recreates a stored commit from its parts. Parents are not read until
+     * {@link #parents()} is called, and files not until they are needed.
+     * @param hash the hash.
+     * @param date the date.
+     * @param parentHashes the parent hashes.
+     * @param message the message.
+     * @param treeHash the hash of the root tree.
+     * @param fileStore the file store.
+     * @param commitResolver the commit resolver.
+     * @return the commit.
+     */
+    public static Commit of(String hash, Instant date,
+                            List<String> parentHashes, String message,
+                            String treeHash, FileStore fileStore,
+                            Function<String, Commit> commitResolver) {
+        return new Commit(hash, date, parentHashes, commitResolver,
+                message, StagedFiles.readTree(fileStore, treeHash));
     }
 
     /**
@@ -164,10 +275,10 @@ public class Commit {
         StringBuilder sb = new StringBuilder();
         sb.append(String.format("===%n"));
         sb.append(String.format("commit %s%n", hash));
-        if (parents.size() > 1) {
+        if (parentHashes.size() > 1) {
             sb.append(String.format("Merge: %s %s%n",
-                    parents.get(0).shortHash(),
-                    parents.get(1).shortHash()));
+                    parentHashes.get(0).substring(0, 7),
+                    parentHashes.get(1).substring(0, 7)));
         }
         sb.append(String.format("Date: %s%n",
                 date.atZone(DEFAULT_ZONE).format(FORMATTER)));
@@ -188,9 +299,31 @@ public class Commit {
      * @return parents.
      */
     public List<Commit> parents() {
+        if (this.parents == null) {
+            List<Commit> resolved = new ArrayList<>(parentHashes.size());
+            for (String parentHash : parentHashes) {
+                resolved.add(commitResolver.apply(parentHash));
+            }
+            this.parents = resolved;
+            this.commitResolver = null;
+        }
         return this.parents;
     }
 
+    /**
+     * @return the commit date.
+     */
+    public Instant date() {
+        return date;
+    }
+
+    /**
+     * @return parent hashes, available without loading the parents.
+     */
+    public List<String> parentHashes() {
+        return this.parentHashes;
+    }
+
     /**
      * @return staged files.
      */
@@ -0,0 +1,543 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The commit graph: every known commit numbered by an integer ID, with
+ * the IDs of its parents and its generation number, one more than the
+ * largest generation of its parents. Parents always get smaller IDs than
+ * their children, so the file is only appended to, except when gc
+ * rewrites it without the commits it deletes.
+ *
+ * The file holds MAGIC and VERSION, then one fixed-size record per ID:
+ * the raw hash, the generation and two parent IDs, NONE when absent.
+ * Commits missing from the file, for instance after it is deleted, are
+ * added the next time they are looked up.
+ *
+ * The file is mapped rather than read, and only commits added since are
+ * kept in memory, so adding a commit does not cost the whole history.
+ * A hash is looked up by scanning the records back from the end, where
+ * the parents of a new commit usually are; a commit can only be found
+ * after its parents, so checking that a new one is absent only scans
+ * past them. Once a lookup would scan more than SCAN_LIMIT records, the
+ * IDs of all records are put in a map instead.
+ *
+ * @author Charlie Zhou
+ */
+public class CommitGraph {
+    /**
+     * The leading int of the file.
+     */
+    private static final int MAGIC = 0x47434752;
+    /**
+     * The format version.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The header size.
+     */
+    private static final int HEADER = 8;
+    /**
+     * The raw hash size.
+     */
+    private static final int HASH = Utils.UID_LENGTH / 2;
+    /**
+     * The record size.
+     */
+    private static final int RECORD = HASH + 12;
+    /**
+     * The most records scanned for a hash before mapping them all.
+     */
+    private static final int SCAN_LIMIT = 256;
+    /**
+     * The ID of no commit.
+     */
+    public static final int NONE = -1;
+    /**
+     * Marks commits reached from the first side of a merge-base walk.
+     */
+    private static final byte FIRST = 1;
+    /**
+     * Marks commits reached from the second side of a merge-base walk.
+     */
+    private static final byte SECOND = 2;
+    /**
+     * Marks commits below a common ancestor already found.
+     */
+    private static final byte STALE = 4;
+
+    /**
+     * The file.
+     */
+    private final Path file;
+    /**
+     * The records of the file as mapped, from the header on.
+     */
+    private final ByteBuffer records;
+    /**
+     * The number of records mapped, whose IDs come first.
+     */
+    private final int mapped;
+    /**
+     * The raw hashes of the commits added in memory, by ID less mapped.
+     */
+    private byte[] hashes;
+    /**
+     * The generations of the commits added in memory.
+     */
+    private int[] generations;
+    /**
+     * The first parents of the commits added in memory.
+     */
+    private int[] firstParents;
+    /**
+     * The second parents of the commits added in memory.
+     */
+    private int[] secondParents;
+    /**
+     * The number of commits.
+     */
+    private int size;
+    /**
+     * The number of commits in the file.
+     */
+    private int saved;
+    /**
+     * The IDs by hash of the commits added in memory, and of the mapped
+     * ones once all are indexed.
+     */
+    private final Map<String, Integer> ids = new HashMap<>();
+    /**
+     * Whether the mapped records are in the map of IDs.
+     */
+    private boolean indexed;
+
+    /**
+     * Opens the commit graph. A file that is missing or unreadable gives
+     * an empty graph, rewritten on the next save.
+     * @param file0 the file.
+     */
+    public CommitGraph(Path file0) {
+        this.file = file0;
+        ByteBuffer content = ByteBuffer.allocate(0);
+        if (Files.exists(file0)) {
+            try (FileChannel channel =
+                         FileChannel.open(file0, StandardOpenOption.READ)) {
+                content = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+            } catch (IOException e) {
+                throw new GitletException(e);
+            }
+        }
+        boolean valid = content.capacity() >= HEADER
+                && content.getInt(0) == MAGIC
+                && content.getInt(4) == VERSION;
+        this.mapped = valid ? (content.capacity() - HEADER) / RECORD : 0;
+        this.records = valid ? content.slice(HEADER, mapped * RECORD)
+                : content;
+        allocate(16);
+        size = mapped;
+        saved = mapped;
+    }
+
+    /**
+     * Reads the hashes of the records in a commit-graph file from an ID
+     * on, without reading the records before it.
+     * @param file the file.
+     * @param from the first ID.
+     * @return the hashes, empty if the file is missing or unreadable.
+     */
+    public static List<String> readHashes(Path file, int from) {
+        List<String> result = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return result;
+        }
+        try (FileChannel channel =
+                     FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER || header.getInt() != MAGIC
+                    || header.getInt() != VERSION) {
+                return result;
+            }
+            long start = HEADER + (long) from * RECORD;
+            long count = (channel.size() - start) / RECORD;
+            if (count <= 0) {
+                return result;
+            }
+            ByteBuffer records = ByteBuffer.allocate((int) count * RECORD);
+            long position = start;
+            while (records.hasRemaining()) {
+                int read = channel.read(records, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+            }
+            records.flip();
+            byte[] hash = new byte[HASH];
+            while (records.remaining() >= RECORD) {
+                records.get(hash);
+                records.position(records.position() + RECORD - HASH);
+                result.add(Utils.bytesToHex(hash));
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of commits.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param hash the hash.
+     * @return the commit's ID, or NONE if not in the graph.
+     */
+    public int id(String hash) {
+        return find(hash, 0);
+    }
+
+    /**
+     * @param id the ID.
+     * @return the commit's hash.
+     */
+    public String hash(int id) {
+        return Utils.bytesToHex(rawHash(id));
+    }
+
+    /**
+     * @param id the ID.
+     * @return the commit's generation.
+     */
+    public int generation(int id) {
+        return id < mapped ? records.getInt(id * RECORD + HASH)
+                : generations[id - mapped];
+    }
+
+    /**
+     * @param id the ID.
+     * @return the IDs of the commit's parents.
+     */
+    public int[] parents(int id) {
+        int first = firstParent(id);
+        int second = secondParent(id);
+        if (first == NONE) {
+            return new int[0];
+        } else if (second == NONE) {
+            return new int[] {first};
+        }
+        return new int[] {first, second};
+    }
+
+    /**
+     * @param id the ID.
+     * @return the ID of the commit's first parent, or NONE.
+     */
+    public int firstParent(int id) {
+        return id < mapped ? records.getInt(id * RECORD + HASH + 4)
+                : firstParents[id - mapped];
+    }
+
+    /**
+     * @param id the ID.
+     * @return the ID of the commit's second parent, or NONE.
+     */
+    private int secondParent(int id) {
+        return id < mapped ? records.getInt(id * RECORD + HASH + 8)
+                : secondParents[id - mapped];
+    }
+
+    /**
+     * @param id the ID.
+     * @return the commit's raw hash.
+     */
+    private byte[] rawHash(int id) {
+        byte[] raw = new byte[HASH];
+        if (id < mapped) {
+            records.get(id * RECORD, raw);
+        } else {
+            System.arraycopy(hashes, (id - mapped) * HASH, raw, 0, HASH);
+        }
+        return raw;
+    }
+
+    /**
+     * Looks up a commit among those with an ID from a floor on, scanning
+     * the last mapped records first and mapping them all if it is not
+     * among those.
+     * @param hash the hash.
+     * @param floor the lowest ID the commit may have.
+     * @return the commit's ID, or NONE if not in the graph.
+     */
+    private int find(String hash, int floor) {
+        Integer id = ids.get(hash);
+        if (id != null || indexed || floor >= mapped) {
+            return id == null ? NONE : id;
+        }
+        byte[] raw = Utils.hexToBytes(hash);
+        int scanned = Math.max(floor, mapped - SCAN_LIMIT);
+        for (int i = mapped - 1; i >= scanned; i--) {
+            int j = 0;
+            while (j < HASH && records.get(i * RECORD + j) == raw[j]) {
+                j++;
+            }
+            if (j == HASH) {
+                return i;
+            }
+        }
+        if (scanned == floor) {
+            return NONE;
+        }
+        for (int i = 0; i < mapped; i++) {
+            ids.put(hash(i), i);
+        }
+        indexed = true;
+        return ids.getOrDefault(hash, NONE);
+    }
+
+    /**
+     * Adds a commit and those of its ancestors not in the graph yet.
+     * @param commit the commit.
+     * @param resolver reads commits by hash.
+     * @return the commit's ID.
+     */
+    public int add(Commit commit, Function<String, Commit> resolver) {
+        Deque<Commit> stack = new ArrayDeque<>();
+        stack.push(commit);
+        int result = NONE;
+        while (!stack.isEmpty()) {
+            Commit top = stack.peek();
+            List<String> parents = top.parentHashes();
+            int first = parents.size() > 0 ? id(parents.get(0)) : NONE;
+            int second = parents.size() > 1 ? id(parents.get(1)) : NONE;
+            if (parents.size() > 0 && first == NONE) {
+                stack.push(resolver.apply(parents.get(0)));
+                continue;
+            } else if (parents.size() > 1 && second == NONE) {
+                stack.push(resolver.apply(parents.get(1)));
+                continue;
+            }
+            stack.pop();
+            result = find(top.hash(), Math.max(first, second) + 1);
+            if (result == NONE) {
+                int generation = 1 + Math.max(
+                        first == NONE ? 0 : generation(first),
+                        second == NONE ? 0 : generation(second));
+                result = size;
+                append(Utils.hexToBytes(top.hash()), generation,
+                        first, second);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Appends the commits added since the last save to the file.
+     */
+    public void save() {
+        if (saved == size) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(
+                    (saved == 0 ? HEADER : 0) + (size - saved) * RECORD);
+            if (saved == 0) {
+                buffer.putInt(MAGIC).putInt(VERSION);
+            }
+            for (int id = saved; id < size; id++) {
+                buffer.put(rawHash(id))
+                        .putInt(generation(id))
+                        .putInt(firstParent(id))
+                        .putInt(secondParent(id));
+            }
+            buffer.flip();
+            long position = saved == 0 ? 0 : HEADER + (long) saved * RECORD;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.truncate(position);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        saved = size;
+    }
+
+    /**
+     * Rewrites the file with only some of the commits, renumbered in the
+     * same order. The file is written whole and renamed into place.
+     * @param keep the IDs of the commits to keep, with their parents.
+     * @return the graph as rewritten.
+     */
+    public CommitGraph compact(BitSet keep) {
+        int[] newIds = new int[size];
+        ByteBuffer buffer = ByteBuffer.allocate(
+                HEADER + keep.cardinality() * RECORD);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        int next = 0;
+        for (int id = keep.nextSetBit(0); id >= 0 && id < size;
+             id = keep.nextSetBit(id + 1)) {
+            newIds[id] = next;
+            next += 1;
+            int first = firstParent(id);
+            int second = secondParent(id);
+            buffer.put(rawHash(id))
+                    .putInt(generation(id))
+                    .putInt(first == NONE ? NONE : newIds[first])
+                    .putInt(second == NONE ? NONE : newIds[second]);
+        }
+        try {
+            Path temp = Files.createTempFile(file.getParent(), ".tmp-", "");
+            Files.write(temp, Arrays.copyOf(buffer.array(),
+                    buffer.position()));
+            IO.move(temp, file);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return new CommitGraph(file);
+    }
+
+    /**
+     * Finds the common ancestors of two commits that are not ancestors of
+     * other common ancestors. Commits are visited from the highest
+     * generation down, and the walk stops once every commit left to visit
+     * is below a common ancestor already found, so history older than the
+     * merge base is never read.
+     * @param first the ID of the first commit.
+     * @param second the ID of the second commit.
+     * @return the IDs of the merge bases.
+     */
+    public Set<Integer> mergeBases(int first, int second) {
+        Set<Integer> result = new HashSet<>();
+        if (first == second) {
+            result.add(first);
+            return result;
+        }
+        byte[] flags = new byte[size];
+        int[] queued = new int[size];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) ->
+                generation(a) != generation(b)
+                        ? Integer.compare(generation(b), generation(a))
+                        : Integer.compare(b, a));
+        flags[first] = FIRST;
+        flags[second] = SECOND;
+        queue.add(first);
+        queue.add(second);
+        queued[first] = 1;
+        queued[second] = 1;
+        int live = 2;
+        while (live > 0) {
+            int id = queue.poll();
+            byte flag = flags[id];
+            queued[id] -= 1;
+            if ((flag & STALE) == 0) {
+                live -= 1;
+            }
+            if (flag == (FIRST | SECOND)) {
+                result.add(id);
+                flag |= STALE;
+            }
+            for (int parent : parents(id)) {
+                if ((flags[parent] & flag) != flag) {
+                    if ((flags[parent] & STALE) == 0) {
+                        live += (flag & STALE) == 0 ? 1 : -queued[parent];
+                    }
+                    flags[parent] |= flag;
+                    queued[parent] += 1;
+                    queue.add(parent);
+                }
+            }
+        }
+        result.removeIf(id -> (flags[id] & STALE) != 0);
+        return result;
+    }
+
+    /**
+     * Finds the merge base closest to a commit, counting commits the way
+     * a breadth-first walk of its parents meets them.
+     * @param from the ID of the commit.
+     * @param other the ID of the other commit.
+     * @return the ID of the merge base, or NONE if there is none.
+     */
+    public int nearestMergeBase(int from, int other) {
+        Set<Integer> bases = mergeBases(from, other);
+        if (bases.size() <= 1) {
+            return bases.isEmpty() ? NONE : bases.iterator().next();
+        }
+        Queue<Integer> queue = new LinkedList<>();
+        Set<Integer> seen = new HashSet<>();
+        queue.add(from);
+        while (!queue.isEmpty()) {
+            int id = queue.poll();
+            if (bases.contains(id)) {
+                return id;
+            }
+            for (int parent : parents(id)) {
+                if (seen.add(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Appends a commit in memory.
+     * @param hash the raw hash.
+     * @param generation the generation.
+     * @param first the first parent's ID.
+     * @param second the second parent's ID.
+     */
+    private void append(byte[] hash, int generation, int first, int second) {
+        int index = size - mapped;
+        if (index == generations.length) {
+            allocate(index * 2);
+        }
+        System.arraycopy(hash, 0, hashes, index * HASH, HASH);
+        generations[index] = generation;
+        firstParents[index] = first;
+        secondParents[index] = second;
+        ids.put(Utils.bytesToHex(hash), size);
+        size++;
+    }
+
+    /**
+     * Grows the arrays.
+     * @param capacity the number of commits to hold.
+     */
+    private void allocate(int capacity) {
+        hashes = hashes == null ? new byte[capacity * HASH]
+                : Arrays.copyOf(hashes, capacity * HASH);
+        generations = generations == null ? new int[capacity]
+                : Arrays.copyOf(generations, capacity);
+        firstParents = firstParents == null ? new int[capacity]
+                : Arrays.copyOf(firstParents, capacity);
+        secondParents = secondParents == null ? new int[capacity]
+                : Arrays.copyOf(secondParents, capacity);
+    }
+}
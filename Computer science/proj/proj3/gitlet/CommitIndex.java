@@ -0,0 +1,244 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The sorted index of commit hashes, for looking up abbreviated hashes
+ * without loading any commit. Like a pack index, it holds MAGIC, VERSION
+ * and the count, then a fanout table of cumulative counts by first byte
+ * and the sorted raw hashes.
+ *
+ * The index also records how many commit-graph records it covers and the
+ * hash of the last one. Commits appended to the graph since then form a
+ * tail that is searched linearly; once the tail grows past TAIL_LIMIT, or
+ * the graph no longer starts as recorded, the index is rebuilt.
+ *
+ * @author Charlie Zhou
+ */
+public class CommitIndex {
+    /**
+     * The leading int of the file.
+     */
+    private static final int MAGIC = 0x47434958;
+    /**
+     * The format version.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The number of fanout buckets.
+     */
+    private static final int FANOUT = 256;
+    /**
+     * The raw hash size.
+     */
+    private static final int HASH = Utils.UID_LENGTH / 2;
+    /**
+     * The header size: magic, version, count, covered records and the
+     * last covered hash.
+     */
+    private static final int HEADER = 16 + HASH;
+    /**
+     * The most commits searched linearly before the index is rebuilt.
+     */
+    private static final int TAIL_LIMIT = 256;
+
+    /**
+     * The index content.
+     */
+    private final ByteBuffer index;
+    /**
+     * The number of hashes in the index.
+     */
+    private final int count;
+    /**
+     * The hashes of commits added to the graph after the index was built.
+     */
+    private final List<String> tail;
+
+    /**
+     * Creates an index.
+     * @param index0 the index content.
+     * @param tail0 the hashes not in the index.
+     */
+    private CommitIndex(ByteBuffer index0, List<String> tail0) {
+        this.index = index0;
+        this.count = index0.getInt(8);
+        this.tail = tail0;
+    }
+
+    /**
+     * Opens the index, unless it is missing or has to be rebuilt.
+     * @param file the index file.
+     * @param graphFile the commit-graph file.
+     * @return the index, or null.
+     */
+    public static CommitIndex open(Path file, Path graphFile) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        ByteBuffer index = map(file);
+        if (index.capacity() < HEADER + FANOUT * 4
+                || index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+            return null;
+        }
+        int covered = index.getInt(12);
+        byte[] last = new byte[HASH];
+        index.get(16, last);
+        List<String> tail = CommitGraph.readHashes(graphFile,
+                Math.max(covered - 1, 0));
+        if (covered > 0) {
+            if (tail.isEmpty()
+                    || !tail.remove(0).equals(Utils.bytesToHex(last))) {
+                return null;
+            }
+        }
+        if (tail.size() > TAIL_LIMIT) {
+            return null;
+        }
+        return new CommitIndex(index, tail);
+    }
+
+    /**
+     * Writes the index of a set of commits.
+     * @param file the index file.
+     * @param graphFile the commit-graph file, whose records are all in the
+     *                  set.
+     * @param hashes the commit hashes.
+     * @return the index.
+     */
+    public static CommitIndex write(Path file, Path graphFile,
+                                    Collection<String> hashes) {
+        List<String> graph = CommitGraph.readHashes(graphFile, 0);
+        TreeSet<String> sorted = new TreeSet<>(hashes);
+        sorted.addAll(graph);
+        int[] fanout = new int[FANOUT];
+        for (String hash : sorted) {
+            fanout[Integer.parseInt(hash.substring(0, 2), 16)] += 1;
+        }
+        try {
+            Path temp = Files.createTempFile(file.getParent(), ".tmp-", "");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.size());
+                out.writeInt(graph.size());
+                out.write(graph.isEmpty() ? new byte[HASH]
+                        : Utils.hexToBytes(graph.get(graph.size() - 1)));
+                int total = 0;
+                for (int bucket : fanout) {
+                    total += bucket;
+                    out.writeInt(total);
+                }
+                for (String hash : sorted) {
+                    out.write(Utils.hexToBytes(hash));
+                }
+            }
+            IO.move(temp, file);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return new CommitIndex(map(file), new ArrayList<>());
+    }
+
+    /**
+     * Finds the commits whose hashes start with a prefix.
+     * @param prefix the prefix.
+     * @param limit the most hashes to return.
+     * @return the matching hashes.
+     */
+    public List<String> find(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        if (prefix.isEmpty() || prefix.length() > Utils.UID_LENGTH
+                || !prefix.chars().allMatch(c -> Character.digit(c, 16) >= 0
+                        && !Character.isUpperCase(c))) {
+            return result;
+        }
+        String padded = prefix + "0".repeat(Utils.UID_LENGTH
+                - prefix.length());
+        byte[] low = Utils.hexToBytes(padded);
+        byte[] probe = new byte[HASH];
+        for (int i = lowerBound(low); i < count && result.size() < limit;
+             i++) {
+            index.get(hashOffset(i), probe);
+            String hash = Utils.bytesToHex(probe);
+            if (!hash.startsWith(prefix)) {
+                break;
+            }
+            result.add(hash);
+        }
+        for (String hash : tail) {
+            if (result.size() < limit && hash.startsWith(prefix)
+                    && !result.contains(hash)) {
+                result.add(hash);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Binary searches the fanout bucket of a hash for the first hash not
+     * smaller than it.
+     * @param raw the raw hash.
+     * @return the position.
+     */
+    private int lowerBound(byte[] raw) {
+        int bucket = raw[0] & 0xff;
+        int low = bucket == 0 ? 0 : index.getInt(fanoutOffset(bucket - 1));
+        int high = index.getInt(fanoutOffset(bucket));
+        byte[] probe = new byte[HASH];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            index.get(hashOffset(mid), probe);
+            if (Arrays.compareUnsigned(probe, raw) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param bucket the bucket.
+     * @return where the bucket's cumulative count is.
+     */
+    private static int fanoutOffset(int bucket) {
+        return HEADER + bucket * 4;
+    }
+
+    /**
+     * @param position the position.
+     * @return where the hash at the position is.
+     */
+    private static int hashOffset(int position) {
+        return HEADER + FANOUT * 4 + position * HASH;
+    }
+
+    /**
+     * Maps a file read-only.
+     * @param file the file.
+     * @return the mapped content.
+     */
+    private static ByteBuffer map(Path file) {
+        try (FileChannel channel =
+                     FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Serves the commands of a repository from one long-lived process, which
+ * keeps the repository loaded between them, so a command costs neither
+ * starting a JVM nor reading the index and branches again. Clients
+ * connect to a Unix domain socket in the gitlet directory and send
+ * commands, each an int count and the words of the command; the output
+ * comes back as frames, each a stream byte, a length and the bytes, and
+ * a command ends with an END byte. Commands run one at a time and take
+ * the repository lock like any other, and the repository is loaded again
+ * whenever another process wrote to it. Unless the system cannot, the
+ * daemon also watches the working directory, so status examines only the
+ * files changed since the last command (see Watcher).
+ *
+ * @author Charlie Zhou
+ */
+public class Daemon {
+    /**
+     * The socket file name.
+     */
+    static final String SOCKET_FILE = "daemon.sock";
+    /**
+     * The frame type ending a command's output.
+     */
+    static final byte END = 0;
+    /**
+     * The frame type of the standard output.
+     */
+    static final byte OUT = 1;
+    /**
+     * The frame type of the standard error.
+     */
+    static final byte ERR = 2;
+
+    /**
+     * The working directory.
+     */
+    private final Path workingDir;
+    /**
+     * The repository as loaded for the last command, null to load it
+     * again.
+     */
+    private Gitlet gitlet;
+    /**
+     * The watcher of the working directory, or null.
+     */
+    private Watcher watcher;
+
+    /**
+     * Creates a daemon.
+     * @param workingDir0 the working directory of the repository.
+     */
+    public Daemon(Path workingDir0) {
+        this.workingDir = workingDir0;
+    }
+
+    /**
+     * Accepts clients until the process is stopped, serving each on its
+     * own thread. A socket left by a daemon that stopped is replaced.
+     */
+    public void serve() {
+        Path gitletDir = workingDir.resolve(Gitlet.GITLET_DIR);
+        if (!Files.exists(gitletDir)) {
+            throw Utils.error("Not in an initialized Gitlet directory.");
+        }
+        Path socket = gitletDir.resolve(SOCKET_FILE);
+        try (DaemonClient running = DaemonClient.connect(workingDir)) {
+            if (running != null) {
+                throw Utils.error("A daemon is already running.");
+            }
+        }
+        try (ServerSocketChannel server =
+                     ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            Files.deleteIfExists(socket);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(
+                    new Thread(() -> IO.deleteIfExists(socket)));
+            watcher = Watcher.start(workingDir);
+            while (true) {
+                SocketChannel client = server.accept();
+                Thread thread = new Thread(() -> serve(client));
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Runs the commands of a client until it disconnects. A connection
+     * lost concerns only that client, so it is not reported.
+     * @param client the client.
+     */
+    private void serve(SocketChannel client) {
+        try (client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(
+                     Channels.newInputStream(client)));
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(
+                             Channels.newOutputStream(client)))) {
+            while (true) {
+                String[] args = new String[in.readInt()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = in.readUTF();
+                }
+                run(args, out);
+            }
+        } catch (IOException e) {
+            return;
+        }
+    }
+
+    /**
+     * Runs a command, sending its output to the client. The standard
+     * streams are replaced while it runs, so commands run one at a time.
+     * @param args the command and its operands.
+     * @param out the client's stream.
+     * @throws IOException if writing to the client fails.
+     */
+    private synchronized void run(String[] args, DataOutputStream out)
+            throws IOException {
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        PrintStream commandOut = frames(out, OUT);
+        PrintStream commandErr = frames(out, ERR);
+        System.setOut(commandOut);
+        System.setErr(commandErr);
+        try {
+            gitlet = Main.run(gitlet, workingDir, watcher, args);
+        } catch (RuntimeException e) {
+            gitlet = null;
+            commandErr.println(e.getMessage());
+        } finally {
+            commandOut.flush();
+            commandErr.flush();
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        if (commandOut.checkError() || commandErr.checkError()) {
+            throw new IOException("Client disconnected.");
+        }
+        out.writeByte(END);
+        out.flush();
+    }
+
+    /**
+     * @param out the client's stream.
+     * @param type the frame type.
+     * @return a stream sending what is written to it in frames of a type.
+     */
+    private static PrintStream frames(DataOutputStream out, byte type) {
+        OutputStream framed = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+                    throws IOException {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        };
+        return new PrintStream(new BufferedOutputStream(framed), false,
+                StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,118 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A connection to the daemon of a repository, which runs commands for
+ * this process and sends back their output.
+ *
+ * @author Charlie Zhou
+ */
+public final class DaemonClient implements AutoCloseable {
+    /**
+     * The connection.
+     */
+    private final SocketChannel channel;
+    /**
+     * The daemon's output.
+     */
+    private final DataInputStream in;
+    /**
+     * The commands to the daemon.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * Creates a client.
+     * @param channel0 a connection to the daemon.
+     */
+    private DaemonClient(SocketChannel channel0) {
+        this.channel = channel0;
+        this.in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel0)));
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(channel0)));
+    }
+
+    /**
+     * Connects to the daemon of a repository.
+     * @param workingDir the working directory.
+     * @return a client, or null if no daemon is running.
+     */
+    public static DaemonClient connect(Path workingDir) {
+        Path socket = workingDir.resolve(Gitlet.GITLET_DIR)
+                .resolve(Daemon.SOCKET_FILE);
+        if (!Files.exists(socket)) {
+            return null;
+        }
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(socket));
+            return new DaemonClient(channel);
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Runs a command in the daemon, copying its output to the standard
+     * streams.
+     * @param args the command and its operands.
+     */
+    public void run(String[] args) {
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        try {
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            while (true) {
+                byte type = in.readByte();
+                if (type == Daemon.END) {
+                    break;
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                PrintStream stream = type == Daemon.ERR ? stderr : stdout;
+                stream.write(bytes, 0, bytes.length);
+            }
+            stdout.flush();
+            stderr.flush();
+        } catch (IOException e) {
+            throw Utils.error("Lost the connection to the daemon.");
+        }
+    }
+
+    /**
+     * Disconnects from the daemon.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Binary deltas between two versions of a file. A delta is a list of
+ * instructions that either copy a range of the base or insert literal
+ * bytes. Matches are found by indexing fixed-size blocks of the base and
+ * rolling a hash over the target, in the spirit of git's diff-delta.
+ *
+ * @author Charlie Zhou
+ */
+public class Delta {
+    /**
+     * The size of the indexed blocks.
+     */
+    private static final int BLOCK = 16;
+    /**
+     * The multiplier of the rolling hash.
+     */
+    private static final int PRIME = 257;
+    /**
+     * The instruction inserting literal bytes.
+     */
+    private static final int INSERT = 0;
+    /**
+     * The instruction copying from the base.
+     */
+    private static final int COPY = 1;
+
+    /**
+     * Not instantiable.
+     */
+    private Delta() {
+    }
+
+    /**
+     * Computes the delta turning base into target.
+     * @param base the base.
+     * @param target the target.
+     * @return the encoded delta.
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IO.writeVarint(out, base.length);
+        IO.writeVarint(out, target.length);
+
+        int blocks = base.length / BLOCK;
+        int mask = Integer.highestOneBit(Math.max(1, blocks) * 2) - 1;
+        int[] table = new int[mask + 1];
+        for (int i = blocks - 1; i >= 0; i--) {
+            table[hash(base, i * BLOCK) & mask] = i * BLOCK + 1;
+        }
+        int outPow = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            outPow *= PRIME;
+        }
+
+        int literal = 0;
+        int pos = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (pos + BLOCK <= target.length) {
+            int candidate = table[h & mask] - 1;
+            if (candidate >= 0 && matches(base, candidate, target, pos)) {
+                int start = candidate;
+                int back = 0;
+                while (start - back > 0 && pos - back > literal
+                        && base[start - back - 1] == target[pos - back - 1]) {
+                    back += 1;
+                }
+                int len = BLOCK;
+                while (pos + len < target.length
+                        && start + len < base.length
+                        && base[start + len] == target[pos + len]) {
+                    len += 1;
+                }
+                insert(out, target, literal, pos - back);
+                copy(out, start - back, len + back);
+                pos += len;
+                literal = pos;
+                if (pos + BLOCK <= target.length) {
+                    h = hash(target, pos);
+                }
+                continue;
+            }
+            if (pos + BLOCK < target.length) {
+                h = (h - (target[pos] & 0xff) * outPow) * PRIME
+                        + (target[pos + BLOCK] & 0xff);
+            }
+            pos += 1;
+        }
+        insert(out, target, literal, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Applies a delta to a base.
+     * @param base the base.
+     * @param delta the delta.
+     * @return the target.
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        try (InputStream in = new ByteArrayInputStream(delta)) {
+            long baseLength = IO.readVarint(in);
+            if (baseLength != base.length) {
+                throw Utils.error("Delta does not apply to its base.");
+            }
+            byte[] target = new byte[(int) IO.readVarint(in)];
+            int pos = 0;
+            int op;
+            while ((op = in.read()) >= 0) {
+                if (op == COPY) {
+                    int offset = (int) IO.readVarint(in);
+                    int len = (int) IO.readVarint(in);
+                    System.arraycopy(base, offset, target, pos, len);
+                    pos += len;
+                } else {
+                    int len = (int) IO.readVarint(in);
+                    pos += in.readNBytes(target, pos, len);
+                }
+            }
+            return target;
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Emits an insert of target[from, to) if it is not empty.
+     * @param out the output.
+     * @param target the target.
+     * @param from the start.
+     * @param to the end.
+     */
+    private static void insert(ByteArrayOutputStream out, byte[] target,
+                               int from, int to) {
+        if (to > from) {
+            out.write(INSERT);
+            IO.writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    /**
+     * Emits a copy from the base.
+     * @param out the output.
+     * @param offset the offset in the base.
+     * @param len the length.
+     */
+    private static void copy(ByteArrayOutputStream out, int offset, int len) {
+        out.write(COPY);
+        IO.writeVarint(out, offset);
+        IO.writeVarint(out, len);
+    }
+
+    /**
+     * @param data the data.
+     * @param from the start of a block.
+     * @return the hash of the block.
+     */
+    private static int hash(byte[] data, int from) {
+        int h = 0;
+        for (int i = from; i < from + BLOCK; i++) {
+            h = h * PRIME + (data[i] & 0xff);
+        }
+        return h;
+    }
+
+    /**
+     * @param base the base.
+     * @param basePos a block start in the base.
+     * @param target the target.
+     * @param targetPos a position in the target.
+     * @return whether the block matches the target there.
+     */
+    private static boolean matches(byte[] base, int basePos,
+                                   byte[] target, int targetPos) {
+        for (int i = 0; i < BLOCK; i++) {
+            if (base[basePos + i] != target[targetPos + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,582 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line diffs. Lines are first numbered so that equal lines get equal
+ * numbers, and the numbers are compared with Myers' O(ND) algorithm in its
+ * linear-space form: the middle snake of the shortest edit script is found
+ * by searching from both ends at once, and the halves on either side of it
+ * are diffed recursively.
+ *
+ * Histogram diffs, for showing changes, extend patience diff: the lines
+ * of a region that occur fewest times anchor the longest common run
+ * around them, and the regions before and after it are diffed in turn.
+ * Edits line up with the unique lines a reader recognizes rather than
+ * with frequent ones like blank lines and braces.
+ *
+ * @author Charlie Zhou
+ */
+public class Diff {
+    /**
+     * The fewest edits searched for before the search settles for the
+     * furthest point reached, as xdiff does for very different inputs.
+     */
+    private static final int MIN_COST = 256;
+
+    /**
+     * The most occurrences of a line for it to anchor a histogram diff.
+     */
+    private static final int MAX_CHAIN = 64;
+    /**
+     * The deepest a histogram diff splits before the rest is left to
+     * Myers' algorithm.
+     */
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * Not instantiable.
+     */
+    private Diff() {
+    }
+
+    /**
+     * A range of lines of the first sequence replaced by a range of lines
+     * of the second. Either range may be empty.
+     */
+    public static class Edit {
+        /**
+         * The first replaced line of the first sequence.
+         */
+        private final int beginA;
+        /**
+         * The line after the last replaced line of the first sequence.
+         */
+        private final int endA;
+        /**
+         * The first replacing line of the second sequence.
+         */
+        private final int beginB;
+        /**
+         * The line after the last replacing line of the second sequence.
+         */
+        private final int endB;
+
+        /**
+         * Creates an edit.
+         * @param beginA0 the first replaced line.
+         * @param endA0 the line after the last replaced line.
+         * @param beginB0 the first replacing line.
+         * @param endB0 the line after the last replacing line.
+         */
+        public Edit(int beginA0, int endA0, int beginB0, int endB0) {
+            this.beginA = beginA0;
+            this.endA = endA0;
+            this.beginB = beginB0;
+            this.endB = endB0;
+        }
+
+        /**
+         * @return the first replaced line of the first sequence.
+         */
+        public int beginA() {
+            return beginA;
+        }
+
+        /**
+         * @return the line after the last replaced line.
+         */
+        public int endA() {
+            return endA;
+        }
+
+        /**
+         * @return the first replacing line of the second sequence.
+         */
+        public int beginB() {
+            return beginB;
+        }
+
+        /**
+         * @return the line after the last replacing line.
+         */
+        public int endB() {
+            return endB;
+        }
+    }
+
+    /**
+     * Numbers the lines of texts so that lines are equal exactly when
+     * their numbers are.
+     * @param texts the texts.
+     * @return the line numbers of each text.
+     */
+    public static int[][] intern(Text... texts) {
+        int total = 0;
+        for (Text text : texts) {
+            total += text.size();
+        }
+        int mask = Integer.highestOneBit(Math.max(total, 1) * 2) * 2 - 1;
+        int[] slots = new int[mask + 1];
+        int[] ownerText = new int[total];
+        int[] ownerLine = new int[total];
+        int count = 0;
+        int[][] result = new int[texts.length][];
+        for (int t = 0; t < texts.length; t++) {
+            Text text = texts[t];
+            result[t] = new int[text.size()];
+            for (int line = 0; line < text.size(); line++) {
+                int slot = text.hash(line) & mask;
+                while (slots[slot] != 0) {
+                    int id = slots[slot] - 1;
+                    if (text.lineEquals(line, texts[ownerText[id]],
+                            ownerLine[id])) {
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                if (slots[slot] == 0) {
+                    ownerText[count] = t;
+                    ownerLine[count] = line;
+                    slots[slot] = ++count;
+                }
+                result[t][line] = slots[slot] - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Diffs two texts.
+     * @param a the first text.
+     * @param b the second text.
+     * @return the edits turning a into b, in order.
+     */
+    public static List<Edit> diff(Text a, Text b) {
+        int[][] lines = intern(a, b);
+        return diff(lines[0], lines[1]);
+    }
+
+    /**
+     * Diffs two texts with the histogram algorithm.
+     * @param a the first text.
+     * @param b the second text.
+     * @return the edits turning a into b, in order.
+     */
+    public static List<Edit> histogram(Text a, Text b) {
+        int[][] lines = intern(a, b);
+        return histogram(lines[0], lines[1]);
+    }
+
+    /**
+     * Diffs two sequences of line numbers with the histogram algorithm.
+     * @param a the first sequence.
+     * @param b the second sequence.
+     * @return the edits turning a into b, in order.
+     */
+    public static List<Edit> histogram(int[] a, int[] b) {
+        List<Edit> result = new ArrayList<>();
+        new Histogram(a, b).diff(0, a.length, 0, b.length, 0, result);
+        return result;
+    }
+
+    /**
+     * Diffs two sequences of line numbers. Lines found in only one of the
+     * sequences cannot match, so like xdiff, the search runs on the other
+     * lines alone and its matches are mapped back.
+     * @param a the first sequence.
+     * @param b the second sequence.
+     * @return the edits turning a into b, in order.
+     */
+    public static List<Edit> diff(int[] a, int[] b) {
+        int[] aKept = shared(a, b);
+        int[] bKept = shared(b, a);
+        int[] aLines = new int[aKept.length];
+        int[] bLines = new int[bKept.length];
+        for (int i = 0; i < aKept.length; i++) {
+            aLines[i] = a[aKept[i]];
+        }
+        for (int i = 0; i < bKept.length; i++) {
+            bLines[i] = b[bKept[i]];
+        }
+        List<Edit> kept = new ArrayList<>();
+        diff(aLines, 0, aLines.length, bLines, 0, bLines.length, kept);
+        kept.add(new Edit(aLines.length, aLines.length,
+                bLines.length, bLines.length));
+
+        List<Edit> result = new ArrayList<>();
+        int nextA = 0;
+        int nextB = 0;
+        int i = 0;
+        int j = 0;
+        for (Edit edit : kept) {
+            for (; i < edit.beginA; i++, j++) {
+                if (aKept[i] > nextA || bKept[j] > nextB) {
+                    add(result, nextA, aKept[i], nextB, bKept[j]);
+                }
+                nextA = aKept[i] + 1;
+                nextB = bKept[j] + 1;
+            }
+            i = edit.endA;
+            j = edit.endB;
+        }
+        if (nextA < a.length || nextB < b.length) {
+            add(result, nextA, a.length, nextB, b.length);
+        }
+        return result;
+    }
+
+    /**
+     * @param a a sequence.
+     * @param b another sequence.
+     * @return the positions of the lines of a also found in b.
+     */
+    private static int[] shared(int[] a, int[] b) {
+        int max = 0;
+        for (int line : b) {
+            max = Math.max(max, line + 1);
+        }
+        boolean[] present = new boolean[max];
+        for (int line : b) {
+            present[line] = true;
+        }
+        int[] result = new int[a.length];
+        int count = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] < max && present[a[i]]) {
+                result[count++] = i;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Diffs ranges of two sequences.
+     * @param a the first sequence.
+     * @param aLo the start of the first range.
+     * @param aHi the end of the first range.
+     * @param b the second sequence.
+     * @param bLo the start of the second range.
+     * @param bHi the end of the second range.
+     * @param edits receives the edits, in order.
+     */
+    private static void diff(int[] a, int aLo, int aHi,
+                             int[] b, int bLo, int bHi, List<Edit> edits) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            if (aLo < aHi || bLo < bHi) {
+                add(edits, aLo, aHi, bLo, bHi);
+            }
+            return;
+        }
+        int[] split = middleSnake(a, aLo, aHi, b, bLo, bHi);
+        if (split == null) {
+            add(edits, aLo, aHi, bLo, bHi);
+            return;
+        }
+        diff(a, aLo, split[0], b, bLo, split[1], edits);
+        diff(a, split[0], aHi, b, split[1], bHi, edits);
+    }
+
+    /**
+     * Finds where to split two ranges so that diffing the halves gives a
+     * shortest edit script, searching forward from the start and backward
+     * from the end until the searches overlap. The ranges must not start
+     * or end with equal lines.
+     * @param a the first sequence.
+     * @param aLo the start of the first range.
+     * @param aHi the end of the first range.
+     * @param b the second sequence.
+     * @param bLo the start of the second range.
+     * @param bHi the end of the second range.
+     * @return the split point in a and in b, or null if the ranges have no
+     *         line in common.
+     */
+    private static int[] middleSnake(int[] a, int aLo, int aHi,
+                                     int[] b, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int cost = Math.max(MIN_COST, (int) Math.sqrt((double) n + m));
+        int fStart = 0;
+        int fEnd = 0;
+        int bStart = 0;
+        int bEnd = 0;
+        for (int d = 0; d < maxD; d++) {
+            if (d > cost) {
+                int[] point = furthest(forward, offset, d - 1, n, m);
+                return point == null ? null
+                        : new int[] {aLo + point[0], bLo + point[1]};
+            }
+            for (int k = -d + fStart; k <= d - fEnd; k += 2) {
+                int i = offset + k;
+                int x = k == -d || (k != d && forward[i - 1] < forward[i + 1])
+                        ? forward[i + 1] : forward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[i] = x;
+                if (x > n) {
+                    fEnd += 2;
+                } else if (y > m) {
+                    fStart += 2;
+                } else if (odd) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < length && backward[j] != -1
+                            && x >= n - backward[j]) {
+                        return new int[] {aLo + x, bLo + y};
+                    }
+                }
+            }
+            for (int k = -d + bStart; k <= d - bEnd; k += 2) {
+                int i = offset + k;
+                int x = k == -d
+                        || (k != d && backward[i - 1] < backward[i + 1])
+                        ? backward[i + 1] : backward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m
+                        && a[aHi - x - 1] == b[bHi - y - 1]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[i] = x;
+                if (x > n) {
+                    bEnd += 2;
+                } else if (y > m) {
+                    bStart += 2;
+                } else if (!odd) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < length && forward[j] != -1
+                            && forward[j] >= n - x) {
+                        int fx = forward[j];
+                        return new int[] {aLo + fx, bLo + fx - (j - offset)};
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the point furthest along of a forward search that was given
+     * up, for splitting very different ranges quickly.
+     * @param forward the furthest x reached on each diagonal.
+     * @param offset the index of diagonal 0.
+     * @param d the number of edits searched.
+     * @param n the length of the first range.
+     * @param m the length of the second range.
+     * @return the split point relative to the ranges' starts, or null if
+     *         no point inside the ranges was reached.
+     */
+    private static int[] furthest(int[] forward, int offset, int d,
+                                  int n, int m) {
+        int[] best = null;
+        for (int k = -d; k <= d; k += 2) {
+            int x = forward[offset + k];
+            int y = x - k;
+            if (x >= 0 && x <= n && y >= 0 && y <= m
+                    && x + y > 0 && x + y < n + m
+                    && (best == null || x + y > best[0] + best[1])) {
+                best = new int[] {x, y};
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Appends an edit, joining it to the last one if they touch.
+     * @param edits the edits.
+     * @param aLo the first replaced line.
+     * @param aHi the line after the last replaced line.
+     * @param bLo the first replacing line.
+     * @param bHi the line after the last replacing line.
+     */
+    private static void add(List<Edit> edits, int aLo, int aHi,
+                            int bLo, int bHi) {
+        if (!edits.isEmpty()) {
+            Edit last = edits.get(edits.size() - 1);
+            if (last.endA == aLo && last.endB == bLo) {
+                edits.set(edits.size() - 1,
+                        new Edit(last.beginA, aHi, last.beginB, bHi));
+                return;
+            }
+        }
+        edits.add(new Edit(aLo, aHi, bLo, bHi));
+    }
+
+    /**
+     * The occurrences of lines in the region of the first sequence being
+     * split by a histogram diff, as chains of positions by line number.
+     */
+    private static class Histogram {
+        /**
+         * The first sequence.
+         */
+        private final int[] a;
+        /**
+         * The second sequence.
+         */
+        private final int[] b;
+        /**
+         * The first position of each line in the region, or -1.
+         */
+        private final int[] heads;
+        /**
+         * The next position of the line at each position, or -1.
+         */
+        private final int[] next;
+        /**
+         * The occurrences of each line in the region.
+         */
+        private final int[] counts;
+
+        /**
+         * Prepares to diff two sequences.
+         * @param a0 the first sequence.
+         * @param b0 the second sequence.
+         */
+        Histogram(int[] a0, int[] b0) {
+            this.a = a0;
+            this.b = b0;
+            int max = 0;
+            for (int line : a0) {
+                max = Math.max(max, line + 1);
+            }
+            for (int line : b0) {
+                max = Math.max(max, line + 1);
+            }
+            this.heads = new int[max];
+            this.counts = new int[max];
+            this.next = new int[a0.length];
+            Arrays.fill(heads, -1);
+        }
+
+        /**
+         * Diffs ranges of the sequences.
+         * @param aLo the start of the first range.
+         * @param aHi the end of the first range.
+         * @param bLo the start of the second range.
+         * @param bHi the end of the second range.
+         * @param depth the number of splits above the ranges.
+         * @param edits receives the edits, in order.
+         */
+        void diff(int aLo, int aHi, int bLo, int bHi, int depth,
+                  List<Edit> edits) {
+            while (true) {
+                while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+                    aLo += 1;
+                    bLo += 1;
+                }
+                while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+                    aHi -= 1;
+                    bHi -= 1;
+                }
+                if (aLo == aHi || bLo == bHi) {
+                    if (aLo < aHi || bLo < bHi) {
+                        add(edits, aLo, aHi, bLo, bHi);
+                    }
+                    return;
+                }
+                int[] run = depth < MAX_DEPTH
+                        ? longestRun(aLo, aHi, bLo, bHi) : null;
+                if (run == null) {
+                    Diff.diff(a, aLo, aHi, b, bLo, bHi, edits);
+                    return;
+                }
+                if (run.length == 0) {
+                    add(edits, aLo, aHi, bLo, bHi);
+                    return;
+                }
+                diff(aLo, run[0], bLo, run[1], depth + 1, edits);
+                aLo = run[2];
+                bLo = run[3];
+                depth += 1;
+            }
+        }
+
+        /**
+         * Finds the common run of lines to split ranges at: the one whose
+         * rarest line occurs fewest times in the first range, and the
+         * longest among those.
+         * @param aLo the start of the first range.
+         * @param aHi the end of the first range.
+         * @param bLo the start of the second range.
+         * @param bHi the end of the second range.
+         * @return the start in a, start in b, end in a and end in b of the
+         *         run, empty if the ranges have no line in common, or null
+         *         if every common line is too frequent.
+         */
+        private int[] longestRun(int aLo, int aHi, int bLo, int bHi) {
+            for (int i = aHi - 1; i >= aLo; i--) {
+                next[i] = heads[a[i]];
+                heads[a[i]] = i;
+                counts[a[i]] += 1;
+            }
+            int[] best = null;
+            int bestCount = MAX_CHAIN;
+            boolean common = false;
+            for (int j = bLo; j < bHi;) {
+                int line = b[j];
+                int nextJ = j + 1;
+                common |= counts[line] > 0;
+                if (counts[line] > 0 && counts[line] <= bestCount) {
+                    for (int i = heads[line]; i != -1; i = next[i]) {
+                        int aStart = i;
+                        int bStart = j;
+                        int aEnd = i + 1;
+                        int bEnd = j + 1;
+                        int low = counts[line];
+                        while (aStart > aLo && bStart > bLo
+                                && a[aStart - 1] == b[bStart - 1]) {
+                            aStart -= 1;
+                            bStart -= 1;
+                            low = Math.min(low, counts[a[aStart]]);
+                        }
+                        while (aEnd < aHi && bEnd < bHi
+                                && a[aEnd] == b[bEnd]) {
+                            low = Math.min(low, counts[a[aEnd]]);
+                            aEnd += 1;
+                            bEnd += 1;
+                        }
+                        if (best == null || low < bestCount
+                                || aEnd - aStart > best[2] - best[0]) {
+                            best = new int[] {aStart, bStart, aEnd, bEnd};
+                            bestCount = low;
+                        }
+                        nextJ = Math.max(nextJ, bEnd);
+                    }
+                }
+                j = nextJ;
+            }
+            for (int i = aLo; i < aHi; i++) {
+                heads[a[i]] = -1;
+                counts[a[i]] = 0;
+            }
+            if (best == null) {
+                return common ? null : new int[0];
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes file differences in the unified format of git diff. Each file
+ * gets a header naming its old and new versions, followed by hunks of
+ * changed lines with three lines of context; changes closer than twice
+ * the context share a hunk.
+ *
+ * @author Charlie Zhou
+ */
+public class DiffFormatter {
+    /**
+     * The lines of context around changes.
+     */
+    private static final int CONTEXT = 3;
+    /**
+     * The name of a missing version.
+     */
+    private static final String NONE = "/dev/null";
+
+    /**
+     * The stream.
+     */
+    private final OutputStream out;
+
+    /**
+     * Creates a formatter.
+     * @param out0 the stream, written to as files are formatted.
+     */
+    public DiffFormatter(OutputStream out0) {
+        this.out = out0;
+    }
+
+    /**
+     * Writes the differences between two versions of a file.
+     * @param name the file's name, relative to the working directory.
+     * @param a the old version, null if the file was added.
+     * @param b the new version, null if the file was removed.
+     */
+    public void format(String name, Text a, Text b) {
+        try {
+            print("diff --git a/" + name + " b/" + name + "\n");
+            if (a == null) {
+                print("new file\n");
+            } else if (b == null) {
+                print("deleted file\n");
+            }
+            Text oldText = a == null ? new Text(new byte[0]) : a;
+            Text newText = b == null ? new Text(new byte[0]) : b;
+            if (oldText.isBinary() || newText.isBinary()) {
+                print("Binary files " + (a == null ? NONE : "a/" + name)
+                        + " and " + (b == null ? NONE : "b/" + name)
+                        + " differ\n");
+                return;
+            }
+            print("--- " + (a == null ? NONE : "a/" + name) + "\n");
+            print("+++ " + (b == null ? NONE : "b/" + name) + "\n");
+            List<Diff.Edit> edits = Diff.histogram(oldText, newText);
+            for (int first = 0; first < edits.size();) {
+                int last = first;
+                while (last + 1 < edits.size() && edits.get(last + 1).beginA()
+                        - edits.get(last).endA() <= 2 * CONTEXT) {
+                    last += 1;
+                }
+                hunk(oldText, newText, edits.subList(first, last + 1));
+                first = last + 1;
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Writes a hunk.
+     * @param a the old version.
+     * @param b the new version.
+     * @param edits the edits in the hunk.
+     * @throws IOException if writing fails.
+     */
+    private void hunk(Text a, Text b, List<Diff.Edit> edits)
+            throws IOException {
+        Diff.Edit head = edits.get(0);
+        Diff.Edit tail = edits.get(edits.size() - 1);
+        int aStart = Math.max(0, head.beginA() - CONTEXT);
+        int aEnd = Math.min(a.size(), tail.endA() + CONTEXT);
+        int bStart = head.beginB() - (head.beginA() - aStart);
+        int bEnd = tail.endB() + (aEnd - tail.endA());
+        print("@@ -" + range(aStart, aEnd - aStart)
+                + " +" + range(bStart, bEnd - bStart) + " @@\n");
+        int next = aStart;
+        for (Diff.Edit edit : edits) {
+            lines(' ', a, next, edit.beginA());
+            lines('-', a, edit.beginA(), edit.endA());
+            lines('+', b, edit.beginB(), edit.endB());
+            next = edit.endA();
+        }
+        lines(' ', a, next, aEnd);
+    }
+
+    /**
+     * Writes lines with a prefix, noting a last line without a newline.
+     * @param prefix the prefix.
+     * @param text the text.
+     * @param from the first line.
+     * @param to the line after the last.
+     * @throws IOException if writing fails.
+     */
+    private void lines(char prefix, Text text, int from, int to)
+            throws IOException {
+        for (int i = from; i < to; i++) {
+            out.write(prefix);
+            text.write(out, i, i + 1);
+        }
+        if (from < to && to == text.size() && !text.endsWithNewline()) {
+            print("\n\\ No newline at end of file\n");
+        }
+    }
+
+    /**
+     * @param start the first line, counting from 0.
+     * @param count the number of lines.
+     * @return the range as written in a hunk header.
+     */
+    private static String range(int start, int count) {
+        if (count == 1) {
+            return Integer.toString(start + 1);
+        }
+        return (count == 0 ? start : start + 1) + "," + count;
+    }
+
+    /**
+     * Writes a string.
+     * @param s the string.
+     * @throws IOException if writing fails.
+     */
+    private void print(String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,139 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stat data of a working file as recorded in the index: its size,
+ * modification time and file key (inode on Unix). A file whose stat data
+ * still matches is taken to be unchanged without reading it.
+ *
+ * @author Charlie Zhou
+ */
+public class FileStat {
+    /**
+     * Files modified more recently than this, in nanoseconds, are not
+     * trusted since a later write may keep the same timestamp.
+     */
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * The size.
+     */
+    private final long size;
+    /**
+     * The modification time in nanoseconds.
+     */
+    private final long modified;
+    /**
+     * The file key, empty if not supported.
+     */
+    private final String key;
+
+    /**
+     * Creates a stat.
+     * @param size0 the size.
+     * @param modified0 the modification time.
+     * @param key0 the file key.
+     */
+    private FileStat(long size0, long modified0, String key0) {
+        this.size = size0;
+        this.modified = modified0;
+        this.key = key0;
+    }
+
+    /**
+     * Reads the stat data of a file.
+     * @param file the file.
+     * @return the stat, or null if the file does not exist.
+     */
+    public static FileStat of(Path file) {
+        try {
+            BasicFileAttributes attributes =
+                    Files.readAttributes(file, BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+            return new FileStat(attributes.size(),
+                    attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    fileKey == null ? "" : fileKey.toString());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the size.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return whether the file was modified too recently to be trusted.
+     */
+    public boolean racy() {
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        return now - modified < RACY_NANOS;
+    }
+
+    /**
+     * Writes the stat to a stream as varints.
+     * @param out the stream.
+     * @throws IOException the IOException.
+     */
+    public void write(OutputStream out) throws IOException {
+        IO.writeVarint(out, size);
+        IO.writeVarint(out, modified);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        IO.writeVarint(out, keyBytes.length);
+        out.write(keyBytes);
+    }
+
+    /**
+     * Reads a stat written by write.
+     * @param in the buffer.
+     * @return the stat.
+     */
+    public static FileStat read(ByteBuffer in) {
+        long size = IO.readVarint(in);
+        long modified = IO.readVarint(in);
+        byte[] keyBytes = new byte[(int) IO.readVarint(in)];
+        in.get(keyBytes);
+        return new FileStat(size, modified,
+                new String(keyBytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a stat written by Java serialization, as before the binary
+     * index format.
+     * @param s the stream.
+     * @return the stat.
+     * @throws IOException the IOException.
+     */
+    public static FileStat readSerialized(ObjectInputStream s)
+            throws IOException {
+        return new FileStat(s.readLong(), s.readLong(), s.readUTF());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FileStat)) {
+            return false;
+        }
+        FileStat other = (FileStat) o;
+        return size == other.size && modified == other.modified
+                && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(size, modified, key);
+    }
+}
@@ -1,10 +1,52 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
- * The file store.
+ * The file store. Blobs are deflated at rest. A new version of a file
+ * may be stored as a delta against the previous version of the same
+ * path; delta chains are capped so that reading stays cheap, and recently
+ * materialized bases are cached.
+ *
+ * Each stored blob starts with a header of MAGIC and a type byte. A
+ * delta blob then holds the raw hash of its base and its chain depth.
+ * Blobs written before this format have no header and are read as is.
+ * Such a raw blob may itself start with MAGIC, so in a repository that
+ * may hold any, that is one not marked by HEADERS_FILE when initialized,
+ * a blob with a header is read as raw if its stored bytes hash to its
+ * name, as only a raw blob's do.
+ *
+ * Files of at least CHUNK_THRESHOLD bytes are split into chunks at points
+ * chosen by their content (see Chunker), and stored as a chunked blob
+ * listing its chunks: their number, then the raw hash and length of
+ * each. Chunks are deflated in a store of their own and shared by every
+ * blob holding them, so a version that appends to or inserts into a
+ * large file only stores the chunks around the change.
  *
  * @author Charlie Zhou
  */
@@ -14,16 +56,154 @@ public class FileStore {
      */
     private static final String BLOBS = "blobs";
     /**
-     * the blob dir.
+     * The trees folder name.
+     */
+    private static final String TREES = "trees";
+    /**
+     * The chunks folder name.
+     */
+    private static final String CHUNKS = "chunks";
+    /**
+     * The packs folder name.
+     */
+    static final String PACKS = "packs";
+    /**
+     * The folder of checked out blobs that working files link to.
      */
-    private final Path blobDir;
+    static final String CHECKOUT = "checkout";
+    /**
+     * The file marking a repository whose blobs all have headers.
+     */
+    static final String HEADERS_FILE = "blob-headers";
+    /**
+     * The leading bytes of a blob with a header.
+     */
+    private static final byte[] MAGIC = {'g', 'l', 'b', 1};
+    /**
+     * The type of a blob holding the whole deflated content.
+     */
+    private static final int FULL = 0;
+    /**
+     * The type of a blob holding a deflated delta.
+     */
+    private static final int DELTA = 1;
+    /**
+     * The type of a blob listing its chunks.
+     */
+    private static final int CHUNKED = 2;
+    /**
+     * The longest delta chain, set by the gitlet.delta.depth property.
+     */
+    private static final int MAX_DEPTH =
+            Integer.getInteger("gitlet.delta.depth", 10);
+    /**
+     * Files larger than this are never deltified, so that storing them
+     * is streamed.
+     */
+    private static final long DELTA_LIMIT = 128L << 20;
+    /**
+     * Files this large or larger are chunked, set by the
+     * gitlet.chunk.threshold property.
+     */
+    private static final long CHUNK_THRESHOLD =
+            Long.getLong("gitlet.chunk.threshold", 1L << 20);
+    /**
+     * The bytes of materialized bases kept in the cache.
+     */
+    private static final long CACHE_LIMIT = 64L << 20;
+    /**
+     * The number of stored trees kept so that commits read in one run
+     * share their unchanged directories.
+     */
+    private static final int TREE_CACHE_LIMIT = 1 << 16;
+
+    /**
+     * The working directory.
+     */
+    private final Path workingDir;
+    /**
+     * The blob objects.
+     */
+    private final ObjectStore blobs;
+    /**
+     * The tree objects.
+     */
+    private final ObjectStore trees;
+    /**
+     * The chunks of chunked blobs.
+     */
+    private final ObjectStore chunks;
+    /**
+     * The folder of read-only blob contents that checked out files are
+     * hard links to, or null to copy files instead. Set by the
+     * gitlet.checkout.link property.
+     */
+    private final Path checkoutDir;
+    /**
+     * The file marking that every blob has a header.
+     */
+    private final Path headersFile;
+    /**
+     * Whether the store may hold raw blobs written before headers.
+     */
+    private boolean legacy;
+    /**
+     * Whether each blob with a header was found raw, for a legacy store.
+     */
+    private final Map<String, Boolean> raw = new ConcurrentHashMap<>();
+    /**
+     * Recently materialized blobs, least recently used first.
+     */
+    private final LinkedHashMap<String, byte[]> cache =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The bytes held by the cache.
+     */
+    private long cacheSize;
+    /**
+     * Recently used stored trees, least recently used first.
+     */
+    private final LinkedHashMap<String, Tree> treeCache =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, Tree> eldest) {
+                    return size() > TREE_CACHE_LIMIT;
+                }
+            };
 
     /**
      * Create a file store.
-     * @param workingDir the working directory.
+     * @param workingDir0 the working directory.
+     */
+    public FileStore(Path workingDir0) {
+        this.workingDir = workingDir0;
+        Path gitletDir = workingDir0.resolve(Gitlet.GITLET_DIR);
+        this.blobs = new ObjectStore(gitletDir.resolve(BLOBS),
+                gitletDir.resolve(PACKS).resolve(BLOBS));
+        this.trees = new ObjectStore(gitletDir.resolve(TREES),
+                gitletDir.resolve(PACKS).resolve(TREES));
+        this.chunks = new ObjectStore(gitletDir.resolve(CHUNKS),
+                gitletDir.resolve(PACKS).resolve(CHUNKS));
+        this.checkoutDir = Boolean.getBoolean("gitlet.checkout.link")
+                ? gitletDir.resolve(CHECKOUT) : null;
+        this.headersFile = gitletDir.resolve(HEADERS_FILE);
+        this.legacy = Files.notExists(headersFile);
+    }
+
+    /**
+     * Marks a new store, whose blobs all have headers.
+     */
+    public void init() {
+        IO.writeString(headersFile, "");
+        legacy = false;
+    }
+
+    /**
+     * @return the working directory.
      */
-    public FileStore(Path workingDir) {
-        this.blobDir = workingDir.resolve(Gitlet.GITLET_DIR).resolve(BLOBS);
+    public Path workingDir() {
+        return workingDir;
     }
 
     /**
@@ -32,26 +212,593 @@ public class FileStore {
      * @return the hash.
      */
     public String putFile(Path file) {
+        return putFile(file, null);
+    }
+
+    /**
+     * Puts a file into the store, chunked if large, or else as a delta
+     * against a previous version when that is worthwhile.
+     * @param file the file.
+     * @param baseHash the hash of the previous version, may be null.
+     * @return the hash.
+     */
+    public String putFile(Path file, String baseHash) {
         String hash = Utils.fileHash(file);
-        Path hashFile = blobDir.resolve(hash);
-        if (Files.notExists(hashFile)) {
-            IO.copyFile(file, hashFile);
+        if (blobs.contains(hash)) {
+            return hash;
+        }
+        if (IO.size(file) >= CHUNK_THRESHOLD) {
+            putChunked(file, hash);
+            return hash;
+        }
+
+        Path target = blobs.newLooseFile();
+        int depth = baseHash == null || !blobs.contains(baseHash)
+                ? MAX_DEPTH + 1 : depth(baseHash) + 1;
+        if (depth <= MAX_DEPTH && IO.size(file) <= DELTA_LIMIT) {
+            byte[] content = readAll(file);
+            byte[] delta = Delta.create(materialize(baseHash), content);
+            if (delta.length < content.length / 2) {
+                try (OutputStream out = IO.newOutputStream(target)) {
+                    out.write(MAGIC);
+                    out.write(DELTA);
+                    out.write(Utils.hexToBytes(baseHash));
+                    IO.writeVarint(out, depth);
+                    deflate(new ByteArrayInputStream(delta), out);
+                } catch (IOException e) {
+                    throw new GitletException(e);
+                }
+                blobs.putLoose(target, hash);
+                return hash;
+            }
         }
 
+        try (OutputStream out = IO.newOutputStream(target);
+             InputStream in = Files.newInputStream(file)) {
+            out.write(MAGIC);
+            out.write(FULL);
+            deflate(in, out);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        blobs.putLoose(target, hash);
         return hash;
     }
 
     /**
-     * Gets a file from the store.
+     * Stores a file as chunks, each unless already stored, and a blob
+     * listing them.
+     * @param file the file.
+     * @param hash the file's hash.
+     */
+    private void putChunked(Path file, String hash) {
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        int count = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            Chunker chunker = new Chunker(in);
+            for (byte[] chunk = chunker.next(); chunk != null;
+                 chunk = chunker.next()) {
+                String chunkHash = Utils.sha1(List.of(chunk));
+                if (!chunks.contains(chunkHash)) {
+                    Path temp = chunks.newLooseFile();
+                    try (OutputStream out = IO.newOutputStream(temp)) {
+                        deflate(new ByteArrayInputStream(chunk), out);
+                    }
+                    chunks.putLoose(temp, chunkHash);
+                }
+                list.write(Utils.hexToBytes(chunkHash));
+                IO.writeVarint(list, chunk.length);
+                count += 1;
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+
+        Path target = blobs.newLooseFile();
+        try (OutputStream out = IO.newOutputStream(target)) {
+            out.write(MAGIC);
+            out.write(CHUNKED);
+            IO.writeVarint(out, count);
+            list.writeTo(out);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        blobs.putLoose(target, hash);
+    }
+
+    /**
+     * Opens a file from the store, whether loose or packed.
+     * @param hash the hash.
+     * @return the file's content.
+     */
+    public InputStream openFile(String hash) {
+        synchronized (cache) {
+            byte[] cached = cache.get(hash);
+            if (cached != null) {
+                return new ByteArrayInputStream(cached);
+            }
+        }
+        InputStream in = openBlob(hash);
+        try {
+            int type = readHeader(in, hash);
+            if (type == FULL) {
+                return new InflaterInputStream(in);
+            } else if (type == DELTA) {
+                in.close();
+                return new ByteArrayInputStream(materialize(hash));
+            } else if (type == CHUNKED) {
+                Iterator<String> list = readChunks(in).iterator();
+                in.close();
+                return new SequenceInputStream(new Enumeration<>() {
+                    @Override
+                    public boolean hasMoreElements() {
+                        return list.hasNext();
+                    }
+
+                    @Override
+                    public InputStream nextElement() {
+                        return openChunk(list.next());
+                    }
+                });
+            }
+            return in;
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Copies a file from the store.
+     * @param hash the hash.
+     * @param to the destination.
+     */
+    public void copyFile(String hash, Path to) {
+        IO.copyFile(openFile(hash), to);
+    }
+
+    /**
+     * Writes a stored file into the working directory. When linking is
+     * on, the file is a hard link to a read-only copy of the blob kept
+     * for checkouts, so a file checked out again and again is written
+     * once. The copy is linked to at most one working file, so editing
+     * a file in place never changes another, and is checked against its
+     * hash first, replacing it if such an edit changed it. A file whose
+     * copy is already linked, or where links are not supported, is
+     * copied.
+     * @param hash the hash.
+     * @param to the working file.
+     */
+    public void checkoutFile(String hash, Path to) {
+        if (checkoutDir == null) {
+            copyFile(hash, to);
+            return;
+        }
+        Path linked = checkoutDir.resolve(hash);
+        try {
+            if (Files.exists(linked)
+                    && !hash.equals(Utils.fileHash(linked))) {
+                Files.delete(linked);
+            }
+            if (!Files.exists(linked)) {
+                Files.createDirectories(checkoutDir);
+                Path temp = Files.createTempFile(checkoutDir, ".tmp-", "");
+                copyFile(hash, temp);
+                temp.toFile().setReadOnly();
+                IO.move(temp, linked);
+            }
+            Files.createDirectories(to.getParent());
+            Files.deleteIfExists(to);
+            if ((Integer) Files.getAttribute(linked, "unix:nlink") > 1) {
+                copyFile(hash, to);
+            } else {
+                Files.createLink(to, linked);
+            }
+        } catch (IOException | UnsupportedOperationException
+                 | IllegalArgumentException e) {
+            copyFile(hash, to);
+        }
+    }
+
+    /**
+     * Puts a tree into the store.
+     * @param content the encoded tree.
+     * @return the hash.
+     */
+    public String putTree(byte[] content) {
+        String hash = Utils.sha1(List.of(content));
+        if (!trees.contains(hash)) {
+            Path temp = trees.newLooseFile();
+            try {
+                Files.write(temp, content);
+            } catch (IOException e) {
+                throw new GitletException(e);
+            }
+            trees.putLoose(temp, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Refers to a stored tree, reusing the tree already read for the same
+     * hash.
+     * @param hash the hash.
+     * @return the tree, read when first needed.
+     */
+    public Tree tree(String hash) {
+        synchronized (treeCache) {
+            return treeCache.computeIfAbsent(hash,
+                key -> new Tree(this, key));
+        }
+    }
+
+    /**
+     * Opens a tree from the store.
+     * @param hash the hash.
+     * @return the encoded tree.
+     */
+    public InputStream openTree(String hash) {
+        InputStream in = trees.open(hash);
+        if (in == null) {
+            throw Utils.error("Tree %s does not exist.", hash);
+        }
+        return in;
+    }
+
+    /**
+     * @param hash a blob hash.
+     * @return whether the blob is stored.
+     */
+    public boolean containsBlob(String hash) {
+        return blobs.contains(hash);
+    }
+
+    /**
+     * @param hash a tree hash.
+     * @return whether the tree is stored.
+     */
+    public boolean containsTree(String hash) {
+        return trees.contains(hash);
+    }
+
+    /**
+     * @param hash a blob hash.
+     * @return the hashes of the chunks of the blob, empty unless it is
+     * chunked.
+     */
+    public List<String> chunks(String hash) {
+        try (InputStream in = openBlob(hash)) {
+            if (readHeader(in, hash) != CHUNKED) {
+                return List.of();
+            }
+            return readChunks(in);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * @param hash a blob hash.
+     * @return the hash of the base the blob is a delta against, or null if
+     * the blob is whole.
+     */
+    public String deltaBase(String hash) {
+        try (InputStream in = openBlob(hash)) {
+            if (readHeader(in, hash) != DELTA) {
+                return null;
+            }
+            return Utils.bytesToHex(in.readNBytes(Utils.UID_LENGTH / 2));
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Flushes the blobs and trees added since the last sync to disk.
+     */
+    public void sync() {
+        chunks.sync();
+        blobs.sync();
+        trees.sync();
+    }
+
+    /**
+     * Copies blobs and trees from another store as they are stored there,
+     * the chunks of chunked blobs that this store lacks first and trees
+     * last, so that stored objects only refer to stored objects.
+     * @param from the other store.
+     * @param blobHashes the blobs, each after its delta base.
+     * @param treeHashes the trees, each after its subtrees.
+     */
+    public void copyFrom(FileStore from, Collection<String> blobHashes,
+                         Collection<String> treeHashes) {
+        if (from.legacy && !legacy && !blobHashes.isEmpty()) {
+            IO.deleteIfExists(headersFile);
+            legacy = true;
+        }
+        Set<String> chunkHashes = new LinkedHashSet<>();
+        for (String hash : blobHashes) {
+            for (String chunk : from.chunks(hash)) {
+                if (!chunks.contains(chunk)) {
+                    chunkHashes.add(chunk);
+                }
+            }
+        }
+        chunks.copyFrom(from.chunks, chunkHashes);
+        blobs.copyFrom(from.blobs, blobHashes);
+        trees.copyFrom(from.trees, treeHashes);
+    }
+
+    /**
+     * @return the hashes of all blobs.
+     */
+    public Set<String> blobHashes() {
+        return blobs.hashes();
+    }
+
+    /**
+     * @return the hashes of all chunks.
+     */
+    public Set<String> chunkHashes() {
+        return chunks.hashes();
+    }
+
+    /**
+     * @return the hashes of all trees.
+     */
+    public Set<String> treeHashes() {
+        return trees.hashes();
+    }
+
+    /**
+     * Deletes the blobs, trees and chunks not kept, rewriting the packs
+     * that hold any.
+     * @param keepBlob whether to keep a blob, given its hash.
+     * @param keepTree whether to keep a tree, given its hash.
+     * @param keepChunk whether to keep a chunk, given its hash.
+     * @return the bytes reclaimed.
+     */
+    public long retain(Predicate<String> keepBlob,
+                       Predicate<String> keepTree,
+                       Predicate<String> keepChunk) {
+        return blobs.retain(keepBlob) + trees.retain(keepTree)
+                + chunks.retain(keepChunk);
+    }
+
+    /**
+     * Deletes the checked out blobs not kept, whatever the
+     * gitlet.checkout.link property. Working files linked to them keep
+     * their content.
+     * @param keep whether to keep a checked out blob, given its hash.
+     * @return the bytes reclaimed.
+     */
+    public long pruneCheckouts(Predicate<String> keep) {
+        Path dir = workingDir.resolve(Gitlet.GITLET_DIR).resolve(CHECKOUT);
+        if (Files.notExists(dir)) {
+            return 0;
+        }
+        List<Path> garbage;
+        try (Stream<Path> files = IO.walk(dir)) {
+            garbage = files.filter(file -> !Files.isDirectory(file))
+                    .filter(file -> {
+                        String name = file.getFileName().toString();
+                        return name.startsWith(".") || !keep.test(name);
+                    })
+                    .collect(Collectors.toList());
+        }
+        long reclaimed = 0;
+        for (Path file : garbage) {
+            reclaimed += IO.size(file);
+            IO.deleteIfExists(file);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Moves loose blobs, trees and chunks into pack files.
+     * @return the number of objects packed.
+     */
+    public int pack() {
+        return chunks.pack() + blobs.pack() + trees.pack();
+    }
+
+    /**
+     * Reads a blob's whole content, resolving deltas through the cache.
      * @param hash the hash.
-     * @return the file's path.
+     * @return the content.
      */
-    public Path getFile(String hash) {
-        Path hashFile = blobDir.resolve(hash);
-        if (Files.notExists(hashFile)) {
+    private byte[] materialize(String hash) {
+        synchronized (cache) {
+            byte[] cached = cache.get(hash);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] content = null;
+        try (InputStream in = openBlob(hash)) {
+            int type = readHeader(in, hash);
+            if (type == DELTA) {
+                String base = Utils.bytesToHex(
+                        in.readNBytes(Utils.UID_LENGTH / 2));
+                IO.readVarint(in);
+                content = Delta.apply(materialize(base), inflate(in));
+            } else if (type == FULL) {
+                content = inflate(in);
+            } else if (type != CHUNKED) {
+                content = in.readAllBytes();
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        if (content == null) {
+            try (InputStream chunked = openFile(hash)) {
+                content = chunked.readAllBytes();
+            } catch (IOException e) {
+                throw new GitletException(e);
+            }
+        }
+        remember(hash, content);
+        return content;
+    }
+
+    /**
+     * Reads the delta chain depth of a blob.
+     * @param hash the hash.
+     * @return the depth, zero for a whole blob, or MAX_DEPTH for a
+     * chunked blob, which is too large to be a base.
+     */
+    private int depth(String hash) {
+        try (InputStream in = openBlob(hash)) {
+            int type = readHeader(in, hash);
+            if (type == CHUNKED) {
+                return MAX_DEPTH;
+            } else if (type != DELTA) {
+                return 0;
+            }
+            in.skipNBytes(Utils.UID_LENGTH / 2);
+            return (int) IO.readVarint(in);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Adds a blob to the cache, evicting the least recently used ones.
+     * @param hash the hash.
+     * @param content the content.
+     */
+    private void remember(String hash, byte[] content) {
+        if (content.length > CACHE_LIMIT / 4) {
+            return;
+        }
+        synchronized (cache) {
+            if (cache.put(hash, content) == null) {
+                cacheSize += content.length;
+            }
+            var eldest = cache.entrySet().iterator();
+            while (cacheSize > CACHE_LIMIT && eldest.hasNext()) {
+                Map.Entry<String, byte[]> entry = eldest.next();
+                cacheSize -= entry.getValue().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Opens the stored bytes of a blob.
+     * @param hash the hash.
+     * @return the stream, able to mark its header.
+     */
+    private InputStream openBlob(String hash) {
+        InputStream in = blobs.open(hash);
+        if (in == null) {
+            throw Utils.error("File does not exist.");
+        }
+        return new BufferedInputStream(in);
+    }
+
+    /**
+     * Opens a chunk.
+     * @param hash the hash.
+     * @return the chunk's content.
+     */
+    private InputStream openChunk(String hash) {
+        InputStream in = chunks.open(hash);
+        if (in == null) {
             throw Utils.error("File does not exist.");
         }
+        return new InflaterInputStream(in);
+    }
 
-        return hashFile;
+    /**
+     * Reads the list of chunks of a chunked blob.
+     * @param in the blob, positioned after its header.
+     * @return the hashes of the chunks, in order.
+     * @throws IOException the IOException.
+     */
+    private static List<String> readChunks(InputStream in)
+            throws IOException {
+        int count = (int) IO.readVarint(in);
+        List<String> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(Utils.bytesToHex(
+                    in.readNBytes(Utils.UID_LENGTH / 2)));
+            IO.readVarint(in);
+        }
+        return list;
+    }
+
+    /**
+     * Reads the header of a blob, or rewinds if it has none.
+     * @param in the blob, positioned after the header on return.
+     * @param hash the blob's hash.
+     * @return the blob's type, or -1 for a blob without header.
+     * @throws IOException the IOException.
+     */
+    private int readHeader(InputStream in, String hash) throws IOException {
+        in.mark(MAGIC.length + 1);
+        byte[] magic = in.readNBytes(MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC) || legacy && isRaw(hash)) {
+            in.reset();
+            return -1;
+        }
+        return in.read();
+    }
+
+    /**
+     * @param hash the hash of a blob starting with MAGIC.
+     * @return whether the blob is raw, its stored bytes hashing to its
+     * name.
+     */
+    private boolean isRaw(String hash) {
+        return raw.computeIfAbsent(hash, h -> {
+            try (InputStream in = openBlob(h)) {
+                return h.equals(Utils.streamHash(in));
+            } catch (IOException e) {
+                throw new GitletException(e);
+            }
+        });
+    }
+
+    /**
+     * Deflates a stream into another.
+     * @param in the input.
+     * @param out the output, left open.
+     * @throws IOException the IOException.
+     */
+    private static void deflate(InputStream in, OutputStream out)
+            throws IOException {
+        Deflater deflater = new Deflater();
+        try {
+            DeflaterOutputStream deflated =
+                    new DeflaterOutputStream(out, deflater);
+            in.transferTo(deflated);
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflates the rest of a stream.
+     * @param in the input.
+     * @return the inflated bytes.
+     * @throws IOException the IOException.
+     */
+    private static byte[] inflate(InputStream in) throws IOException {
+        try (InputStream inflated = new InflaterInputStream(in)) {
+            return inflated.readAllBytes();
+        }
+    }
+
+    /**
+     * @param file the file.
+     * @return the file's content.
+     */
+    private static byte[] readAll(Path file) {
+        try {
+            return Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
     }
 }
@@ -2,14 +2,21 @@ package gitlet;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -17,15 +24,20 @@ import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Represents a Gitlet instance.
  *
  * @author Charlie Zhou
  */
-public class Gitlet {
+public class Gitlet implements AutoCloseable {
     /**
      * The gitlet dir.
      */
@@ -43,6 +55,10 @@ public class Gitlet {
      * The remote dir.
      */
     private static final String REMOTE_DIR = "remotes";
+    /**
+     * The dir of branches fetched from remotes.
+     */
+    private static final String REMOTE_BRANCH_DIR = "remote-branches";
     /**
      * The head.
      */
@@ -55,11 +71,47 @@ public class Gitlet {
      * The index.
      */
     private static final String STAGING_FILE = "index";
+    /**
+     * The commit graph.
+     */
+    private static final String GRAPH_FILE = "commit-graph";
+    /**
+     * The sorted index of commit hashes.
+     */
+    private static final String COMMIT_INDEX_FILE = "commit-index";
+    /**
+     * The filters of the paths each commit changes.
+     */
+    private static final String CHANGED_PATHS_FILE = "changed-paths";
+    /**
+     * The log of commits in the order they were made.
+     */
+    private static final String MESSAGES_FILE = "messages";
+    /**
+     * The index of commit messages.
+     */
+    private static final String MESSAGE_INDEX_FILE = "message-index";
 
     /**
      * The working directory.
      */
     private Path workingDir;
+    /**
+     * The blob store.
+     */
+    private FileStore fileStore;
+    /**
+     * The commit store.
+     */
+    private ObjectStore commitStore;
+    /**
+     * The commit graph, null until needed.
+     */
+    private CommitGraph commitGraph;
+    /**
+     * The commit log and message index, null until needed.
+     */
+    private MessageIndex messageIndex;
     /**
      * The active branch.
      */
@@ -69,7 +121,12 @@ public class Gitlet {
      */
     private List<Branch> branches = new LinkedList<>();
     /**
-     * The commit map.
+     * The branches fetched from remotes, named remote/branch.
+     */
+    private List<Branch> remoteBranches = new LinkedList<>();
+    /**
+     * The commits loaded so far, keyed by hash. Commits are faulted in
+     * by the commit resolver as the graph is walked.
      */
     private Map<String, Commit> commitMap = new HashMap<>();
 
@@ -90,6 +147,42 @@ public class Gitlet {
      * If the gitlet initialized.
      */
     private boolean initialized;
+    /**
+     * Commits created since the last save.
+     */
+    private List<Commit> unsavedCommits = new ArrayList<>();
+    /**
+     * Branches removed since the last save.
+     */
+    private Set<String> removedBranches = new HashSet<>();
+    /**
+     * Fetched branches removed since the last save.
+     */
+    private Set<String> removedRemoteBranches = new HashSet<>();
+    /**
+     * Whether the remotes changed since the last save.
+     */
+    private boolean remotesChanged;
+    /**
+     * Whether the staging area changed since the last save.
+     */
+    private boolean stagingChanged;
+    /**
+     * The head hash as last saved.
+     */
+    private String savedHead;
+    /**
+     * The active branch name as last saved.
+     */
+    private String savedBranch;
+    /**
+     * The repository lock held until closed, null if not locked.
+     */
+    private RepositoryLock lock;
+    /**
+     * The watcher of the working directory, or null to examine it all.
+     */
+    private Watcher watcher;
     /**
      * The commit resolver.
      */
@@ -102,33 +195,35 @@ public class Gitlet {
         @Override
         public Commit apply(String hash) {
             Commit commit = commitMap.get(hash);
-            if (commit != null) {
-                return commit;
+            if (commit == null) {
+                commit = peekCommit(hash);
+                commitMap.put(hash, commit);
             }
-
-            Path commitDir = workingDir
-                    .resolve(GITLET_DIR).resolve(COMMIT_DIR);
-
-            Path commitPath = commitDir.resolve(hash);
-            if (Files.notExists(commitPath)) {
-                throw Utils.error("No commit with that id exists.");
-            }
-
-            commit = IO.readCommit(commitPath,
-                    workingDir, commitResolver, hash);
-            commitMap.put(hash, commit);
             return commit;
         }
     };
 
     /**
-     * Create a gitlet.
+     * Create a gitlet, without locking the repository.
      * @param workingDir0 the working directory.
      */
     public Gitlet(Path workingDir0) {
+        this(workingDir0, null);
+    }
+
+    /**
+     * Create a gitlet.
+     * @param workingDir0 the working directory.
+     * @param lock0 the repository lock, taken before loading, or null.
+     */
+    private Gitlet(Path workingDir0, RepositoryLock lock0) {
         this.workingDir = workingDir0;
+        this.lock = lock0;
 
         Path gitletDir = workingDir0.resolve(GITLET_DIR);
+        this.fileStore = new FileStore(workingDir0);
+        this.commitStore = new ObjectStore(gitletDir.resolve(COMMIT_DIR),
+                gitletDir.resolve(FileStore.PACKS).resolve(COMMIT_DIR));
         initialized = Files.exists(gitletDir);
 
         if (initialized) {
@@ -136,6 +231,100 @@ public class Gitlet {
         }
     }
 
+    /**
+     * Opens a repository for one command, locking it until closed. A
+     * command that only reads shares the lock with others like it, and
+     * any other command waits to hold it alone. A reader still holds it
+     * alone if an update left by a stopped command must be recovered
+     * first. Caches readers build, such as the commit index, are written
+     * whole and renamed into place, so readers may build them together.
+     * @param workingDir0 the working directory.
+     * @param readOnly whether the command only reads the repository.
+     * @return the gitlet.
+     */
+    public static Gitlet open(Path workingDir0, boolean readOnly) {
+        Path gitletDir = workingDir0.resolve(GITLET_DIR);
+        if (!Files.exists(gitletDir)) {
+            return new Gitlet(workingDir0);
+        }
+        return load(workingDir0, lock(gitletDir, readOnly));
+    }
+
+    /**
+     * Opens the repository again for another command, as open does. The
+     * state loaded for the last command is kept if no command has written
+     * to the repository since, as the generation in the lock file tells,
+     * so a process running many commands reads the repository once.
+     * Otherwise, or if a stopped command left an update to recover, the
+     * repository is loaded again. The last command must have completed
+     * and closed this gitlet.
+     * @param readOnly whether the command only reads the repository.
+     * @return this gitlet, or a newly loaded one.
+     */
+    public Gitlet reopen(boolean readOnly) {
+        if (lock == null) {
+            return open(workingDir, readOnly);
+        }
+        Path gitletDir = workingDir.resolve(GITLET_DIR);
+        RepositoryLock next = lock(gitletDir, readOnly);
+        if (next.generation() != lock.generation()
+                || Journal.pending(gitletDir)) {
+            return load(workingDir, next);
+        }
+        lock = next;
+        return this;
+    }
+
+    /**
+     * Takes the lock of a repository for a command.
+     * @param gitletDir the gitlet directory.
+     * @param readOnly whether the command only reads the repository.
+     * @return the lock, held alone unless the command only reads and
+     * nothing needs recovery.
+     */
+    private static RepositoryLock lock(Path gitletDir, boolean readOnly) {
+        RepositoryLock lock = RepositoryLock.acquire(gitletDir, !readOnly);
+        if (readOnly && Journal.pending(gitletDir)) {
+            lock.close();
+            lock = RepositoryLock.acquire(gitletDir, true);
+        }
+        return lock;
+    }
+
+    /**
+     * Loads a repository under a lock, releasing the lock if that fails.
+     * @param workingDir0 the working directory.
+     * @param lock0 the lock.
+     * @return the gitlet.
+     */
+    private static Gitlet load(Path workingDir0, RepositoryLock lock0) {
+        try {
+            return new Gitlet(workingDir0, lock0);
+        } catch (RuntimeException e) {
+            lock0.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Uses a watcher of the working directory to find the working files
+     * and skip tracked files not changed since found unmodified.
+     * @param watcher0 the watcher, or null to examine every file.
+     */
+    public void watch(Watcher watcher0) {
+        this.watcher = watcher0;
+    }
+
+    /**
+     * Releases the repository lock, if held.
+     */
+    @Override
+    public void close() {
+        if (lock != null) {
+            lock.close();
+        }
+    }
+
     /**
      * The init.
      */
@@ -153,26 +342,30 @@ public class Gitlet {
             Files.createDirectory(gitletDir.resolve(COMMIT_DIR));
             Files.createDirectory(gitletDir.resolve(BRANCH_DIR));
             Files.createDirectory(gitletDir.resolve(REMOTE_DIR));
+            Files.createDirectory(gitletDir.resolve(REMOTE_BRANCH_DIR));
         } catch (IOException e) {
             throw new GitletException(e);
         }
+        fileStore.init();
 
         Commit init = new Commit(Instant.EPOCH,
-                "initial commit", new StagedFiles(workingDir));
+                "initial commit", new StagedFiles(fileStore));
         Branch master = new Branch(init, "master");
 
         this.initialized = true;
         this.active = master;
         this.head = init;
         this.branches.add(master);
-        this.commitMap.put(init.hash(), init);
-        this.stagedFiles = new StagedFiles(this.workingDir);
+        this.addCommit(init);
+        this.stagedFiles = new StagedFiles(fileStore);
+        this.stagingChanged = true;
+        this.remotesChanged = true;
 
         saveToFileSystem();
     }
 
     /**
-     * Add files to gitlet.
+     * Add files to gitlet. A directory adds every file under it.
      * @param files the files.
      */
     public void add(List<Path> files) {
@@ -180,14 +373,20 @@ public class Gitlet {
             throw Utils.error("Not in an initialized Gitlet directory.");
         }
 
+        List<Path> paths = new ArrayList<>(files.size());
         for (Path file : files) {
-            Path path = workingDir.resolve(file);
+            Path path = workingDir.resolve(file).normalize();
             if (Files.notExists(path)) {
                 throw Utils.error("File does not exist.");
             }
-
-            stagedFiles.addFile(path);
+            if (Files.isDirectory(path)) {
+                paths.addAll(IO.workingFiles(workingDir, path));
+            } else {
+                paths.add(path);
+            }
         }
+        stagedFiles.addFiles(paths);
+        stagingChanged = true;
         saveToFileSystem();
     }
 
@@ -214,11 +413,11 @@ public class Gitlet {
         }
 
         Commit commit = new Commit(Instant.now(),
-                List.of(head), message, stagedFiles);
+                List.of(head), message, stagedFiles.snapshot());
 
-        commitMap.put(commit.hash(), commit);
+        addCommit(commit);
         head = commit;
-        stagedFiles = new StagedFiles(this.workingDir, this.stagedFiles);
+        stagingChanged = true;
         active.setHead(commit);
 
         saveToFileSystem();
@@ -239,9 +438,10 @@ public class Gitlet {
             throw Utils.error("No reason to remove the file.");
         }
         stagedFiles.remove(path);
+        stagingChanged = true;
 
         if (tracked) {
-            IO.deleteIfExists(path);
+            IO.deleteWorkingFile(workingDir, path);
         }
         saveToFileSystem();
     }
@@ -251,87 +451,285 @@ public class Gitlet {
      * @return the log.
      */
     public List<Commit> log() {
+        List<Commit> commits = new ArrayList<>();
+        log(-1, null, null, commits::add);
+        return commits;
+    }
+
+    /**
+     * Streams the history of the head along first parents, newest first.
+     * Each commit is read when the walk reaches it and is not kept, so
+     * the walk ends as soon as a limit is met without touching the rest
+     * of the history. The log of a path follows the commit graph and
+     * reads only the commits whose changed-path filter may hold the path.
+     * @param limit the most commits to visit, negative for all.
+     * @param since the date of the oldest commit to visit, null for any.
+     *              The walk stops at the first commit made before it.
+     * @param path a file or directory, to visit only the commits that
+     *             change it from their first parent; null for all.
+     * @param action receives each commit.
+     */
+    public void log(int limit, Instant since, Path path,
+                    Consumer<Commit> action) {
         if (!initialized) {
             throw Utils.error("Not in an initialized Gitlet directory.");
         }
-        List<Commit> commits = new ArrayList<>();
+        Path file = path == null ? null : path.toAbsolutePath().normalize();
+        if (file != null && unsavedCommits.isEmpty()
+                && commitGraph().id(head.hash()) != CommitGraph.NONE) {
+            logPath(limit, since, file, action);
+            return;
+        }
         Commit current = head;
-        while (current != null) {
-            commits.add(current);
-            List<Commit> parents = current.parents();
-            if (parents == null || parents.isEmpty()) {
+        String hash = file == null ? null : head.stagedFiles().hashOf(file);
+        int visited = 0;
+        while (current != null && visited != limit
+                && (since == null || !current.date().isBefore(since))) {
+            List<String> parents = current.parentHashes();
+            Commit parent = parents.isEmpty()
+                    ? null : peekCommit(parents.get(0));
+            String parentHash = file == null || parent == null
+                    ? null : parent.stagedFiles().hashOf(file);
+            if (file == null || !Objects.equals(hash, parentHash)) {
+                action.accept(current);
+                visited += 1;
+            }
+            current = parent;
+            hash = parentHash;
+        }
+    }
+
+    /**
+     * Streams the commits of the head's first-parent history that change
+     * a path, walking the commit graph and skipping the commits whose
+     * filter rules the path out without reading them. Skipped commits
+     * are not dated either, so the walk stops at the first commit read
+     * that was made before since.
+     * @param limit the most commits to visit, negative for all.
+     * @param since the date of the oldest commit to visit, null for any.
+     * @param file the file or directory.
+     * @param action receives each commit.
+     */
+    private void logPath(int limit, Instant since, Path file,
+                         Consumer<Commit> action) {
+        CommitGraph graph = commitGraph();
+        ChangedPaths filters = changedPaths();
+        String name = relativeName(file);
+        int visited = 0;
+        for (int id = graph.id(head.hash()); id != CommitGraph.NONE
+                && visited != limit; id = graph.firstParent(id)) {
+            if (!filters.mayChange(id, name)) {
+                continue;
+            }
+            Commit commit = peekCommit(graph.hash(id));
+            if (since != null && commit.date().isBefore(since)) {
                 break;
             }
-            current = parents.get(0);
+            int parent = graph.firstParent(id);
+            String parentHash = parent == CommitGraph.NONE ? null
+                    : peekCommit(graph.hash(parent)).stagedFiles()
+                            .hashOf(file);
+            if (!Objects.equals(commit.stagedFiles().hashOf(file),
+                    parentHash)) {
+                action.accept(commit);
+                visited += 1;
+            }
         }
-        return commits;
     }
 
     /**
-     * Save the gitlet to file system.
+     * Opens the changed-path filters, adding those of the commits saved
+     * to the commit graph since they were last updated.
+     * @return the filters.
+     */
+    private ChangedPaths changedPaths() {
+        Path gitletDir = workingDir.resolve(GITLET_DIR);
+        return ChangedPaths.update(gitletDir.resolve(CHANGED_PATHS_FILE),
+                gitletDir.resolve(GRAPH_FILE), hash -> {
+                    Commit commit = peekCommit(hash);
+                    List<String> parents = commit.parentHashes();
+                    if (parents.isEmpty()) {
+                        return null;
+                    }
+                    Set<String> names = new HashSet<>();
+                    for (Path changed : peekCommit(parents.get(0))
+                            .stagedFiles()
+                            .changedFiles(commit.stagedFiles())) {
+                        for (Path path = changed; path != null
+                                && !path.equals(workingDir);
+                             path = path.getParent()) {
+                            names.add(relativeName(path));
+                        }
+                    }
+                    return names;
+                });
+    }
+
+    /**
+     * Gets a commit without keeping it, for walks over long histories.
+     * @param hash the hash.
+     * @return the commit, shared with the resolver if already read.
+     */
+    private Commit peekCommit(String hash) {
+        Commit commit = commitMap.get(hash);
+        if (commit != null) {
+            return commit;
+        }
+        InputStream in = commitStore.open(hash);
+        if (in == null) {
+            throw Utils.error("No commit with that id exists.");
+        }
+        return IO.readCommit(in, fileStore, commitResolver, hash);
+    }
+
+    /**
+     * Save the gitlet to file system. Only the state changed since the
+     * last save or load is written, so the cost is proportional to the
+     * command rather than to the history. New objects are flushed to disk
+     * first, and the branches, index and head are then replaced together
+     * through a journal, so a crash leaves either the old state or the
+     * new one.
      */
     public void saveToFileSystem() {
         Path gitletDir = workingDir.resolve(GITLET_DIR);
 
-        IO.writeString(gitletDir.resolve(HEAD_FILE), head.hash());
-        IO.writeString(gitletDir.resolve(BRANCH_FILE), active.name());
+        MessageIndex messages = unsavedCommits.isEmpty()
+                ? null : messageIndex();
+        for (Commit commit : unsavedCommits) {
+            Path temp = commitStore.newLooseFile();
+            IO.writeCommit(temp, commit);
+            commitStore.putLoose(temp, commit.hash());
+        }
+        fileStore.sync();
+        commitStore.sync();
+        if (messages != null) {
+            for (Commit commit : unsavedCommits) {
+                commitGraph().add(commit, commitResolver);
+            }
+            commitGraph().save();
+            messages.append(unsavedCommits);
+        }
+        unsavedCommits.clear();
 
+        Journal journal = new Journal(gitletDir);
         Path branchDir = gitletDir.resolve(BRANCH_DIR);
-        IO.walk(branchDir)
-                .filter(child -> !Files.isDirectory(child))
-                .forEach(IO::deleteIfExists);
+        for (String name : removedBranches) {
+            journal.delete(branchDir.resolve(name));
+        }
         for (Branch branch : branches) {
-            IO.writeBranch(branchDir.resolve(branch.name()), branch);
+            if (branch.changed()) {
+                journal.write(branchDir.resolve(branch.name()),
+                        branch.head().hash());
+            }
+        }
+        Path remoteBranchDir = gitletDir.resolve(REMOTE_BRANCH_DIR);
+        for (String name : removedRemoteBranches) {
+            journal.delete(remoteBranchDir.resolve(name));
+        }
+        for (Branch branch : remoteBranches) {
+            if (branch.changed()) {
+                journal.write(remoteBranchDir.resolve(branch.name()),
+                        branch.head().hash());
+            }
         }
+        if (remotesChanged) {
+            Path remoteDir = gitletDir.resolve(REMOTE_DIR);
+            IO.walk(remoteDir)
+                    .filter(child -> !Files.isDirectory(child))
+                    .forEach(journal::delete);
+            for (Map.Entry<String, Path> entry : remotes.entrySet()) {
+                String str = entry.getValue().normalize().toString();
+                journal.write(remoteDir.resolve(entry.getKey()), str);
+            }
+        }
+        if (stagingChanged) {
+            journal.write(gitletDir.resolve(STAGING_FILE),
+                    IO.encodeStaging(stagedFiles));
+        }
+        if (!head.hash().equals(savedHead)) {
+            journal.write(gitletDir.resolve(HEAD_FILE), head.hash());
+        }
+        if (!active.name().equals(savedBranch)) {
+            journal.write(gitletDir.resolve(BRANCH_FILE), active.name());
+        }
+        journal.commit();
+
+        removedBranches.clear();
+        removedRemoteBranches.clear();
+        for (Branch branch : branches) {
+            branch.markSaved();
+        }
+        for (Branch branch : remoteBranches) {
+            branch.markSaved();
+        }
+        remotesChanged = false;
+        stagingChanged = false;
+        savedHead = head.hash();
+        savedBranch = active.name();
+    }
 
-        Path commitDir = gitletDir.resolve(COMMIT_DIR);
-        for (Commit commit : commitMap.values()) {
-            IO.writeCommit(commitDir.resolve(commit.hash()), commit);
+    /**
+     * @return the commit graph, read on first use.
+     */
+    private CommitGraph commitGraph() {
+        if (commitGraph == null) {
+            commitGraph = new CommitGraph(
+                    workingDir.resolve(GITLET_DIR).resolve(GRAPH_FILE));
         }
+        return commitGraph;
+    }
 
-        Path remoteDir = gitletDir.resolve(REMOTE_DIR);
-        IO.walk(remoteDir)
-                .filter(child -> !Files.isDirectory(child))
-                .forEach(IO::deleteIfExists);
-        for (Map.Entry<String, Path> entry : remotes.entrySet()) {
-            String str = entry.getValue().normalize().toString();
-            IO.writeString(remoteDir.resolve(entry.getKey()), str);
+    /**
+     * @return the commit log and message index, rebuilt from the stored
+     * commits if the log is missing.
+     */
+    private MessageIndex messageIndex() {
+        if (messageIndex == null) {
+            Path gitletDir = workingDir.resolve(GITLET_DIR);
+            messageIndex = new MessageIndex(
+                    gitletDir.resolve(MESSAGES_FILE),
+                    gitletDir.resolve(MESSAGE_INDEX_FILE),
+                    fileStore, commitResolver);
+            if (!messageIndex.exists()) {
+                messageIndex.rebuild(commitStore.hashes().stream()
+                        .map(commitResolver)
+                        .collect(Collectors.toList()));
+            }
         }
+        return messageIndex;
+    }
 
-        IO.writeStaging(gitletDir.resolve(STAGING_FILE), stagedFiles);
+    /**
+     * Registers a newly created commit.
+     * @param commit the commit.
+     */
+    private void addCommit(Commit commit) {
+        if (commitMap.put(commit.hash(), commit) == null) {
+            unsavedCommits.add(commit);
+        }
     }
 
     /**
-     * Loads the gitlet from file system.
+     * Loads the gitlet from file system. Only the head and the branch
+     * tips are read; other commits are loaded on demand. An update left
+     * unfinished by a crash is first finished or undone.
      */
     public void loadFromFileSystem() {
         Path gitletDir = workingDir.resolve(GITLET_DIR);
+        Journal.recover(gitletDir);
 
         head = commitResolver.apply(
                 IO.readString(gitletDir.resolve(HEAD_FILE)));
         String activeBranch = IO.readString(gitletDir.resolve(BRANCH_FILE));
 
         try {
-            Path branchDir = gitletDir.resolve(BRANCH_DIR);
-            branches = Files.list(branchDir)
-                    .map(branchFile ->
-                            IO.readBranch(branchFile, commitResolver))
-                    .collect(Collectors.toCollection(LinkedList::new));
-
-            for (Branch branch : branches) {
-                if (Objects.equals(branch.name(), activeBranch)) {
-                    active = branch;
-                    break;
-                }
-            }
-
-            Path commitDir = gitletDir.resolve(COMMIT_DIR);
-            commitMap = Files.list(commitDir)
-                    .map(commitFile -> IO.readCommit(
-                            commitFile, this.workingDir, commitResolver,
-                            commitFile.getFileName().toString()))
-                    .collect(Collectors.toMap(Commit::hash,
-                        c -> c, (c, c2) -> c, HashMap::new));
+            branches = readBranches(gitletDir.resolve(BRANCH_DIR));
+            Path remoteBranchDir = gitletDir.resolve(REMOTE_BRANCH_DIR);
+            remoteBranches = Files.exists(remoteBranchDir)
+                    ? readBranches(remoteBranchDir) : new LinkedList<>();
+            active = findBranch(activeBranch);
+            savedHead = head.hash();
+            savedBranch = activeBranch;
 
             Path remoteDir = gitletDir.resolve(REMOTE_DIR);
             remotes = Files.list(remoteDir)
@@ -339,13 +737,38 @@ public class Gitlet {
                         file -> file.getFileName().toString(),
                         file -> Paths.get(IO.readString(file))));
 
-            stagedFiles = IO.readStaging(
-                    gitletDir.resolve(STAGING_FILE), this.workingDir);
+            byte[] index = Files.readAllBytes(
+                    gitletDir.resolve(STAGING_FILE));
+            stagedFiles = IO.decodeStaging(index, fileStore);
+            stagingChanged = IO.serialized(index);
         } catch (IOException e) {
             throw new GitletException(e);
         }
     }
 
+    /**
+     * Reads the branches saved in a folder, named by their paths in it.
+     * @param branchDir the folder.
+     * @return the branches, marked saved.
+     * @throws IOException if listing the folder fails.
+     */
+    private LinkedList<Branch> readBranches(Path branchDir)
+            throws IOException {
+        try (Stream<Path> files = Files.walk(branchDir)) {
+            LinkedList<Branch> result = files
+                    .filter(branchFile -> !Files.isDirectory(branchFile))
+                    .map(branchFile -> IO.readBranch(branchFile,
+                            branchDir.relativize(branchFile).toString()
+                                    .replace(File.separatorChar, '/'),
+                            commitResolver))
+                    .collect(Collectors.toCollection(LinkedList::new));
+            for (Branch branch : result) {
+                branch.markSaved();
+            }
+            return result;
+        }
+    }
+
     /**
      * @return The tracked files.
      */
@@ -377,30 +800,154 @@ public class Gitlet {
     }
 
     /**
-     * @return The globalized logs.
+     * Streams all commits in the order they were made, without keeping
+     * them.
+     * @param skip the number of commits to skip.
+     * @param limit the most commits to visit, negative for all.
+     * @param action receives each commit.
      */
-    public Collection<Commit> globalLog() {
+    public void globalLog(int skip, int limit, Consumer<Commit> action) {
         if (!initialized) {
             throw Utils.error("Not in an initialized Gitlet directory.");
         }
-        return commitMap.values();
+        messageIndex().forEach(skip, limit, action);
     }
 
     /**
-     * Check out to a branch.
-     * @param branchName the branch name.
+     * Consolidates loose commits and blobs into pack files.
+     * @return the number of objects packed.
      */
-    public void checkout(String branchName) {
+    public int pack() {
+        if (!initialized) {
+            throw Utils.error("Not in an initialized Gitlet directory.");
+        }
+        return commitStore.pack() + fileStore.pack();
+    }
+
+    /**
+     * Deletes the commits, trees and blobs that neither a branch, the head
+     * nor the index reaches. Commits are marked in a bitmap over their
+     * commit graph IDs by following parents in the graph, without reading
+     * them. Trees and blobs are marked in bitmaps over IDs numbering the
+     * stored ones, walking the trees of each marked commit but not the
+     * subtrees already marked, and a marked blob marks its delta base.
+     * The commit graph and log are rewritten without the unreachable
+     * commits before any object is deleted, so a stopped gc only leaves
+     * objects for the next one. Packs holding unreachable objects are
+     * rewritten, and checked out blobs the index does not use deleted.
+     * @return the bytes reclaimed.
+     */
+    public long gc() {
         if (!initialized) {
             throw Utils.error("Not in an initialized Gitlet directory.");
         }
-        Branch target = null;
+        CommitGraph graph = commitGraph();
+        BitSet commits = new BitSet(graph.size());
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(graph.add(head, commitResolver));
         for (Branch branch : branches) {
-            if (branch.name().equals(branchName)) {
-                target = branch;
-                break;
+            stack.push(graph.add(branch.head(), commitResolver));
+        }
+        for (Branch branch : remoteBranches) {
+            stack.push(graph.add(branch.head(), commitResolver));
+        }
+        while (!stack.isEmpty()) {
+            int id = stack.pop();
+            if (!commits.get(id)) {
+                commits.set(id);
+                for (int parent : graph.parents(id)) {
+                    stack.push(parent);
+                }
+            }
+        }
+
+        ObjectIds treeIds = new ObjectIds(fileStore.treeHashes());
+        ObjectIds blobIds = new ObjectIds(fileStore.blobHashes());
+        ObjectIds chunkIds = new ObjectIds(fileStore.chunkHashes());
+        BitSet trees = new BitSet(treeIds.size());
+        BitSet blobs = new BitSet(blobIds.size());
+        BitSet chunks = new BitSet(chunkIds.size());
+        Consumer<String> markBlob =
+                hash -> markBlob(hash, blobIds, blobs, chunkIds, chunks);
+        Predicate<String> enter = hash -> {
+            int id = treeIds.id(hash);
+            return id != ObjectIds.NONE && !trees.get(id);
+        };
+        Consumer<String> markTree = hash -> trees.set(treeIds.id(hash));
+        Set<String> indexBlobs = new HashSet<>();
+        stagedFiles.walk(enter, hash -> {
+            indexBlobs.add(hash);
+            markBlob.accept(hash);
+        }, markTree);
+        for (int id = commits.nextSetBit(0); id >= 0;
+             id = commits.nextSetBit(id + 1)) {
+            peekCommit(graph.hash(id)).stagedFiles().walk(enter,
+                markBlob, markTree);
+        }
+
+        List<Commit> logged = new ArrayList<>();
+        int[] count = new int[1];
+        messageIndex().forEach(0, -1, commit -> {
+            int id = graph.id(commit.hash());
+            if (id != CommitGraph.NONE && commits.get(id)) {
+                logged.add(commit);
             }
+            count[0] += 1;
+        });
+        if (logged.size() < count[0]) {
+            messageIndex().rebuild(logged);
+            messageIndex = null;
         }
+        commitGraph = graph.compact(commits);
+        Path gitletDir = workingDir.resolve(GITLET_DIR);
+        IO.deleteIfExists(gitletDir.resolve(COMMIT_INDEX_FILE));
+        IO.deleteIfExists(gitletDir.resolve(CHANGED_PATHS_FILE));
+
+        CommitGraph kept = commitGraph;
+        return commitStore.retain(hash -> kept.id(hash) != CommitGraph.NONE)
+                + fileStore.retain(hash -> blobIds.marked(blobs, hash),
+                    hash -> treeIds.marked(trees, hash),
+                    hash -> chunkIds.marked(chunks, hash))
+                + fileStore.pruneCheckouts(indexBlobs::contains);
+    }
+
+    /**
+     * Marks a blob and the delta bases it is stored against, or the
+     * chunks it is stored as.
+     * @param hash the blob's hash.
+     * @param ids the IDs of the stored blobs.
+     * @param marks the marked blobs, by ID.
+     * @param chunkIds the IDs of the stored chunks.
+     * @param chunkMarks the marked chunks, by ID.
+     */
+    private void markBlob(String hash, ObjectIds ids, BitSet marks,
+                          ObjectIds chunkIds, BitSet chunkMarks) {
+        String next = hash;
+        while (next != null) {
+            int id = ids.id(next);
+            if (id == ObjectIds.NONE || marks.get(id)) {
+                return;
+            }
+            marks.set(id);
+            for (String chunk : fileStore.chunks(next)) {
+                int chunkId = chunkIds.id(chunk);
+                if (chunkId != ObjectIds.NONE) {
+                    chunkMarks.set(chunkId);
+                }
+            }
+            next = fileStore.deltaBase(next);
+        }
+    }
+
+    /**
+     * Check out to a branch.
+     * @param branchName the branch name.
+     */
+    public void checkout(String branchName) {
+        if (!initialized) {
+            throw Utils.error("Not in an initialized Gitlet directory.");
+        }
+        Branch target = findBranch(branchName);
         if (target == null) {
             throw Utils.error("No such branch exists.");
         }
@@ -414,7 +961,10 @@ public class Gitlet {
     }
 
     /**
-     * Checkout to a specific commit.
+     * Checkout to a specific commit. Only files that differ between the
+     * index and the commit are written or deleted, found by comparing
+     * their trees, and the rest are kept unless modified in the working
+     * directory.
      * @param target the commit.
      */
     private void checkout(Commit target) {
@@ -423,29 +973,37 @@ public class Gitlet {
         }
         checkNoUntrackedFiles();
 
-        head = target;
-        StagedFiles newStaging = head.stagedFiles();
-        this.stagedFiles = new StagedFiles(workingDir, newStaging);
-
-        try {
-            Files.walk(workingDir, 1)
-                    .filter(path -> !Files.isDirectory(path))
-                    .forEach(path1 -> {
-                        try {
-                            Files.delete(path1);
-                        } catch (IOException e) {
-                            throw new GitletException(e);
-                        }
-                    });
-        } catch (IOException e) {
-            throw new GitletException(e);
+        StagedFiles current = stagedFiles;
+        StagedFiles newStaging = target.stagedFiles();
+        StagedFiles next = new StagedFiles(newStaging);
+        Set<Path> changed = current.changedFiles(newStaging);
+        List<Path> written = new ArrayList<>();
+        for (Path file : changed) {
+            if (newStaging.contains(file)) {
+                written.add(file);
+            } else {
+                IO.deleteWorkingFile(workingDir, file);
+            }
         }
-
-        Set<Path> files = newStaging.files();
-        for (Path file : files) {
-            Path originFile = newStaging.getFile(file);
-            IO.copyFile(originFile, file);
+        for (Path file : current.files()) {
+            if (changed.contains(file)) {
+                continue;
+            }
+            if (!Files.exists(file) || current.modified(file)) {
+                written.add(file);
+            } else {
+                next.copyStat(current, file);
+            }
         }
+        Parallel.map(written, file -> {
+            newStaging.checkoutFile(file);
+            next.recordStat(file);
+            return file;
+        });
+
+        head = target;
+        this.stagedFiles = next;
+        this.stagingChanged = true;
     }
 
     /**
@@ -463,19 +1021,32 @@ public class Gitlet {
      * @return untracked files.
      */
     public List<Path> untrackedFiles() {
-        try {
-            Set<Path> trackedFiles = trackedFiles();
-            return Files
-                    .walk(workingDir, 1)
-                    .filter(path -> !Files.isDirectory(path))
-                    .filter(path -> !trackedFiles.contains(path))
-                    .collect(Collectors.toList());
-        } catch (IOException e) {
-            throw new GitletException(e);
-        }
+        Set<Path> trackedFiles = trackedFiles();
+        Collection<Path> workingFiles =
+                watcher == null ? null : watcher.files();
+        if (workingFiles == null) {
+            workingFiles = IO.workingFiles(workingDir, workingDir);
+        }
+        return workingFiles.stream()
+                .filter(path -> !trackedFiles.contains(path))
+                .collect(Collectors.toList());
     }
 
     /**
+     * @param file a file in the working directory.
+     * @return the file's path relative to the working directory, separated
+     * by slashes.
+     */
+    public String relativeName(Path file) {
+        Path relative = workingDir.relativize(file);
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * With a watcher, files not changed since found unmodified are not
+     * examined again. Stat data refreshed on the way is only kept in
+     * memory, and saved with the index by the next command that writes
+     * it, so commands that only read never write the repository.
      * @return all tracking files' state.
      */
     public Map<Path, FileState> getFileStates() {
@@ -483,19 +1054,105 @@ public class Gitlet {
             throw Utils.error("Not in an initialized Gitlet directory.");
         }
         Map<Path, FileState> fileStates = new TreeMap<>();
-        for (Path file : this.stagedFiles.files()) {
-            Path origin = this.stagedFiles.getFile(file);
+        List<Path> files = new ArrayList<>();
+        if (watcher == null) {
+            files.addAll(stagedFiles.files());
+        } else {
+            watcher.update();
+            stagedFiles.forEach((file, hash) -> {
+                if (watcher.clean(file, hash)) {
+                    fileStates.put(file, FileState.UNMODIFIED);
+                } else {
+                    files.add(file);
+                }
+            });
+        }
+        List<FileState> states = Parallel.map(files, file -> {
             if (!Files.exists(file)) {
-                fileStates.put(file, FileState.DELETED);
-            } else if (IO.different(file, origin)) {
-                fileStates.put(file, FileState.MODIFIED);
-            } else {
-                fileStates.put(file, FileState.UNMODIFIED);
+                return FileState.DELETED;
+            } else if (stagedFiles.modified(file)) {
+                return FileState.MODIFIED;
+            } else if (watcher != null) {
+                watcher.markClean(file, stagedFiles.getHash(file));
             }
+            return FileState.UNMODIFIED;
+        });
+        for (int i = 0; i < files.size(); i++) {
+            fileStates.put(files.get(i), states.get(i));
+        }
+        if (stagedFiles.takeStatsRefreshed()) {
+            stagingChanged = true;
         }
         return fileStates;
     }
 
+    /**
+     * Writes the changes of the working files not staged yet, as a unified
+     * diff. Files whose stat data matches the index are skipped unread.
+     * @param out the stream.
+     */
+    public void diff(OutputStream out) {
+        DiffFormatter formatter = new DiffFormatter(out);
+        for (Map.Entry<Path, FileState> entry
+                : getFileStates().entrySet()) {
+            Path file = entry.getKey();
+            if (entry.getValue() != FileState.UNMODIFIED) {
+                formatter.format(relativeName(file),
+                        blobText(stagedFiles.getHash(file)),
+                        entry.getValue() == FileState.DELETED
+                                ? null : Text.read(file));
+            }
+        }
+    }
+
+    /**
+     * Writes the changes staged for the next commit, as a unified diff.
+     * @param out the stream.
+     */
+    public void diffStaged(OutputStream out) {
+        if (!initialized) {
+            throw Utils.error("Not in an initialized Gitlet directory.");
+        }
+        diff(head.stagedFiles(), stagedFiles, out);
+    }
+
+    /**
+     * Writes the changes between two commits, as a unified diff.
+     * @param from the hash of the old commit, possibly abbreviated.
+     * @param to the hash of the new commit, possibly abbreviated.
+     * @param out the stream.
+     */
+    public void diff(String from, String to, OutputStream out) {
+        if (!initialized) {
+            throw Utils.error("Not in an initialized Gitlet directory.");
+        }
+        diff(findCommit(from).stagedFiles(), findCommit(to).stagedFiles(),
+                out);
+    }
+
+    /**
+     * Writes the changes between two stagings. Only files whose blob
+     * hashes differ are read.
+     * @param from the old staging.
+     * @param to the new staging.
+     * @param out the stream.
+     */
+    private void diff(StagedFiles from, StagedFiles to, OutputStream out) {
+        DiffFormatter formatter = new DiffFormatter(out);
+        for (Path file : new TreeSet<>(from.changedFiles(to))) {
+            formatter.format(relativeName(file),
+                    blobText(from.getHash(file)), blobText(to.getHash(file)));
+        }
+    }
+
+    /**
+     * @param hash a blob hash, or null.
+     * @return the blob's content, or null if the hash is.
+     */
+    private Text blobText(String hash) {
+        return hash == null ? null : Text.read(fileStore.openFile(hash));
+    }
+
     /**
      * Check out a file to a commit.
      *
@@ -511,8 +1168,7 @@ public class Gitlet {
         if (!commit.isTracking(file)) {
             throw Utils.error("File does not exist in that commit.");
         }
-        Path trackedFile = commit.stagedFiles().getFile(file);
-        IO.copyFile(trackedFile, file);
+        commit.stagedFiles().checkoutFile(file);
     }
 
     /**
@@ -532,20 +1188,27 @@ public class Gitlet {
      * @return the commits found.
      */
     public List<Commit> find(String message) {
+        return find(message, MessageIndex.Match.EXACT);
+    }
+
+    /**
+     * Find the commits whose message matches a query, through the message
+     * index.
+     * @param query the query.
+     * @param match how to match.
+     * @return the commits found.
+     */
+    public List<Commit> find(String query, MessageIndex.Match match) {
         if (!initialized) {
             throw Utils.error("Not in an initialized Gitlet directory.");
         }
-        List<Commit> result = new ArrayList<>();
-        for (Commit commit : commitMap.values()) {
-            if (commit.message().equals(message)) {
-                result.add(commit);
-            }
-        }
-        return result;
+        return messageIndex().find(query, match).stream()
+                .map(commitResolver)
+                .collect(Collectors.toList());
     }
 
     /**
-     * @return all branches.
+     * @return all branches, not counting those fetched from remotes.
      */
     public List<Branch> branches() {
         if (!initialized) {
@@ -554,6 +1217,16 @@ public class Gitlet {
         return branches;
     }
 
+    /**
+     * @return the branches fetched from remotes.
+     */
+    public List<Branch> remoteBranches() {
+        if (!initialized) {
+            throw Utils.error("Not in an initialized Gitlet directory.");
+        }
+        return remoteBranches;
+    }
+
     /**
      * @return the current active branch.
      */
@@ -605,12 +1278,18 @@ public class Gitlet {
         if (branch == active) {
             throw Utils.error("Cannot remove the current branch.");
         }
-        branches.remove(branch);
+        if (branches.remove(branch)) {
+            removedBranches.add(branch.name());
+        } else {
+            remoteBranches.remove(branch);
+            removedRemoteBranches.add(branch.name());
+        }
         saveToFileSystem();
     }
 
     /**
-     * Find a branch by its name.
+     * Find a branch by its name, looking at branches fetched from
+     * remotes after the others.
      * @param name the branch name.
      * @return the branch.
      */
@@ -618,7 +1297,18 @@ public class Gitlet {
         if (!initialized) {
             throw Utils.error("Not in an initialized Gitlet directory.");
         }
-        for (Branch branch : branches) {
+        Branch branch = findBranch(branches, name);
+        return branch != null ? branch : findBranch(remoteBranches, name);
+    }
+
+    /**
+     * Find a branch by its name.
+     * @param list the branches to look at.
+     * @param name the branch name.
+     * @return the branch, or null if none has the name.
+     */
+    private static Branch findBranch(List<Branch> list, String name) {
+        for (Branch branch : list) {
             if (branch.name().equals(name)) {
                 return branch;
             }
@@ -633,20 +1323,39 @@ public class Gitlet {
      */
     private Commit findCommit(String hash) {
         if (hash.length() == Utils.UID_LENGTH) {
-            Commit commit = commitMap.get(hash);
-            if (commit != null) {
-                return commit;
-            } else {
-                throw Utils.error("No commit with that id exists.");
-            }
+            return commitResolver.apply(hash);
         }
 
-        for (Map.Entry<String, Commit> entry : commitMap.entrySet()) {
-            if (entry.getKey().startsWith(hash)) {
-                return entry.getValue();
+        List<String> matches = new ArrayList<>(commitIndex().find(hash, 2));
+        for (Commit commit : unsavedCommits) {
+            if (commit.hash().startsWith(hash)
+                    && !matches.contains(commit.hash())) {
+                matches.add(commit.hash());
             }
         }
-        throw Utils.error("No commit with that id exists.");
+        if (matches.isEmpty()) {
+            throw Utils.error("No commit with that id exists.");
+        } else if (matches.size() > 1) {
+            throw Utils.error("Ambiguous commit id.");
+        }
+        return commitResolver.apply(matches.get(0));
+    }
+
+    /**
+     * Opens the index of commit hashes, building it from the stored
+     * commits when it is missing or out of date.
+     * @return the index.
+     */
+    private CommitIndex commitIndex() {
+        Path gitletDir = workingDir.resolve(GITLET_DIR);
+        Path indexFile = gitletDir.resolve(COMMIT_INDEX_FILE);
+        Path graphFile = gitletDir.resolve(GRAPH_FILE);
+        CommitIndex index = CommitIndex.open(indexFile, graphFile);
+        if (index == null) {
+            index = CommitIndex.write(indexFile, graphFile,
+                    commitStore.hashes());
+        }
+        return index;
     }
 
     /**
@@ -676,6 +1385,15 @@ public class Gitlet {
         if (target == null) {
             throw Utils.error("A branch with that name does not exist.");
         }
+        return merge(target);
+    }
+
+    /**
+     * Merges a branch into the active one.
+     * @param target the target branch.
+     * @return whether conflicts.
+     */
+    private boolean merge(Branch target) {
         if (!stagedFiles().isEmpty() || !deletedFiles().isEmpty()) {
             throw Utils.error("You have uncommitted changes.");
         }
@@ -702,11 +1420,12 @@ public class Gitlet {
         String message = String.format("Merged %s into %s.",
                 target.name(), active.name());
         Commit commit = new Commit(Instant.now(),
-                List.of(head, target.head()), message, stagedFiles);
+                List.of(head, target.head()), message,
+                stagedFiles.snapshot());
 
-        commitMap.put(commit.hash(), commit);
+        addCommit(commit);
         head = commit;
-        stagedFiles = new StagedFiles(this.workingDir, this.stagedFiles);
+        stagingChanged = true;
         active.setHead(commit);
 
         saveToFileSystem();
@@ -722,13 +1441,11 @@ public class Gitlet {
      */
     private boolean doMerge(Commit splitPoint,
                             Branch current, Branch target) {
-        Set<Path> allFiles = new HashSet<>();
         StagedFiles originFiles = splitPoint.stagedFiles();
         StagedFiles currentFiles = current.head().stagedFiles();
         StagedFiles targetFiles = target.head().stagedFiles();
-        allFiles.addAll(originFiles.files());
-        allFiles.addAll(currentFiles.files());
-        allFiles.addAll(targetFiles.files());
+        Set<Path> allFiles = originFiles.changedFiles(currentFiles);
+        allFiles.addAll(originFiles.changedFiles(targetFiles));
         boolean conflict = false;
 
         for (Path file : allFiles) {
@@ -741,25 +1458,15 @@ public class Gitlet {
                 if (!Objects.equals(targetHash, originHash)) {
                     if (Objects.equals(currentHash, originHash)) {
                         if (targetHash == null) {
-                            IO.deleteIfExists(file);
+                            IO.deleteWorkingFile(workingDir, file);
                             stagedFiles.remove(file);
                         } else {
-                            Path targetFile = targetFiles.getFile(file);
-                            IO.copyFile(targetFile, file);
+                            targetFiles.checkoutFile(file);
                             stagedFiles.addFile(file);
                         }
                     } else if (!Objects.equals(currentHash, targetHash)) {
-                        String currentContent = IO.readString(file);
-                        String targetContent =
-                                IO.readString(targetFiles.getFile(file));
-                        IO.writeString(file, String.format(""
-                                + "<<<<<<< HEAD%n"
-                                + currentContent
-                                + "=======%n"
-                                + targetContent
-                                + ">>>>>>>%n"));
-                        stagedFiles.addFile(file);
-                        conflict = true;
+                        conflict |= mergeFile(file, originFiles, targetFiles,
+                                currentHash == null || targetHash == null);
                     }
                 }
             }
@@ -768,27 +1475,34 @@ public class Gitlet {
     }
 
     /**
-     * Find ancestors for a commit.
-     * @param commit the commit.
-     * @param processor the processor.
-     * @param <T> result type.
-     * @return the result.
-     */
-    private <T> T findAncestors(Commit commit,
-                                Function<Commit, T> processor) {
-        Queue<Commit> commitQueue = new LinkedList<>();
-        commitQueue.offer(commit);
-        while (!commitQueue.isEmpty()) {
-            Commit pointer = commitQueue.poll();
-            T found = processor.apply(pointer);
-            if (found != null) {
-                return found;
-            }
-            if (pointer.parents() != null && !pointer.parents().isEmpty()) {
-                commitQueue.addAll(pointer.parents());
+     * Merges the changes made to a file on both branches into the working
+     * file, and stages the result.
+     * @param file the file.
+     * @param originFiles the files of the split point.
+     * @param targetFiles the files of the given branch.
+     * @param deleted whether either branch deleted the file, which
+     *                conflicts with the whole of the other's version.
+     * @return whether the changes conflict.
+     */
+    private boolean mergeFile(Path file, StagedFiles originFiles,
+                              StagedFiles targetFiles, boolean deleted) {
+        Text base = Text.read(originFiles.openFile(file));
+        Text ours = Text.read(file);
+        Text theirs = Text.read(targetFiles.openFile(file));
+        boolean conflict = true;
+        // Replace rather than overwrite, in case the file is a checkout link.
+        IO.deleteIfExists(file);
+        try (OutputStream out = IO.newOutputStream(file)) {
+            if (deleted) {
+                Merge.conflict(ours, theirs, out);
+            } else {
+                conflict = Merge.merge(base, ours, theirs, out);
             }
+        } catch (IOException e) {
+            throw new GitletException(e);
         }
-        return null;
+        stagedFiles.addFile(file);
+        return conflict;
     }
 
     /**
@@ -798,20 +1512,17 @@ public class Gitlet {
      * @return the ancestor commit.
      */
     private Commit latestCommonAncestor(Branch current, Branch target) {
-        Set<String> ancestors = new HashSet<>();
-        findAncestors(target.head(),
-            (commit) -> {
-                ancestors.add(commit.hash());
-                return null;
-            });
+        CommitGraph graph = commitGraph();
+        int from = graph.add(current.head(), commitResolver);
+        int other = graph.add(target.head(), commitResolver);
+        graph.save();
 
-        Commit result = findAncestors(current.head(),
-            (commit) -> ancestors.contains(commit.hash()) ? commit : null);
-        if (result == null) {
+        int result = graph.nearestMergeBase(from, other);
+        if (result == CommitGraph.NONE) {
             throw new IllegalStateException("Branches "
                     + "contain no common ancestor.");
         }
-        return result;
+        return commitResolver.apply(graph.hash(result));
     }
 
     /**
@@ -830,6 +1541,7 @@ public class Gitlet {
         String normalized = path.replace('/', File.separatorChar);
         Path remotePath = Paths.get(normalized);
         remotes.put(name, remotePath);
+        remotesChanged = true;
         saveToFileSystem();
     }
 
@@ -843,6 +1555,14 @@ public class Gitlet {
 
         if (remotes.containsKey(operand)) {
             remotes.remove(operand);
+            remotesChanged = true;
+            for (Branch branch : List.copyOf(remoteBranches)) {
+                if (branch.name().startsWith(operand + "/")
+                        && branch != active) {
+                    remoteBranches.remove(branch);
+                    removedRemoteBranches.add(branch.name());
+                }
+            }
         } else {
             throw Utils.error("A remote with that name does not exist.");
         }
@@ -850,39 +1570,238 @@ public class Gitlet {
     }
 
     /**
-     * @param operand remote's name.
+     * Brings down the commits of a remote branch that this repository
+     * lacks, with their trees and blobs, into the fetched branch named
+     * [remote]/[branch], which is created if needed.
+     * @param remoteName remote's name.
+     * @param branchName the remote branch's name.
      */
-    public void fetch(String operand) {
+    public void fetch(String remoteName, String branchName) {
         if (!initialized) {
             throw Utils.error("Not in an initialized Gitlet directory.");
         }
-        Path remote = remotes.get(operand);
-        if (remote == null) {
-            throw Utils.error("A remote with that name does not exist.");
+        withRemote(remoteName, true, (local, remote) ->
+                local.fetch(remote, remoteName, branchName));
+    }
+
+    /**
+     * Brings down the commits of a remote branch, as fetch does.
+     * @param remote the remote repository, locked.
+     * @param remoteName remote's name.
+     * @param branchName the remote branch's name.
+     * @return the fetched branch.
+     */
+    private Branch fetch(Gitlet remote, String remoteName,
+                         String branchName) {
+        Branch remoteBranch = findBranch(remote.branches, branchName);
+        if (remoteBranch == null) {
+            throw Utils.error("That remote does not have that branch.");
         }
-        if (!Files.exists(remote.resolve(GITLET_DIR))) {
-            throw Utils.error("Remote directory not found.");
+        Commit tip = receive(remote, remoteBranch.head().hash());
+        String name = remoteName + "/" + branchName;
+        Branch branch = findBranch(remoteBranches, name);
+        if (branch == null) {
+            branch = new Branch(tip, name);
+            remoteBranches.add(branch);
         } else {
-            throw Utils.error("That remote does not have that branch.");
+            branch.setHead(tip);
         }
+        saveToFileSystem();
+        return branch;
     }
 
     /**
-     * @param name remote's name.
+     * Appends the current branch's commits to a remote branch, copying the
+     * commits, trees and blobs the remote lacks. The remote branch is
+     * created if needed, and must otherwise be in the history of the
+     * current head. A remote whose current branch is pushed to is reset to
+     * the new head.
+     * @param remoteName remote's name.
+     * @param branchName the remote branch's name.
+     */
+    public void push(String remoteName, String branchName) {
+        if (!initialized) {
+            throw Utils.error("Not in an initialized Gitlet directory.");
+        }
+        withRemote(remoteName, false, (local, remote) -> {
+            local.push(remote, branchName);
+            return null;
+        });
+    }
+
+    /**
+     * Appends the current branch's commits to a remote branch, as push
+     * does.
+     * @param remote the remote repository, locked alone.
+     * @param branchName the remote branch's name.
      */
-    public void push(String name) {
+    private void push(Gitlet remote, String branchName) {
+        Branch remoteBranch = findBranch(remote.branches, branchName);
+        if (remoteBranch != null
+                && !isAncestor(remoteBranch.head().hash(), head)) {
+            throw Utils.error("Please pull down "
+                    + "remote changes before pushing.");
+        }
+
+        Commit tip = remote.receive(this, head.hash());
+        if (remoteBranch == null) {
+            remote.branches.add(new Branch(tip, branchName));
+        } else if (remoteBranch == remote.active) {
+            remote.reset(tip.hash());
+        } else {
+            remoteBranch.setHead(tip);
+        }
+        remote.saveToFileSystem();
+    }
+
+    /**
+     * Fetches a remote branch and merges it into the current branch.
+     * @param remoteName remote's name.
+     * @param branchName the remote branch's name.
+     * @return whether the merge conflicts.
+     */
+    public boolean pull(String remoteName, String branchName) {
         if (!initialized) {
             throw Utils.error("Not in an initialized Gitlet directory.");
         }
-        Path remote = remotes.get(name);
-        if (remote == null) {
+        return withRemote(remoteName, true, (local, remote) ->
+                local.merge(local.fetch(remote, remoteName, branchName)));
+    }
+
+    /**
+     * Runs an action on this repository and a remote, both locked. Its
+     * path may name either the remote's working directory or its .gitlet
+     * directory, and a relative path is relative to this working
+     * directory. If this gitlet holds a lock, it is released and both
+     * repositories are opened again, taking their locks in the order of
+     * their real paths, so two repositories fetching from or pushing to
+     * each other never wait for each other's lock. This gitlet is then
+     * left unlocked, and the action is given the one opened again.
+     * @param name remote's name.
+     * @param readOnly whether the remote is only read.
+     * @param action the action, given this repository and the remote.
+     * @param <T> the action's result type.
+     * @return the action's result.
+     */
+    private <T> T withRemote(String name, boolean readOnly,
+                             BiFunction<Gitlet, Gitlet, T> action) {
+        Path path = remotes.get(name);
+        if (path == null) {
             throw Utils.error("A remote with that name does not exist.");
         }
-        if (!Files.exists(remote.resolve(GITLET_DIR))) {
+        Path dir = workingDir.resolve(path).normalize();
+        if (dir.getFileName() != null
+                && dir.getFileName().toString().equals(GITLET_DIR)) {
+            dir = dir.getParent();
+        }
+        if (!Files.exists(dir.resolve(GITLET_DIR))) {
             throw Utils.error("Remote directory not found.");
-        } else {
-            throw Utils.error("Please pull down "
-                    + "remote changes before pushing.");
         }
+        if (lock == null) {
+            try (Gitlet remote = open(dir, readOnly)) {
+                return action.apply(this, remote);
+            }
+        }
+        boolean localReadOnly = !lock.exclusive();
+        lock.close();
+        boolean remoteFirst;
+        try {
+            remoteFirst = dir.toRealPath()
+                    .compareTo(workingDir.toRealPath()) < 0;
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        try (Gitlet first = remoteFirst ? open(dir, readOnly)
+                : open(workingDir, localReadOnly);
+             Gitlet second = remoteFirst ? open(workingDir, localReadOnly)
+                : open(dir, readOnly)) {
+            Gitlet local = remoteFirst ? second : first;
+            local.watch(watcher);
+            return action.apply(local, remoteFirst ? first : second);
+        }
+    }
+
+    /**
+     * @param hash a commit hash.
+     * @param commit a commit.
+     * @return whether the hash names the commit or one of its ancestors.
+     */
+    private boolean isAncestor(String hash, Commit commit) {
+        if (!commitStore.contains(hash)) {
+            return false;
+        }
+        CommitGraph graph = commitGraph();
+        int ancestor = graph.add(commitResolver.apply(hash), commitResolver);
+        int id = graph.add(commit, commitResolver);
+        graph.save();
+        return graph.mergeBases(id, ancestor).contains(ancestor);
+    }
+
+    /**
+     * Copies a commit of another repository, with the history, trees and
+     * blobs under it that this repository lacks. The other history is
+     * walked from the commit and stops at commits this repository has.
+     * Objects are copied as they are stored, blobs before the trees and
+     * trees before the commits that refer to them, and the commit graph
+     * and log are updated last.
+     * @param from the other repository.
+     * @param tipHash the commit's hash.
+     * @return the commit, as read from this repository.
+     */
+    private Commit receive(Gitlet from, String tipHash) {
+        MessageIndex messages = messageIndex();
+        List<Commit> missing = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        Queue<String> queue = new LinkedList<>();
+        queue.add(tipHash);
+        while (!queue.isEmpty()) {
+            String hash = queue.poll();
+            if (seen.add(hash) && !commitStore.contains(hash)) {
+                Commit commit = from.commitResolver.apply(hash);
+                missing.add(commit);
+                queue.addAll(commit.parentHashes());
+            }
+        }
+        if (missing.isEmpty()) {
+            return commitResolver.apply(tipHash);
+        }
+
+        Set<String> blobs = new LinkedHashSet<>();
+        Set<String> trees = new LinkedHashSet<>();
+        for (Commit commit : missing) {
+            commit.stagedFiles().walk(
+                hash -> !trees.contains(hash) && !fileStore.containsTree(hash),
+                hash -> addBlob(from.fileStore, hash, blobs),
+                trees::add);
+        }
+        fileStore.copyFrom(from.fileStore, blobs, trees);
+        missing.sort(Comparator.comparing(Commit::date));
+        commitStore.copyFrom(from.commitStore, missing.stream()
+                .map(Commit::hash)
+                .collect(Collectors.toList()));
+
+        Commit tip = commitResolver.apply(tipHash);
+        commitGraph().add(tip, commitResolver);
+        commitGraph().save();
+        messages.append(missing);
+        return tip;
+    }
+
+    /**
+     * Adds a blob of another repository to those to copy, after its delta
+     * base, unless this repository has it.
+     * @param from the other repository's store.
+     * @param hash the blob hash.
+     * @param blobs the blobs to copy.
+     */
+    private void addBlob(FileStore from, String hash, Set<String> blobs) {
+        if (blobs.contains(hash) || fileStore.containsBlob(hash)) {
+            return;
+        }
+        String base = from.deltaBase(hash);
+        if (base != null) {
+            addBlob(from, base, blobs);
+        }
+        blobs.add(hash);
     }
 }
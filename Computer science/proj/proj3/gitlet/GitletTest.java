@@ -4,12 +4,32 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class GitletTest {
     private static Path testHome;
@@ -111,7 +131,10 @@ public class GitletTest {
         gitlet.commit("message");
 
         Gitlet newGitlet = new Gitlet(testHome);
-        Assert.assertEquals(2, newGitlet.globalLog().size());
+        List<Commit> logged = new ArrayList<>();
+        newGitlet.globalLog(0, -1, logged::add);
+        Assert.assertEquals(2, logged.size());
+        Assert.assertEquals("message", logged.get(1).message());
     }
 
     @Test
@@ -139,4 +162,1153 @@ public class GitletTest {
         Assert.assertEquals(0, newGitlet.untrackedFiles().size());
         Assert.assertEquals(1, newGitlet.trackedFiles().size());
     }
+
+    @Test
+    public void saveOnlyRewritesChanges() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+
+        Path testFile = testHome.resolve("test_file");
+        IO.writeString(testFile, "Hello World");
+        gitlet.add(List.of(Paths.get("test_file")));
+        gitlet.commit("message");
+
+        Path gitletDir = testHome.resolve(".gitlet");
+        Path commitFile = gitletDir.resolve("commits")
+                .resolve(gitlet.log().get(1).hash());
+        Path masterFile = gitletDir.resolve("branches").resolve("master");
+        FileTime old = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(commitFile, old);
+        Files.setLastModifiedTime(masterFile, old);
+
+        Gitlet newGitlet = new Gitlet(testHome);
+        IO.writeString(testFile, "Hello again");
+        newGitlet.add(List.of(Paths.get("test_file")));
+        newGitlet.newBranch("other");
+
+        Assert.assertEquals(old, Files.getLastModifiedTime(commitFile));
+        Assert.assertEquals(old, Files.getLastModifiedTime(masterFile));
+        Assert.assertTrue(Files.exists(
+                gitletDir.resolve("branches").resolve("other")));
+    }
+
+    @Test
+    public void loadsCommitsLazily() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+
+        Path testFile = testHome.resolve("test_file");
+        IO.writeString(testFile, "Hello World");
+        gitlet.add(List.of(Paths.get("test_file")));
+        gitlet.commit("message");
+
+        Path unrelated = testHome.resolve(".gitlet").resolve("commits")
+                .resolve("0123456789012345678901234567890123456789");
+        IO.writeString(unrelated, "not a commit");
+
+        Gitlet newGitlet = new Gitlet(testHome);
+        Assert.assertEquals(1, newGitlet.trackedFiles().size());
+        Assert.assertEquals(2, newGitlet.log().size());
+    }
+
+    @Test
+    public void pack() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+
+        Path testFile = testHome.resolve("test_file");
+        IO.writeString(testFile, "Hello World");
+        gitlet.add(List.of(Paths.get("test_file")));
+        gitlet.commit("first");
+        String first = gitlet.log().get(0).hash();
+        IO.writeString(testFile, "Hello again");
+        gitlet.add(List.of(Paths.get("test_file")));
+        gitlet.commit("second");
+
+        Assert.assertEquals(3 + 2 + 3, gitlet.pack());
+        Path gitletDir = testHome.resolve(".gitlet");
+        try (var loose = Files.list(gitletDir.resolve("commits"))) {
+            Assert.assertEquals(0, loose.count());
+        }
+
+        Gitlet newGitlet = new Gitlet(testHome);
+        Assert.assertEquals(3, newGitlet.log().size());
+        List<Commit> logged = new ArrayList<>();
+        newGitlet.globalLog(0, -1, logged::add);
+        Assert.assertEquals(3, logged.size());
+        newGitlet.checkout(first.substring(0, 8), Paths.get("test_file"));
+        Assert.assertEquals("Hello World", IO.readString(testFile));
+        Assert.assertEquals(1, newGitlet.find("second").size());
+    }
+
+    @Test
+    public void nestedDirectories() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+
+        Path src = testHome.resolve("src").resolve("main");
+        Path doc = testHome.resolve("doc");
+        Files.createDirectories(src);
+        Files.createDirectories(doc);
+        IO.writeString(src.resolve("a.txt"), "a");
+        IO.writeString(doc.resolve("b.txt"), "b");
+        Assert.assertEquals(2, gitlet.untrackedFiles().size());
+        gitlet.add(List.of(Paths.get("src"), Paths.get("doc/b.txt")));
+        gitlet.commit("first");
+        String first = gitlet.log().get(0).stagedFiles().hash();
+
+        IO.writeString(doc.resolve("b.txt"), "changed");
+        gitlet.add(List.of(Paths.get("doc")));
+        gitlet.commit("second");
+        Assert.assertEquals("src/main/a.txt",
+                gitlet.relativeName(src.resolve("a.txt")));
+
+        Gitlet newGitlet = new Gitlet(testHome);
+        StagedFiles second = newGitlet.log().get(0).stagedFiles();
+        StagedFiles previous = newGitlet.log().get(1).stagedFiles();
+        Assert.assertEquals(first, previous.hash());
+        Assert.assertEquals(Set.of(doc.resolve("b.txt")),
+                previous.changedFiles(second));
+
+        newGitlet.newBranch("other");
+        newGitlet.rm(Paths.get("src/main/a.txt"));
+        newGitlet.commit("third");
+        Assert.assertFalse(Files.exists(testHome.resolve("src")));
+        newGitlet.checkout("other");
+        Assert.assertEquals("a", IO.readString(src.resolve("a.txt")));
+        Assert.assertTrue(newGitlet.untrackedFiles().isEmpty());
+    }
+
+    @Test
+    public void stagingSharesDirectories() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        for (String dir : List.of("a", "b")) {
+            Files.createDirectories(testHome.resolve(dir));
+            for (int i = 0; i < 3; i++) {
+                IO.writeString(testHome.resolve(dir).resolve("f" + i),
+                        dir + i);
+            }
+        }
+        gitlet.add(List.of(Paths.get("a"), Paths.get("b")));
+        gitlet.commit("first");
+        Path trees = testHome.resolve(".gitlet").resolve("trees");
+        long before;
+        try (var files = Files.list(trees)) {
+            before = files.count();
+        }
+
+        IO.writeString(testHome.resolve("a").resolve("f0"), "changed");
+        gitlet.add(List.of(Paths.get("a/f0")));
+        gitlet.commit("second");
+        try (var files = Files.list(trees)) {
+            Assert.assertEquals(before + 2, files.count());
+        }
+
+        StagedFiles head = gitlet.log().get(0).stagedFiles();
+        StagedFiles copy = new StagedFiles(head);
+        Path removed = testHome.resolve("b").resolve("f1");
+        copy.remove(removed);
+        Assert.assertTrue(head.contains(removed));
+        Assert.assertFalse(copy.contains(removed));
+        Assert.assertEquals(Set.of(removed), head.changedFiles(copy));
+        Assert.assertEquals(6, head.files().size());
+    }
+
+    @Test
+    public void mergeUsesCommitGraph() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        IO.writeString(testHome.resolve("a.txt"), "a");
+        gitlet.add(List.of(Paths.get("a.txt")));
+        gitlet.commit("split");
+        gitlet.newBranch("other");
+        for (int i = 0; i < 30; i++) {
+            IO.writeString(testHome.resolve("m.txt"), "m" + i);
+            gitlet.add(List.of(Paths.get("m.txt")));
+            gitlet.commit("master " + i);
+        }
+        gitlet.checkout("other");
+        IO.writeString(testHome.resolve("o.txt"), "o");
+        gitlet.add(List.of(Paths.get("o.txt")));
+        gitlet.commit("other");
+
+        Assert.assertFalse(gitlet.merge("master"));
+        Assert.assertEquals("m29", IO.readString(testHome.resolve("m.txt")));
+        Assert.assertEquals("o", IO.readString(testHome.resolve("o.txt")));
+
+        Path graph = testHome.resolve(".gitlet").resolve("commit-graph");
+        Files.delete(graph);
+        Gitlet newGitlet = new Gitlet(testHome);
+        newGitlet.checkout("master");
+        try {
+            newGitlet.merge("other");
+            Assert.fail();
+        } catch (GitletException e) {
+            Assert.assertEquals("Current branch fast-forwarded.",
+                    e.getMessage());
+        }
+        Assert.assertEquals(34, new CommitGraph(graph).size());
+    }
+
+    @Test
+    public void commitGraphAppendsToMappedFile() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Commit root = gitlet.log().get(0);
+        String tree = root.stagedFiles().writeTree();
+        FileStore store = new FileStore(testHome);
+        Map<String, Commit> commits = new HashMap<>();
+        commits.put(root.hash(), root);
+        List<Commit> chain = new ArrayList<>();
+        Path file = testHome.resolve(".gitlet").resolve("commit-graph");
+        CommitGraph graph = new CommitGraph(file);
+        String parent = root.hash();
+        for (int i = 0; i < 400; i++) {
+            Commit commit = Commit.of(Utils.sha1(List.of("c" + i)),
+                    Instant.EPOCH, List.of(parent), "c" + i, tree, store,
+                    commits::get);
+            commits.put(commit.hash(), commit);
+            chain.add(commit);
+            Assert.assertEquals(i + 1, graph.add(commit, commits::get));
+            parent = commit.hash();
+        }
+        graph.save();
+
+        CommitGraph mapped = new CommitGraph(file);
+        Assert.assertEquals(401, mapped.size());
+        Assert.assertEquals(400, mapped.add(chain.get(399), commits::get));
+        Assert.assertEquals(1, mapped.add(chain.get(0), commits::get));
+        Commit merge = Commit.of(Utils.sha1(List.of("merge")), Instant.EPOCH,
+                List.of(chain.get(399).hash(), chain.get(5).hash()), "merge",
+                tree, store, commits::get);
+        Assert.assertEquals(401, mapped.add(merge, commits::get));
+        Assert.assertEquals(402, mapped.generation(401));
+        Assert.assertEquals(Set.of(11), mapped.mergeBases(401, 11));
+        Assert.assertEquals(Set.of(11), mapped.mergeBases(11, 401));
+        mapped.save();
+        CommitGraph reopened = new CommitGraph(file);
+        Assert.assertEquals(402, reopened.size());
+        Assert.assertEquals(merge.hash(), reopened.hash(401));
+        Assert.assertArrayEquals(new int[] {400, 6}, reopened.parents(401));
+    }
+
+    @Test
+    public void logStreams() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Files.createDirectories(testHome.resolve("d"));
+        for (int i = 0; i < 6; i++) {
+            String name = i % 3 == 0 ? "d/a.txt" : "b.txt";
+            IO.writeString(testHome.resolve(name), "v" + i);
+            gitlet.add(List.of(Paths.get(name)));
+            gitlet.commit("commit " + i);
+        }
+        List<String> all = new ArrayList<>();
+        for (Commit commit : gitlet.log()) {
+            all.add(commit.hash());
+        }
+        Assert.assertEquals(7, all.size());
+
+        List<String> visited = new ArrayList<>();
+        gitlet.log(2, null, null, commit -> visited.add(commit.hash()));
+        Assert.assertEquals(all.subList(0, 2), visited);
+
+        visited.clear();
+        gitlet.log(-1, null, testHome.resolve("d"),
+                commit -> visited.add(commit.hash()));
+        Assert.assertEquals(List.of(all.get(2), all.get(5)), visited);
+        visited.clear();
+        gitlet.log(1, null, testHome.resolve("b.txt"),
+                commit -> visited.add(commit.hash()));
+        Assert.assertEquals(List.of(all.get(0)), visited);
+
+        visited.clear();
+        gitlet.log(-1, gitlet.log().get(2).date(), null,
+                commit -> visited.add(commit.hash()));
+        Assert.assertEquals(all.subList(0, 3), visited);
+    }
+
+    @Test
+    public void checkoutWritesChangedFiles() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Path same = testHome.resolve("same.txt");
+        Path changed = testHome.resolve("changed.txt");
+        Path added = testHome.resolve("d").resolve("added.txt");
+        IO.writeString(same, "same");
+        IO.writeString(changed, "one");
+        gitlet.add(List.of(Paths.get("same.txt"), Paths.get("changed.txt")));
+        gitlet.commit("one");
+        gitlet.newBranch("other");
+        IO.writeString(changed, "two");
+        Files.createDirectories(added.getParent());
+        IO.writeString(added, "added");
+        gitlet.add(List.of(Paths.get("changed.txt"), Paths.get("d/added.txt")));
+        gitlet.commit("two");
+
+        FileTime old = FileTime.fromMillis(1000000000000L);
+        Files.setLastModifiedTime(same, old);
+        gitlet.checkout("other");
+        Assert.assertEquals(old, Files.getLastModifiedTime(same));
+        Assert.assertEquals("one", IO.readString(changed));
+        Assert.assertFalse(Files.exists(added.getParent()));
+
+        IO.writeString(same, "edited");
+        gitlet.checkout("master");
+        Assert.assertEquals("same", IO.readString(same));
+        Assert.assertEquals("added", IO.readString(added));
+        Assert.assertTrue(gitlet.getFileStates().values().stream()
+                .allMatch(state -> state == FileState.UNMODIFIED));
+    }
+
+    @Test
+    public void journalRecovery() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        IO.writeString(testHome.resolve("a.txt"), "a");
+        gitlet.add(List.of(Paths.get("a.txt")));
+        gitlet.commit("a");
+        gitlet.newBranch("other");
+        Path gitletDir = testHome.resolve(".gitlet");
+        Path master = gitletDir.resolve("branches").resolve("master");
+        String head = IO.readString(gitletDir.resolve("head"));
+
+        Journal journal = new Journal(gitletDir);
+        journal.write(gitletDir.resolve("branch"), "other");
+        journal.delete(master);
+        journal.prepare();
+        Assert.assertEquals("master",
+                IO.readString(gitletDir.resolve("branch")));
+        Assert.assertTrue(Files.exists(master));
+
+        new Gitlet(testHome);
+        Assert.assertEquals("other",
+                IO.readString(gitletDir.resolve("branch")));
+        Assert.assertFalse(Files.exists(master));
+        Assert.assertFalse(Files.exists(gitletDir.resolve("journal")));
+
+        Path stray = gitletDir.resolve("tmp").resolve("stray");
+        IO.writeString(stray, "master");
+        Gitlet reopened = new Gitlet(testHome);
+        Assert.assertFalse(Files.exists(stray));
+        Assert.assertEquals(head, IO.readString(gitletDir.resolve("head")));
+        Assert.assertEquals(2, reopened.log().size());
+    }
+
+    @Test
+    public void readsSerializedFormats() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Path file = testHome.resolve("a.txt");
+        IO.writeString(file, "a");
+        gitlet.add(List.of(Paths.get("a.txt")));
+        gitlet.commit("binary");
+        Commit head = gitlet.log().get(0);
+        Path gitletDir = testHome.resolve(".gitlet");
+        Path commitFile = gitletDir.resolve("commits").resolve(head.hash());
+        Path index = gitletDir.resolve("index");
+        Assert.assertFalse(IO.serialized(Files.readAllBytes(commitFile)));
+        Assert.assertFalse(IO.serialized(Files.readAllBytes(index)));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(head.date());
+            out.writeUTF("serialized");
+            out.writeInt(1);
+            out.writeUTF(head.parentHashes().get(0));
+            out.writeInt(-1);
+            out.writeUTF(head.stagedFiles().writeTree());
+        }
+        Files.write(commitFile, bytes.toByteArray());
+        bytes.reset();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeInt(1);
+            out.writeUTF("a.txt");
+            out.writeUTF(head.stagedFiles().getHash(file));
+        }
+        Files.write(index, bytes.toByteArray());
+
+        Gitlet reopened = new Gitlet(testHome);
+        Commit read = reopened.log().get(0);
+        Assert.assertEquals("serialized", read.message());
+        Assert.assertEquals(head.date(), read.date());
+        Assert.assertEquals(2, reopened.log().size());
+        Assert.assertTrue(reopened.stagedFiles().isEmpty());
+        reopened.saveToFileSystem();
+        Assert.assertFalse(IO.serialized(Files.readAllBytes(index)));
+        Assert.assertEquals(Set.of(file.toAbsolutePath().normalize()),
+                new Gitlet(testHome).trackedFiles());
+    }
+
+    @Test
+    public void checkoutLinks() throws IOException {
+        System.setProperty("gitlet.checkout.link", "true");
+        try {
+            Gitlet gitlet = new Gitlet(testHome);
+            gitlet.init();
+            Path a = testHome.resolve("a.txt");
+            Path b = testHome.resolve("b.txt");
+            Path c = testHome.resolve("c.txt");
+            IO.writeString(a, "a");
+            gitlet.add(List.of(Paths.get("a.txt")));
+            gitlet.commit("a");
+            gitlet.newBranch("other");
+            IO.writeString(b, "a");
+            IO.writeString(c, "a");
+            gitlet.add(List.of(Paths.get("b.txt"), Paths.get("c.txt")));
+            gitlet.commit("b");
+            gitlet.checkout("other");
+            gitlet.checkout("master");
+
+            List<Path> cached = IO.workingFiles(testHome,
+                    testHome.resolve(".gitlet").resolve("checkout"));
+            Assert.assertEquals(1, cached.size());
+            Path linked = Files.isSameFile(b, cached.get(0)) ? b : c;
+            Path copied = linked == b ? c : b;
+            Assert.assertTrue(Files.isSameFile(linked, cached.get(0)));
+            Assert.assertFalse(Files.isSameFile(copied, cached.get(0)));
+
+            linked.toFile().setWritable(true);
+            Files.write(linked, "edited".getBytes());
+            Assert.assertEquals("a", IO.readString(copied));
+            gitlet.checkout("other");
+            gitlet.checkout("master");
+            Assert.assertEquals("a", IO.readString(b));
+            Assert.assertEquals("a", IO.readString(c));
+        } finally {
+            System.clearProperty("gitlet.checkout.link");
+        }
+    }
+
+    @Test
+    public void shortIds() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Path testFile = testHome.resolve("test_file");
+        for (int i = 0; i < 20; i++) {
+            IO.writeString(testFile, "v" + i);
+            gitlet.add(List.of(Paths.get("test_file")));
+            gitlet.commit("commit " + i);
+        }
+        List<Commit> log = gitlet.log();
+        gitlet.reset(log.get(15).hash().substring(0, 6));
+        Assert.assertEquals("v4", IO.readString(testFile));
+        Assert.assertTrue(Files.exists(
+                testHome.resolve(".gitlet").resolve("commit-index")));
+
+        IO.writeString(testFile, "after index");
+        gitlet.add(List.of(Paths.get("test_file")));
+        gitlet.commit("after index");
+        String latest = gitlet.log().get(0).hash();
+        Gitlet newGitlet = new Gitlet(testHome);
+        newGitlet.reset(log.get(0).hash().substring(0, 8));
+        Assert.assertEquals("v19", IO.readString(testFile));
+        newGitlet.reset(latest.substring(0, 8));
+        Assert.assertEquals("after index", IO.readString(testFile));
+
+        Set<Character> seen = new HashSet<>();
+        String shared = null;
+        for (Commit commit : log) {
+            if (!seen.add(commit.hash().charAt(0))) {
+                shared = commit.hash().substring(0, 1);
+            }
+        }
+        try {
+            newGitlet.reset(shared);
+            Assert.fail();
+        } catch (GitletException e) {
+            Assert.assertEquals("Ambiguous commit id.", e.getMessage());
+        }
+        try {
+            newGitlet.reset("xyz");
+            Assert.fail();
+        } catch (GitletException e) {
+            Assert.assertEquals("No commit with that id exists.",
+                    e.getMessage());
+        }
+    }
+
+    @Test
+    public void messageIndex() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Path testFile = testHome.resolve("test_file");
+        for (int i = 0; i < 300; i++) {
+            IO.writeString(testFile, "v" + i);
+            gitlet.add(List.of(Paths.get("test_file")));
+            gitlet.commit((i % 2 == 0 ? "Fix bug " : "Add feature ") + i);
+        }
+        Path gitletDir = testHome.resolve(".gitlet");
+
+        Gitlet newGitlet = new Gitlet(testHome);
+        Assert.assertEquals(1, newGitlet.find("Fix bug 10").size());
+        Assert.assertTrue(Files.exists(gitletDir.resolve("message-index")));
+        IO.writeString(testFile, "last");
+        newGitlet.add(List.of(Paths.get("test_file")));
+        newGitlet.commit("fix: last");
+        Assert.assertEquals(151, newGitlet.find("FIX",
+                MessageIndex.Match.TOKEN).size());
+        Assert.assertEquals(6, newGitlet.find("Add feature 29",
+                MessageIndex.Match.PREFIX).size());
+
+        List<Commit> page = new ArrayList<>();
+        newGitlet.globalLog(299, 5, page::add);
+        Assert.assertEquals(3, page.size());
+        Assert.assertEquals("Add feature 299", page.get(1).message());
+        Assert.assertEquals("fix: last", page.get(2).message());
+
+        Files.delete(gitletDir.resolve("messages"));
+        Assert.assertEquals(1, new Gitlet(testHome).find("fix: last").size());
+    }
+
+    @Test
+    public void lineMerge() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Path clean = testHome.resolve("clean.txt");
+        Path conflicted = testHome.resolve("conflicted.txt");
+        IO.writeString(clean, "1\n2\n3\n4\n5\n6\n7\n8\n");
+        IO.writeString(conflicted, "a\nb\nc\nd\ne\n");
+        gitlet.add(List.of(Paths.get("clean.txt"),
+                Paths.get("conflicted.txt")));
+        gitlet.commit("base");
+        gitlet.newBranch("other");
+        IO.writeString(clean, "1\ntwo\n3\n4\n5\n6\n7\n8\n");
+        IO.writeString(conflicted, "a\nB\nc\nd\ne\n");
+        gitlet.add(List.of(Paths.get("clean.txt"),
+                Paths.get("conflicted.txt")));
+        gitlet.commit("master");
+        gitlet.checkout("other");
+        IO.writeString(clean, "1\n2\n3\n4\n5\n6\n7\neight\nnine\n");
+        IO.writeString(conflicted, "a\nbeta\nc\nd\nE");
+        gitlet.add(List.of(Paths.get("clean.txt"),
+                Paths.get("conflicted.txt")));
+        gitlet.commit("other");
+        gitlet.checkout("master");
+
+        Assert.assertTrue(gitlet.merge("other"));
+        Assert.assertEquals("1\ntwo\n3\n4\n5\n6\n7\neight\nnine\n",
+                IO.readString(clean));
+        Assert.assertEquals(String.format("a\n<<<<<<< HEAD%nB\n=======%n"
+                + "beta\n>>>>>>>%nc\nd\nE"), IO.readString(conflicted));
+    }
+
+    @Test
+    public void diffIsMinimal() {
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            int[] a = random.ints(random.nextInt(40), 0, 4).toArray();
+            int[] b = random.ints(random.nextInt(40), 0, 4).toArray();
+            List<Diff.Edit> edits = Diff.diff(a, b);
+            int changed = 0;
+            for (Diff.Edit edit : edits) {
+                changed += edit.endA() - edit.beginA()
+                        + edit.endB() - edit.beginB();
+            }
+            int[][] lcs = new int[a.length + 1][b.length + 1];
+            for (int i = a.length - 1; i >= 0; i--) {
+                for (int j = b.length - 1; j >= 0; j--) {
+                    lcs[i][j] = a[i] == b[j] ? lcs[i + 1][j + 1] + 1
+                            : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+                }
+            }
+            Assert.assertArrayEquals(b, patch(a, b, edits));
+            Assert.assertEquals(a.length + b.length - 2 * lcs[0][0], changed);
+            Assert.assertArrayEquals(b, patch(a, b, Diff.histogram(a, b)));
+        }
+    }
+
+    private static int[] patch(int[] a, int[] b, List<Diff.Edit> edits) {
+        List<Integer> patched = new ArrayList<>();
+        int next = 0;
+        for (Diff.Edit edit : edits) {
+            Assert.assertTrue(edit.beginA() >= next);
+            for (; next < edit.beginA(); next++) {
+                patched.add(a[next]);
+            }
+            for (int i = edit.beginB(); i < edit.endB(); i++) {
+                patched.add(b[i]);
+            }
+            next = edit.endA();
+        }
+        for (; next < a.length; next++) {
+            patched.add(a[next]);
+        }
+        return patched.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Test
+    public void diffCommand() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Path file = testHome.resolve("f.txt");
+        Path gone = testHome.resolve("gone.txt");
+        IO.writeString(file, "1\n2\n3\n4\n5\n6\n7\n8\n9\n10\n");
+        IO.writeString(gone, "bye\n");
+        gitlet.add(List.of(Paths.get("f.txt"), Paths.get("gone.txt")));
+        gitlet.commit("first");
+        String first = gitlet.log().get(0).hash();
+
+        IO.writeString(file, "1\ntwo\n3\n4\n5\n6\n7\n8\n9\n10");
+        Files.delete(gone);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        gitlet.diff(out);
+        Assert.assertEquals("diff --git a/f.txt b/f.txt\n"
+                + "--- a/f.txt\n+++ b/f.txt\n"
+                + "@@ -1,5 +1,5 @@\n 1\n-2\n+two\n 3\n 4\n 5\n"
+                + "@@ -7,4 +7,4 @@\n 7\n 8\n 9\n-10\n+10\n"
+                + "\\ No newline at end of file\n"
+                + "diff --git a/gone.txt b/gone.txt\ndeleted file\n"
+                + "--- a/gone.txt\n+++ /dev/null\n@@ -1 +0,0 @@\n-bye\n",
+                out.toString());
+
+        gitlet.add(List.of(Paths.get("f.txt")));
+        out.reset();
+        gitlet.diff(out);
+        Assert.assertTrue(out.toString().startsWith(
+                "diff --git a/gone.txt b/gone.txt\n"));
+        out.reset();
+        gitlet.diffStaged(out);
+        Assert.assertTrue(out.toString().startsWith(
+                "diff --git a/f.txt b/f.txt\n"));
+        Assert.assertFalse(out.toString().contains("gone.txt"));
+
+        gitlet.rm(Paths.get("gone.txt"));
+        gitlet.commit("second");
+        out.reset();
+        gitlet.diff(first.substring(0, 8), gitlet.log().get(0).hash(), out);
+        Assert.assertTrue(out.toString().contains("-2\n+two\n"));
+        Assert.assertTrue(out.toString().contains("+++ /dev/null\n"));
+    }
+
+    @Test
+    public void remotes() throws IOException {
+        Path remoteHome = Files.createDirectory(testHome.resolve("remote"));
+        Path localHome = Files.createDirectory(testHome.resolve("local"));
+        Gitlet remote = new Gitlet(remoteHome);
+        remote.init();
+        Path remoteFile = remoteHome.resolve("d").resolve("f.txt");
+        Files.createDirectory(remoteFile.getParent());
+        for (int i = 0; i < 60; i++) {
+            IO.writeString(remoteFile, "version " + i + "\n".repeat(i));
+            remote.add(List.of(Paths.get("d")));
+            remote.commit("remote " + i);
+        }
+        Gitlet local = new Gitlet(localHome);
+        local.init();
+        local.addRemote("origin", "../remote/.gitlet");
+
+        local.fetch("origin", "master");
+        Assert.assertTrue(Files.exists(localHome.resolve(".gitlet")
+                .resolve("packs").resolve("trees")));
+        Assert.assertTrue(Files.exists(localHome.resolve(".gitlet")
+                .resolve("remote-branches").resolve("origin")
+                .resolve("master")));
+        local.newBranch("origin");
+        local.deleteBranch("origin");
+        try {
+            local.pull("origin", "master");
+            Assert.fail();
+        } catch (GitletException e) {
+            Assert.assertEquals("Current branch fast-forwarded.",
+                    e.getMessage());
+        }
+        Path localFile = localHome.resolve("d").resolve("f.txt");
+        Assert.assertEquals(IO.readString(remoteFile),
+                IO.readString(localFile));
+        Assert.assertEquals(61, local.log().size());
+
+        IO.writeString(localFile, "local");
+        local.add(List.of(Paths.get("d")));
+        local.commit("local");
+        local.push("origin", "master");
+        remote = new Gitlet(remoteHome);
+        Assert.assertEquals("local", remote.log().get(0).message());
+        Assert.assertEquals("local", IO.readString(remoteFile));
+        local.push("origin", "other");
+        Assert.assertEquals(62, new Gitlet(remoteHome).log().size());
+
+        IO.writeString(remoteFile, "remote again");
+        remote.add(List.of(Paths.get("d")));
+        remote.commit("remote again");
+        IO.writeString(localFile, "local again");
+        local.add(List.of(Paths.get("d")));
+        local.commit("local again");
+        try {
+            local.push("origin", "master");
+            Assert.fail();
+        } catch (GitletException e) {
+            Assert.assertEquals("Please pull down remote changes before "
+                    + "pushing.", e.getMessage());
+        }
+        Assert.assertTrue(local.pull("origin", "master"));
+        Assert.assertEquals(1, new Gitlet(localHome).find("remote again")
+                .size());
+    }
+
+    @Test
+    public void deltaBlobs() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            content.append("line ").append(i).append('\n');
+        }
+        Path testFile = testHome.resolve("test_file");
+        List<String> versions = new java.util.ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            content.insert(i * 100, "edit " + i + "\n");
+            IO.writeString(testFile, content.toString());
+            gitlet.add(List.of(Paths.get("test_file")));
+            gitlet.commit("edit " + i);
+            versions.add(gitlet.log().get(0).hash());
+        }
+
+        long stored;
+        try (var blobs = Files.list(testHome.resolve(".gitlet")
+                .resolve("blobs"))) {
+            stored = blobs.mapToLong(IO::size).sum();
+        }
+        Assert.assertTrue(stored < content.length());
+
+        Gitlet newGitlet = new Gitlet(testHome);
+        newGitlet.checkout(versions.get(0), Paths.get("test_file"));
+        String first = IO.readString(testFile);
+        Assert.assertTrue(first.startsWith("edit 0\nline 0\n"));
+        Assert.assertFalse(first.contains("edit 1\n"));
+        newGitlet.checkout(versions.get(14), Paths.get("test_file"));
+        Assert.assertEquals(content.toString(), IO.readString(testFile));
+    }
+
+    @Test
+    public void rawBlobsStartingWithHeader() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Path gitletDir = testHome.resolve(".gitlet");
+        Assert.assertTrue(Files.exists(gitletDir.resolve("blob-headers")));
+        Files.delete(gitletDir.resolve("blob-headers"));
+
+        byte[] content = {'g', 'l', 'b', 1, 0, 'r', 'a', 'w'};
+        Path testFile = testHome.resolve("test_file");
+        Files.write(testFile, content);
+        String hash = Utils.fileHash(testFile);
+        Files.createDirectories(gitletDir.resolve("blobs"));
+        Files.write(gitletDir.resolve("blobs").resolve(hash), content);
+        FileStore store = new FileStore(testHome);
+        try (InputStream in = store.openFile(hash)) {
+            Assert.assertArrayEquals(content, in.readAllBytes());
+        }
+        Assert.assertEquals(List.of(), store.chunks(hash));
+
+        IO.writeString(testFile, "headed");
+        String headed = store.putFile(testFile);
+        try (InputStream in = new FileStore(testHome).openFile(headed)) {
+            Assert.assertEquals("headed", new String(in.readAllBytes(),
+                    StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void fileHash() throws IOException {
+        byte[] content = new byte[200000];
+        new java.util.Random(61).nextBytes(content);
+        Path testFile = testHome.resolve("test_file");
+        Files.write(testFile, content);
+
+        Assert.assertEquals(Utils.sha1(List.of(content)),
+                Utils.fileHash(testFile));
+    }
+
+    @Test
+    public void statusTrustsStatData() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+
+        Path testFile = testHome.resolve("test_file");
+        IO.writeString(testFile, "Hello World");
+        FileTime old = FileTime.fromMillis(1000000000000L);
+        Files.setLastModifiedTime(testFile, old);
+        gitlet.add(List.of(Paths.get("test_file")));
+
+        IO.writeString(testFile, "Hello Earth");
+        Files.setLastModifiedTime(testFile, old);
+        Gitlet newGitlet = new Gitlet(testHome);
+        Assert.assertEquals(FileState.UNMODIFIED,
+                newGitlet.getFileStates().get(testFile));
+
+        Files.setLastModifiedTime(testFile, FileTime.fromMillis(0));
+        Assert.assertEquals(FileState.MODIFIED,
+                newGitlet.getFileStates().get(testFile));
+    }
+
+    @Test
+    public void statusLeavesIndexUnwritten() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Path testFile = testHome.resolve("test_file");
+        IO.writeString(testFile, "Hello World");
+        gitlet.add(List.of(Paths.get("test_file")));
+        gitlet.commit("hello");
+        Files.setLastModifiedTime(testFile,
+                FileTime.fromMillis(1000000000000L));
+
+        Path index = testHome.resolve(".gitlet").resolve("index");
+        byte[] saved = Files.readAllBytes(index);
+        try (Gitlet reader = Gitlet.open(testHome, true)) {
+            Assert.assertEquals(FileState.UNMODIFIED,
+                    reader.getFileStates().get(testFile));
+        }
+        Assert.assertArrayEquals(saved, Files.readAllBytes(index));
+        try (Gitlet writer = Gitlet.open(testHome, false)) {
+            writer.getFileStates();
+            writer.newBranch("other");
+        }
+        Assert.assertFalse(Arrays.equals(saved, Files.readAllBytes(index)));
+    }
+
+    @Test
+    public void addManyFiles() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+
+        List<Path> files = new java.util.ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            IO.writeString(testHome.resolve("file" + i), "content " + i % 50);
+            files.add(Paths.get("file" + i));
+        }
+        gitlet.add(files);
+        gitlet.commit("many");
+
+        Gitlet newGitlet = new Gitlet(testHome);
+        Assert.assertEquals(200, newGitlet.trackedFiles().size());
+        Assert.assertEquals(0, newGitlet.untrackedFiles().size());
+        for (FileState state : newGitlet.getFileStates().values()) {
+            Assert.assertEquals(FileState.UNMODIFIED, state);
+        }
+        Files.delete(testHome.resolve("file7"));
+        newGitlet.restore(Paths.get("file7"));
+        Assert.assertEquals("content 7",
+                IO.readString(testHome.resolve("file7")));
+    }
+
+    @Test
+    public void concurrentCommands() throws Exception {
+        new Gitlet(testHome).init();
+        int writers = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(2 * writers);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            String name = "file" + i;
+            futures.add(pool.submit(() -> {
+                IO.writeString(testHome.resolve(name), name);
+                try (Gitlet gitlet = Gitlet.open(testHome, false)) {
+                    gitlet.add(List.of(Paths.get(name)));
+                    gitlet.commit(name);
+                }
+                return null;
+            }));
+            futures.add(pool.submit(() -> {
+                try (Gitlet gitlet = Gitlet.open(testHome, true)) {
+                    gitlet.getFileStates();
+                    Assert.assertEquals(gitlet.log().size() - 1,
+                            gitlet.trackedFiles().size());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+
+        Gitlet gitlet = new Gitlet(testHome);
+        Assert.assertEquals(writers + 1, gitlet.log().size());
+        Assert.assertEquals(writers, gitlet.trackedFiles().size());
+    }
+
+    @Test
+    public void pushesBothWays() throws Exception {
+        Path homeA = Files.createDirectory(testHome.resolve("a"));
+        Path homeB = Files.createDirectory(testHome.resolve("b"));
+        for (Path home : List.of(homeA, homeB)) {
+            Gitlet gitlet = new Gitlet(home);
+            gitlet.init();
+            IO.writeString(home.resolve("f.txt"), home.toString());
+            gitlet.add(List.of(Paths.get("f.txt")));
+            gitlet.commit(home.getFileName().toString());
+            gitlet.addRemote("other", home == homeA ? "../b" : "../a");
+        }
+        CountDownLatch opened = new CountDownLatch(2);
+        ExecutorService pool = Executors.newFixedThreadPool(2, task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<?>> futures = new ArrayList<>();
+        for (Path home : List.of(homeA, homeB)) {
+            futures.add(pool.submit(() -> {
+                try (Gitlet gitlet = Gitlet.open(home, false)) {
+                    opened.countDown();
+                    opened.await();
+                    gitlet.push("other", "from-" + home.getFileName());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        for (Path home : List.of(homeA, homeB)) {
+            String from = home == homeA ? "b" : "a";
+            Assert.assertTrue(new Gitlet(home).branches().stream()
+                    .anyMatch(branch -> branch.name().equals("from-" + from)
+                            && branch.head().message().equals(from)));
+        }
+    }
+
+    @Test
+    public void gcRemovesUnreachable() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        IO.writeString(testHome.resolve("a.txt"), "a");
+        gitlet.add(List.of(Paths.get("a.txt")));
+        gitlet.commit("keep");
+        gitlet.newBranch("other");
+        gitlet.checkout("other");
+        IO.writeString(testHome.resolve("b.txt"), "b".repeat(10000));
+        gitlet.add(List.of(Paths.get("b.txt")));
+        gitlet.commit("drop");
+        String dropped = gitlet.log().get(0).hash();
+        gitlet.checkout("master");
+        gitlet.pack();
+        IO.writeString(testHome.resolve("c.txt"), "c");
+        gitlet.add(List.of(Paths.get("c.txt")));
+        gitlet.deleteBranch("other");
+
+        Assert.assertTrue(gitlet.gc() > 0);
+        Gitlet reopened = new Gitlet(testHome);
+        Assert.assertEquals(0, reopened.find("drop").size());
+        Assert.assertEquals(1, reopened.find("keep").size());
+        try {
+            reopened.reset(dropped);
+            Assert.fail();
+        } catch (GitletException e) {
+            Assert.assertEquals("No commit with that id exists.",
+                    e.getMessage());
+        }
+        reopened.commit("after");
+        Assert.assertEquals(3, reopened.log().size());
+        Assert.assertEquals(0, reopened.gc());
+        reopened.checkout(reopened.log().get(1).hash(),
+                Paths.get("a.txt"));
+        Assert.assertEquals("a", IO.readString(testHome.resolve("a.txt")));
+    }
+
+    @Test
+    public void daemonServesCommands() throws Exception {
+        new Gitlet(testHome).init();
+        Thread server = new Thread(() -> new Daemon(testHome).serve());
+        server.setDaemon(true);
+        server.start();
+        DaemonClient connected = null;
+        for (int i = 0; i < 100 && connected == null; i++) {
+            Thread.sleep(50);
+            connected = DaemonClient.connect(testHome);
+        }
+        Assert.assertNotNull(connected);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(output, true));
+        try (DaemonClient client = connected) {
+            IO.writeString(testHome.resolve("a.txt"), "a");
+            client.run(new String[] {"add", "a.txt"});
+            client.run(new String[] {"commit", "one"});
+            try (Gitlet gitlet = Gitlet.open(testHome, false)) {
+                IO.writeString(testHome.resolve("b.txt"), "b");
+                gitlet.add(List.of(Paths.get("b.txt")));
+                gitlet.commit("two");
+            }
+            client.run(new String[] {"log"});
+        } finally {
+            System.setOut(stdout);
+        }
+        String log = output.toString();
+        Assert.assertTrue(log.contains("one"));
+        Assert.assertTrue(log.contains("two"));
+
+        Gitlet gitlet = Gitlet.open(testHome, true);
+        gitlet.close();
+        Assert.assertSame(gitlet, gitlet.reopen(true));
+        gitlet.close();
+        try (Gitlet writer = Gitlet.open(testHome, false)) {
+            writer.newBranch("other");
+        }
+        Gitlet reloaded = gitlet.reopen(true);
+        reloaded.close();
+        Assert.assertNotSame(gitlet, reloaded);
+    }
+
+    @Test
+    public void reopenSeesStoppedWriters() throws IOException {
+        new Gitlet(testHome).init();
+        Path gitletDir = testHome.resolve(".gitlet");
+        Path headFile = gitletDir.resolve("head");
+        Path master = gitletDir.resolve("branches").resolve("master");
+        Gitlet gitlet = Gitlet.open(testHome, true);
+        gitlet.close();
+        String first = IO.readString(headFile);
+
+        Gitlet writer = new Gitlet(testHome);
+        IO.writeString(testHome.resolve("a.txt"), "a");
+        writer.add(List.of(Paths.get("a.txt")));
+        writer.commit("a");
+        String second = IO.readString(headFile);
+        IO.writeString(headFile, first);
+        IO.writeString(master, first);
+        Journal journal = new Journal(gitletDir);
+        journal.write(headFile, second);
+        journal.write(master, second);
+        journal.prepare();
+
+        Gitlet reloaded = gitlet.reopen(true);
+        reloaded.close();
+        Assert.assertNotSame(gitlet, reloaded);
+        Assert.assertEquals(second, reloaded.log().get(0).hash());
+        Assert.assertEquals(second, IO.readString(headFile));
+
+        try (RepositoryLock lock = RepositoryLock.acquire(gitletDir, true)) {
+            Assert.assertEquals(lock.generation() + 1, ByteBuffer.wrap(
+                    Files.readAllBytes(gitletDir.resolve("lock"))).getLong());
+        }
+    }
+
+    @Test
+    public void watcherFollowsChanges() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Path dir = testHome.resolve("dir");
+        Files.createDirectories(dir);
+        for (int i = 0; i < 5; i++) {
+            IO.writeString(dir.resolve("f" + i), "f" + i);
+            gitlet.add(List.of(Paths.get("dir", "f" + i)));
+        }
+        gitlet.commit("files");
+        try (Watcher watcher = Watcher.start(testHome)) {
+            Assert.assertNotNull(watcher);
+            gitlet.watch(watcher);
+            Assert.assertEquals(Set.of(FileState.UNMODIFIED),
+                    new HashSet<>(gitlet.getFileStates().values()));
+            Assert.assertEquals(List.of(), gitlet.untrackedFiles());
+
+            IO.writeString(dir.resolve("f0"), "changed");
+            Files.delete(dir.resolve("f1"));
+            Path nested = testHome.resolve("new").resolve("nested");
+            Files.createDirectories(nested);
+            IO.writeString(nested.resolve("g"), "g");
+            Map<Path, FileState> states = gitlet.getFileStates();
+            Assert.assertEquals(FileState.MODIFIED,
+                    states.get(dir.resolve("f0")));
+            Assert.assertEquals(FileState.DELETED,
+                    states.get(dir.resolve("f1")));
+            Assert.assertEquals(FileState.UNMODIFIED,
+                    states.get(dir.resolve("f2")));
+            Assert.assertEquals(List.of(nested.resolve("g")),
+                    gitlet.untrackedFiles());
+
+            IO.deleteWorkingFile(testHome, nested.resolve("g"));
+            IO.writeString(dir.resolve("f0"), "f0");
+            Assert.assertEquals(List.of(), gitlet.untrackedFiles());
+            Assert.assertEquals(FileState.UNMODIFIED,
+                    gitlet.getFileStates().get(dir.resolve("f0")));
+        }
+    }
+
+    @Test
+    public void largeFilesShareChunks() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        byte[] content = new byte[3 << 20];
+        new Random(24).nextBytes(content);
+        Path testFile = testHome.resolve("data");
+        Files.write(testFile, content);
+        gitlet.add(List.of(Paths.get("data")));
+        gitlet.commit("first");
+        int first = new FileStore(testHome).chunkHashes().size();
+        Assert.assertTrue(first > 1);
+
+        byte[] changed = new byte[content.length + 100];
+        System.arraycopy(content, 0, changed, 0, 1 << 20);
+        System.arraycopy(content, 1 << 20, changed, (1 << 20) + 100,
+                content.length - (1 << 20));
+        Files.write(testFile, changed);
+        gitlet.add(List.of(Paths.get("data")));
+        gitlet.commit("second");
+        int second = new FileStore(testHome).chunkHashes().size();
+        Assert.assertTrue(second - first <= 3);
+
+        String firstHash = gitlet.log().get(1).hash();
+        gitlet.checkout(firstHash, Paths.get("data"));
+        Assert.assertArrayEquals(content, Files.readAllBytes(testFile));
+        gitlet.pack();
+        gitlet.reset(firstHash);
+        Assert.assertArrayEquals(content, Files.readAllBytes(testFile));
+        Assert.assertTrue(gitlet.gc() > 0);
+        Gitlet reopened = new Gitlet(testHome);
+        reopened.checkout(firstHash, Paths.get("data"));
+        Assert.assertArrayEquals(content, Files.readAllBytes(testFile));
+    }
+
+    @Test
+    public void logSkipsCommitsByChangedPaths() throws IOException {
+        Gitlet gitlet = new Gitlet(testHome);
+        gitlet.init();
+        Files.createDirectories(testHome.resolve("d"));
+        for (int i = 0; i < 6; i++) {
+            String name = i % 3 == 0 ? "d/a.txt" : "b.txt";
+            IO.writeString(testHome.resolve(name), "v" + i);
+            gitlet.add(List.of(Paths.get(name)));
+            gitlet.commit("commit " + i);
+        }
+        List<String> visited = new ArrayList<>();
+        gitlet.log(-1, null, testHome.resolve("d"),
+                commit -> visited.add(commit.hash()));
+        Assert.assertEquals(2, visited.size());
+
+        Path gitletDir = testHome.resolve(".gitlet");
+        Path graphFile = gitletDir.resolve("commit-graph");
+        CommitGraph graph = new CommitGraph(graphFile);
+        ChangedPaths filters = ChangedPaths.update(
+                gitletDir.resolve("changed-paths"), graphFile, hash -> {
+                    throw new AssertionError();
+                });
+        Assert.assertEquals(graph.size(), filters.covered());
+        int touchesA = graph.id(visited.get(0));
+        int touchesB = graph.firstParent(touchesA);
+        Assert.assertTrue(filters.mayChange(touchesA, "d/a.txt"));
+        Assert.assertTrue(filters.mayChange(touchesA, "d"));
+        Assert.assertFalse(filters.mayChange(touchesA, "b.txt"));
+        Assert.assertTrue(filters.mayChange(touchesB, "b.txt"));
+        Assert.assertFalse(filters.mayChange(touchesB, "d/a.txt"));
+
+        IO.writeString(testHome.resolve("d/a.txt"), "v6");
+        gitlet.add(List.of(Paths.get("d/a.txt")));
+        gitlet.commit("commit 6");
+        gitlet.gc();
+        visited.clear();
+        new Gitlet(testHome).log(-1, null, testHome.resolve("d/a.txt"),
+                commit -> visited.add(commit.message()));
+        Assert.assertEquals(List.of("commit 6", "commit 3", "commit 0"),
+                visited);
+        Gitlet reloaded = new Gitlet(testHome);
+        Instant since = reloaded.log().get(3).date();
+        visited.clear();
+        reloaded.log(-1, since, testHome.resolve("d/a.txt"),
+                commit -> visited.add(commit.message()));
+        Assert.assertEquals(List.of("commit 6", "commit 3"), visited);
+    }
 }
@@ -1,14 +1,27 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
@@ -18,6 +31,20 @@ import java.util.stream.Stream;
  * @author Charlie Zhou
  */
 public class IO {
+    /**
+     * The chunk size of content comparisons.
+     */
+    private static final int COMPARE_CHUNK = 1 << 16;
+    /**
+     * The leading bytes of a stream written by Java serialization.
+     */
+    private static final byte[] SERIALIZED = {(byte) 0xac, (byte) 0xed};
+    /**
+     * Whether written files are flushed to disk before they are used.
+     */
+    private static final boolean FSYNC =
+            !"false".equals(System.getProperty("gitlet.fsync"));
+
     /**
      * Write a string to the path.
      * @param path the path.
@@ -51,36 +78,40 @@ public class IO {
         }
     }
 
+    /**
+     * Read a string from a stream and close it.
+     * @param in the stream.
+     * @return the string.
+     */
+    public static String readString(InputStream in) {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
     /**
      * Reads a branch from file.
      * @param path the path.
+     * @param name the branch name, which may contain slashes.
      * @param commitResolver the resolver.
      * @return the branch.
      */
-    public static Branch readBranch(Path path,
+    public static Branch readBranch(Path path, String name,
                                     Function<String, Commit> commitResolver) {
         String headHash = IO.readString(path);
-        String name = path.getFileName().toString();
         return new Branch(commitResolver.apply(headHash), name);
     }
 
-    /**
-     * Writes a branch to file.
-     * @param path the file.
-     * @param branch the branch.
-     */
-    public static void writeBranch(Path path, Branch branch) {
-        IO.writeString(path, branch.head().hash());
-    }
-
     /**
      * Writes a commit to file.
      * @param path the file.
      * @param commit the commit.
      */
     public static void writeCommit(Path path, Commit commit) {
-        try (ObjectOutputStream out =
-                     new ObjectOutputStream(Files.newOutputStream(path))) {
+        try (OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(path))) {
             Commit.writeCommit(commit, out);
         } catch (IOException e) {
             throw new GitletException(e);
@@ -88,53 +119,76 @@ public class IO {
     }
 
     /**
-     * Read a commit from file.
-     * @param path the file.
-     * @param workingDir the working directory.
+     * Read a commit from a stream and close it. Commits written by Java
+     * serialization, as before the binary format, are read as well.
+     * @param stream the stream.
+     * @param fileStore the file store.
      * @param commitResolver the resolver.
      * @param hash the hash.
      * @return the commit.
      */
-    public static Commit readCommit(Path path, Path workingDir,
+    public static Commit readCommit(InputStream stream, FileStore fileStore,
                                     Function<String, Commit> commitResolver,
                                     String hash) {
-        try (ObjectInputStream in =
-                     new ObjectInputStream(Files.newInputStream(path))) {
-            return Commit.readCommit(in, workingDir, commitResolver, hash);
+        try (InputStream in = new BufferedInputStream(stream)) {
+            in.mark(SERIALIZED.length);
+            byte[] head = in.readNBytes(SERIALIZED.length);
+            in.reset();
+            if (Arrays.equals(head, SERIALIZED)) {
+                return Commit.readSerialized(new ObjectInputStream(in),
+                        fileStore, commitResolver, hash);
+            }
+            return Commit.readCommit(in, fileStore, commitResolver, hash);
         } catch (IOException | ClassNotFoundException e) {
             throw new GitletException(e);
         }
     }
 
     /**
-     * Writes a staging to file.
-     * @param path the file.
+     * Encodes a staging as written to file.
      * @param stagedFiles the staged files.
+     * @return the encoding.
      */
-    public static void writeStaging(Path path, StagedFiles stagedFiles) {
-        try (ObjectOutputStream out =
-                     new ObjectOutputStream(Files.newOutputStream(path))) {
-            StagedFiles.writeStaging(stagedFiles, out);
+    public static byte[] encodeStaging(StagedFiles stagedFiles) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            StagedFiles.writeStaging(stagedFiles, bytes);
         } catch (IOException e) {
             throw new GitletException(e);
         }
+        return bytes.toByteArray();
     }
 
     /**
-     * Reads a staging from file.
-     * @param path the file.
-     * @param workingDir the working directory.
+     * Decodes a staging written to file, in the binary format or by Java
+     * serialization as before it.
+     * @param content the file's content.
+     * @param fileStore the file store.
      * @return the staging.
      */
-    public static StagedFiles readStaging(Path path, Path workingDir) {
-        try (ObjectInputStream in =
-                     new ObjectInputStream(Files.newInputStream(path))) {
-            return StagedFiles.readStaging(in, workingDir);
+    public static StagedFiles decodeStaging(byte[] content,
+                                            FileStore fileStore) {
+        if (!serialized(content)) {
+            return StagedFiles.readStaging(ByteBuffer.wrap(content),
+                    fileStore);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(content))) {
+            return StagedFiles.readSerialized(in, fileStore);
         } catch (IOException e) {
             throw new GitletException(e);
         }
     }
 
+    /**
+     * @param content the content of a file.
+     * @return whether the file was written by Java serialization.
+     */
+    public static boolean serialized(byte[] content) {
+        return Arrays.equals(content, 0, Math.min(content.length,
+                SERIALIZED.length), SERIALIZED, 0, SERIALIZED.length);
+    }
+
     /**
      * Copy files from from to to.
      * @param from the form.
@@ -149,6 +203,85 @@ public class IO {
         }
     }
 
+    /**
+     * Copy a stream to a file and close the stream.
+     * @param from the stream.
+     * @param to the file.
+     */
+    public static void copyFile(InputStream from, Path to) {
+        try (from) {
+            Files.createDirectories(to.getParent());
+            Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Opens a file for writing, creating its directory if needed.
+     * @param file the file.
+     * @return the stream.
+     */
+    public static OutputStream newOutputStream(Path file) {
+        try {
+            Files.createDirectories(file.getParent());
+            return new BufferedOutputStream(Files.newOutputStream(file));
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Flushes files or directories to disk, in parallel so that the
+     * flushes can share the disk's writes. Does nothing when the
+     * gitlet.fsync property is false. Directories that cannot be flushed,
+     * as on Windows, are skipped.
+     * @param paths the files and directories.
+     */
+    public static void sync(Collection<Path> paths) {
+        if (!FSYNC) {
+            return;
+        }
+        Parallel.map(new ArrayList<>(paths), path -> {
+            boolean dir = Files.isDirectory(path);
+            try (FileChannel channel = FileChannel.open(path, dir
+                    ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (IOException e) {
+                if (!dir) {
+                    throw new GitletException(e);
+                }
+            }
+            return path;
+        });
+    }
+
+    /**
+     * Atomically moves a file, replacing the target.
+     * @param from the file.
+     * @param to the target.
+     */
+    public static void move(Path from, Path to) {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * @param file the file.
+     * @return the file's size.
+     */
+    public static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
     /**
      * Deletes a file if it's existed.
      * @param file the file.
@@ -161,6 +294,61 @@ public class IO {
         }
     }
 
+    /**
+     * Lists the files under a directory of a working directory and its
+     * subdirectories, leaving out the gitlet directory.
+     * @param workingDir the working directory.
+     * @param from the directory to list.
+     * @return the files.
+     */
+    public static List<Path> workingFiles(Path workingDir, Path from) {
+        Path gitletDir = workingDir.resolve(Gitlet.GITLET_DIR);
+        List<Path> files = new ArrayList<>();
+        try {
+            Files.walkFileTree(from, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(
+                        Path dir, BasicFileAttributes attrs) {
+                    return dir.equals(gitletDir)
+                            ? FileVisitResult.SKIP_SUBTREE
+                            : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(
+                        Path file, BasicFileAttributes attrs) {
+                    if (!attrs.isDirectory()) {
+                        files.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return files;
+    }
+
+    /**
+     * Deletes a working file, and then its parent directories that are
+     * left empty, up to the working directory.
+     * @param workingDir the working directory.
+     * @param file the file.
+     */
+    public static void deleteWorkingFile(Path workingDir, Path file) {
+        deleteIfExists(file);
+        Path dir = file.getParent();
+        try {
+            while (dir != null && !dir.equals(workingDir)
+                    && dir.startsWith(workingDir)) {
+                Files.delete(dir);
+                dir = dir.getParent();
+            }
+        } catch (IOException e) {
+            return;
+        }
+    }
+
     /**
      * Walks.
      * @param from from path.
@@ -175,16 +363,88 @@ public class IO {
     }
 
     /**
-     * @param firstFile the first file.
-     * @param secondFile the second file.
-     * @return whether are they different.
+     * Writes an unsigned variable-length integer, seven bits per byte.
+     * @param out the output.
+     * @param value the value.
+     */
+    public static void writeVarint(OutputStream out, long value) {
+        try {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Reads an unsigned variable-length integer.
+     * @param in the input.
+     * @return the value.
      */
-    public static boolean different(Path firstFile, Path secondFile) {
+    public static long readVarint(InputStream in) {
         try {
-            byte[] first = Files.readAllBytes(firstFile);
-            byte[] second = Files.readAllBytes(secondFile);
+            long value = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw Utils.error("Unexpected end of data.");
+                }
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw Utils.error("Malformed varint.");
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Reads an unsigned variable-length integer from a buffer.
+     * @param in the buffer.
+     * @return the value.
+     */
+    public static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw Utils.error("Unexpected end of data.");
+            }
+            int b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw Utils.error("Malformed varint.");
+    }
 
-            return !Arrays.equals(first, second);
+    /**
+     * Compares a file with a stream chunk by chunk, stopping at the first
+     * difference.
+     * @param firstFile the first file.
+     * @param second the second file's content, closed afterwards.
+     * @return whether are they different.
+     */
+    public static boolean different(Path firstFile, InputStream second) {
+        try (second; InputStream first = Files.newInputStream(firstFile)) {
+            byte[] firstChunk = new byte[COMPARE_CHUNK];
+            byte[] secondChunk = new byte[COMPARE_CHUNK];
+            while (true) {
+                int n = first.readNBytes(firstChunk, 0, COMPARE_CHUNK);
+                int m = second.readNBytes(secondChunk, 0, COMPARE_CHUNK);
+                if (n != m || !Arrays.equals(firstChunk, 0, n,
+                        secondChunk, 0, m)) {
+                    return true;
+                }
+                if (n < COMPARE_CHUNK) {
+                    return false;
+                }
+            }
         } catch (IOException e) {
             throw new GitletException(e);
         }
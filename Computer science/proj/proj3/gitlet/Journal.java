@@ -0,0 +1,218 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Updates several files of a repository all or nothing. New contents are
+ * written to temporary files, which are flushed to disk together with a
+ * journal naming the file each one replaces. Renaming the journal into
+ * place commits the update, and the temporary files are then moved over
+ * their targets. A journal found when the repository is opened belongs to
+ * an update that may have stopped partway, and is finished; temporary
+ * files without a journal belong to one that never took effect, and are
+ * deleted.
+ *
+ * @author Charlie Zhou
+ */
+public class Journal {
+    /**
+     * The journal file name.
+     */
+    static final String JOURNAL_FILE = "journal";
+    /**
+     * The folder of temporary files.
+     */
+    private static final String TEMP_DIR = "tmp";
+
+    /**
+     * The gitlet directory.
+     */
+    private final Path gitletDir;
+    /**
+     * The new content of each file, null to delete it, in order.
+     */
+    private final Map<Path, byte[]> updates = new LinkedHashMap<>();
+
+    /**
+     * Creates an empty journal.
+     * @param gitletDir0 the gitlet directory, holding every updated file.
+     */
+    public Journal(Path gitletDir0) {
+        this.gitletDir = gitletDir0;
+    }
+
+    /**
+     * Replaces the content of a file.
+     * @param file the file.
+     * @param content the new content.
+     */
+    public void write(Path file, byte[] content) {
+        updates.put(file, content);
+    }
+
+    /**
+     * Replaces the content of a file with a string.
+     * @param file the file.
+     * @param content the new content.
+     */
+    public void write(Path file, String content) {
+        write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Deletes a file.
+     * @param file the file.
+     */
+    public void delete(Path file) {
+        updates.put(file, null);
+    }
+
+    /**
+     * Applies the updates all or nothing, flushing them to disk first.
+     */
+    public void commit() {
+        if (!updates.isEmpty()) {
+            prepare();
+            recover(gitletDir);
+        }
+    }
+
+    /**
+     * Writes the new contents and the journal, committing the update
+     * without applying it, as a command stopped right after that would.
+     */
+    void prepare() {
+        Path tempDir = gitletDir.resolve(TEMP_DIR);
+        try {
+            Files.createDirectories(tempDir);
+            List<Path> written = new ArrayList<>();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(updates.size());
+            for (Map.Entry<Path, byte[]> entry : updates.entrySet()) {
+                String tempName = "";
+                if (entry.getValue() != null) {
+                    Path temp = Files.createTempFile(tempDir, "", "");
+                    Files.write(temp, entry.getValue());
+                    written.add(temp);
+                    tempName = temp.getFileName().toString();
+                }
+                out.writeUTF(gitletDir.relativize(entry.getKey()).toString());
+                out.writeUTF(tempName);
+            }
+            out.writeLong(checksum(bytes.toByteArray(), bytes.size()));
+            Path journal = Files.createTempFile(tempDir, "", "");
+            Files.write(journal, bytes.toByteArray());
+            written.add(journal);
+            IO.sync(written);
+            IO.move(journal, gitletDir.resolve(JOURNAL_FILE));
+            IO.sync(List.of(gitletDir));
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        updates.clear();
+    }
+
+    /**
+     * @param gitletDir the gitlet directory.
+     * @return whether a stopped command left files for recovery to
+     * finish or remove.
+     */
+    public static boolean pending(Path gitletDir) {
+        Path tempDir = gitletDir.resolve(TEMP_DIR);
+        if (Files.exists(gitletDir.resolve(JOURNAL_FILE))) {
+            return true;
+        }
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.findAny().isPresent();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Finishes an update left by a stopped command, or removes the files
+     * of one that never took effect.
+     * @param gitletDir the gitlet directory.
+     */
+    public static void recover(Path gitletDir) {
+        Path journal = gitletDir.resolve(JOURNAL_FILE);
+        Path tempDir = gitletDir.resolve(TEMP_DIR);
+        try {
+            if (Files.exists(journal)) {
+                replay(gitletDir, Files.readAllBytes(journal));
+                Files.delete(journal);
+            }
+            if (Files.exists(tempDir)) {
+                try (Stream<Path> files = IO.walk(tempDir)) {
+                    files.filter(file -> !file.equals(tempDir))
+                            .forEach(IO::deleteIfExists);
+                }
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Moves the temporary files of a journal over their targets and
+     * deletes the files it deletes. Files already moved are skipped, so a
+     * journal may be replayed any number of times.
+     * @param gitletDir the gitlet directory.
+     * @param content the journal.
+     * @throws IOException if reading or moving fails.
+     */
+    private static void replay(Path gitletDir, byte[] content)
+            throws IOException {
+        int length = content.length - Long.BYTES;
+        if (length < Integer.BYTES || checksum(content, length)
+                != ByteBuffer.wrap(content).getLong(length)) {
+            return;
+        }
+        Path tempDir = gitletDir.resolve(TEMP_DIR);
+        Set<Path> dirs = new LinkedHashSet<>();
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(content, 0, length))) {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                Path target = gitletDir.resolve(in.readUTF());
+                String tempName = in.readUTF();
+                if (tempName.isEmpty()) {
+                    Files.deleteIfExists(target);
+                } else if (Files.exists(tempDir.resolve(tempName))) {
+                    Files.createDirectories(target.getParent());
+                    IO.move(tempDir.resolve(tempName), target);
+                }
+                dirs.add(target.getParent());
+            }
+        }
+        IO.sync(dirs);
+    }
+
+    /**
+     * @param content the bytes.
+     * @param length the number of leading bytes checked.
+     * @return the CRC-32 of the bytes.
+     */
+    private static long checksum(byte[] content, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, length);
+        return crc.getValue();
+    }
+}
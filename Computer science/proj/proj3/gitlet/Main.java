@@ -1,9 +1,21 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
@@ -15,32 +27,147 @@ import java.util.stream.Collectors;
  *  @author Charlie Zhou
  */
 public class Main {
+    /**
+     * The commands that only read the repository, and may run together.
+     */
+    private static final Set<String> READ_ONLY =
+            Set.of("log", "global-log", "find", "status", "diff");
 
     /** Usage: java gitlet.Main ARGS, where ARGS contains
-     *  <COMMAND> <OPERAND> .... */
+     *  <COMMAND> <OPERAND> .... The command daemon serves the repository
+     *  until stopped, and other commands are then sent to it. The command
+     *  - runs each line of the standard input as a command.
+     */
     public static void main(String... args) {
         try {
             if (args.length == 0) {
                 throw Utils.error("Please enter a command.");
             }
 
-            String command = args[0];
-            String[] operands = Arrays.copyOfRange(args, 1, args.length);
             Locale.setDefault(Locale.ENGLISH);
-            process(command, operands);
+            Path workingDir = Paths.get(".").toAbsolutePath().normalize();
+            if ("daemon".equals(args[0])) {
+                if (args.length != 1) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                new Daemon(workingDir).serve();
+                return;
+            }
+            try (DaemonClient client = DaemonClient.connect(workingDir)) {
+                if (args.length == 1 && "-".equals(args[0])) {
+                    batch(workingDir, client);
+                } else if (client != null) {
+                    client.run(args);
+                } else {
+                    run(null, workingDir, null, args);
+                }
+            }
+        } catch (GitletException ex) {
+            System.err.println(ex.getMessage());
+        }
+    }
+
+    /**
+     * Runs each line of the standard input as a command, its operands
+     * separated by spaces and double quotes grouping words. The commands
+     * go to the daemon if one serves the repository, and otherwise run
+     * in this process, where they share one loaded repository too.
+     * @param workingDir the working directory.
+     * @param client the connection to the daemon, or null.
+     */
+    private static void batch(Path workingDir, DaemonClient client) {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        Gitlet git = null;
+        try {
+            for (String line = reader.readLine(); line != null;
+                 line = reader.readLine()) {
+                String[] args = words(line);
+                if (args.length == 0) {
+                    continue;
+                } else if (client != null) {
+                    client.run(args);
+                } else {
+                    git = run(git, workingDir, null, args);
+                }
+                System.out.flush();
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Splits a command line into words at spaces. Double quotes group
+     * words, and a backslash keeps the character after it.
+     * @param line the line.
+     * @return the words.
+     */
+    private static String[] words(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = null;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                c = line.charAt(++i);
+            } else if (c == '"') {
+                quoted = !quoted;
+                word = word == null ? new StringBuilder() : word;
+                continue;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (word != null) {
+                    words.add(word.toString());
+                    word = null;
+                }
+                continue;
+            }
+            word = word == null ? new StringBuilder() : word;
+            word.append(c);
+        }
+        if (word != null) {
+            words.add(word.toString());
+        }
+        return words.toArray(new String[0]);
+    }
+
+    /**
+     * Runs a command in this process, holding the repository lock
+     * throughout. The repository loaded for an earlier command is reused
+     * unless another command changed it since.
+     * @param git the gitlet of the previous command, or null.
+     * @param workingDir the working directory.
+     * @param watcher the watcher of the working directory, or null.
+     * @param args the command and its operands.
+     * @return the gitlet for the next command, or null if this one failed
+     * and may have left it partly changed.
+     */
+    static Gitlet run(Gitlet git, Path workingDir, Watcher watcher,
+                      String[] args) {
+        String command = args[0];
+        String[] operands = Arrays.copyOfRange(args, 1, args.length);
+        boolean readOnly = READ_ONLY.contains(command);
+        Gitlet current = git == null
+                ? Gitlet.open(workingDir, readOnly) : git.reopen(readOnly);
+        current.watch(watcher);
+        try (current) {
+            process(current, command, operands);
         } catch (GitletException ex) {
             System.err.println(ex.getMessage());
+            return null;
         }
+        return current;
     }
 
     /**
      * Process commands.
      *
+     * @param git the gitlet.
      * @param command the command.
      * @param operands the operands.
      */
-    private static void process(String command, String[] operands) {
-        Gitlet git = new Gitlet(Paths.get(".").toAbsolutePath().normalize());
+    private static void process(Gitlet git, String command,
+                                String[] operands) {
         if ("init".equals(command)) {
             init(git, operands);
         } else if ("add".equals(command)) {
@@ -88,12 +215,85 @@ public class Main {
             push(git, operands);
         } else if ("fetch".equals(command)) {
             fetch(git, operands);
+        } else if ("pull".equals(command)) {
+            pull(git, operands);
+        } else if ("pack".equals(command)) {
+            pack(git, operands);
+        } else if ("gc".equals(command)) {
+            gc(git, operands);
+        } else if ("diff".equals(command)) {
+            diff(git, operands);
         } else {
             throw Utils.error("No command with that name exists.");
         }
     }
 
 
+    /**
+     * diff.
+     * @param gitlet gitlet.
+     * @param operands operands.
+     */
+    private static void diff(Gitlet gitlet, String[] operands) {
+        OutputStream out = new BufferedOutputStream(System.out);
+        if (operands.length == 0) {
+            gitlet.diff(out);
+        } else if (operands.length == 1 && "--cached".equals(operands[0])) {
+            gitlet.diffStaged(out);
+        } else if (operands.length == 2) {
+            gitlet.diff(operands[0], operands[1], out);
+        } else {
+            throw Utils.error("Incorrect operands.");
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * pack.
+     * @param gitlet gitlet.
+     * @param operands operands.
+     */
+    private static void pack(Gitlet gitlet, String[] operands) {
+        if (operands.length != 0) {
+            throw Utils.error("Incorrect operands.");
+        }
+
+        gitlet.pack();
+    }
+
+    /**
+     * gc.
+     * @param gitlet gitlet.
+     * @param operands operands.
+     */
+    private static void gc(Gitlet gitlet, String[] operands) {
+        if (operands.length != 0) {
+            throw Utils.error("Incorrect operands.");
+        }
+
+        System.out.println("Reclaimed " + gitlet.gc() + " bytes.");
+    }
+
+    /**
+     * pull.
+     * @param gitlet gitlet.
+     * @param operands operands.
+     */
+    private static void pull(Gitlet gitlet, String[] operands) {
+        if (operands.length != 2) {
+            throw Utils.error("Incorrect operands.");
+        }
+
+        boolean conflict = gitlet.pull(operands[0], operands[1]);
+        if (conflict) {
+            System.out.println("Encountered a merge conflict.");
+        }
+    }
+
     /**
      * fetch.
      * @param gitlet gitlet.
@@ -104,7 +304,7 @@ public class Main {
             throw Utils.error("Incorrect operands.");
         }
 
-        gitlet.fetch(operands[0]);
+        gitlet.fetch(operands[0], operands[1]);
     }
 
     /**
@@ -117,7 +317,7 @@ public class Main {
             throw Utils.error("Incorrect operands.");
         }
 
-        gitlet.push(operands[0]);
+        gitlet.push(operands[0], operands[1]);
     }
 
     /**
@@ -211,16 +411,17 @@ public class Main {
             throw Utils.error("Incorrect operands.");
         }
 
-        List<Branch> branches = gitlet.branches();
+        List<Branch> branches = new ArrayList<>(gitlet.branches());
+        branches.addAll(gitlet.remoteBranches());
         branches.sort(Comparator.comparing(Branch::name));
         Branch active = gitlet.activeBranch();
         Set<Path> stagedFiles = gitlet.stagedFiles();
         List<String> stagedFileNames = stagedFiles.stream()
-                .map(path -> path.getFileName().toString())
+                .map(gitlet::relativeName)
                 .sorted().collect(Collectors.toList());
         Set<Path> deletedFiles = gitlet.deletedFiles();
         List<String> deletedFileNames = deletedFiles.stream()
-                .map(path -> path.getFileName().toString())
+                .map(gitlet::relativeName)
                 .sorted().collect(Collectors.toList());
 
         System.out.println("=== Branches ===");
@@ -248,19 +449,21 @@ public class Main {
         Map<Path, FileState> fileStates = gitlet.getFileStates();
         for (Map.Entry<Path, FileState> entry : fileStates.entrySet()) {
             if (entry.getValue() == FileState.MODIFIED) {
-                System.out.print(entry.getKey().getFileName().toString());
+                System.out.print(gitlet.relativeName(entry.getKey()));
                 System.out.println(" (modified)");
             } else if (entry.getValue() == FileState.DELETED) {
-                System.out.print(entry.getKey().getFileName().toString());
+                System.out.print(gitlet.relativeName(entry.getKey()));
                 System.out.println(" (deleted)");
             }
         }
 
         System.out.println();
         System.out.println("=== Untracked Files ===");
-        List<Path> untracked = gitlet.untrackedFiles();
-        for (Path file : untracked) {
-            System.out.println(file.getFileName().toString());
+        List<String> untracked = gitlet.untrackedFiles().stream()
+                .map(gitlet::relativeName)
+                .sorted().collect(Collectors.toList());
+        for (String fileName : untracked) {
+            System.out.println(fileName);
         }
         System.out.println();
     }
@@ -271,11 +474,16 @@ public class Main {
      * @param operands the operands.
      */
     private static void find(Gitlet gitlet, String[] operands) {
-        if (operands.length != 1) {
+        List<Commit> commits;
+        if (operands.length == 1) {
+            commits = gitlet.find(operands[0]);
+        } else if (operands.length == 2 && "--prefix".equals(operands[0])) {
+            commits = gitlet.find(operands[1], MessageIndex.Match.PREFIX);
+        } else if (operands.length == 2 && "--word".equals(operands[0])) {
+            commits = gitlet.find(operands[1], MessageIndex.Match.TOKEN);
+        } else {
             throw Utils.error("Incorrect operands.");
         }
-        String message = operands[0];
-        List<Commit> commits = gitlet.find(message);
         if (commits == null || commits.isEmpty()) {
             System.err.println("Found no commit with that message.");
         } else {
@@ -316,14 +524,24 @@ public class Main {
      * @param operands the operands.
      */
     private static void globalLog(Gitlet gitlet, String[] operands) {
-        if (operands.length != 0) {
-            throw Utils.error("Incorrect operands.");
+        int skip = 0;
+        int limit = -1;
+        for (int i = 0; i < operands.length; i += 2) {
+            if (i + 1 == operands.length) {
+                throw Utils.error("Incorrect operands.");
+            }
+            if ("-n".equals(operands[i])) {
+                limit = parseCount(operands[i + 1]);
+            } else if ("--skip".equals(operands[i])) {
+                skip = parseCount(operands[i + 1]);
+            } else {
+                throw Utils.error("Incorrect operands.");
+            }
         }
-        Collection<Commit> logs = gitlet.globalLog();
-        String message = logs.stream()
-                .map(Commit::print)
-                .collect(Collectors.joining(String.format("%n")));
-        System.out.println(message);
+        gitlet.globalLog(skip, limit, commit -> {
+            System.out.print(commit.print());
+            System.out.println();
+        });
     }
 
     /**
@@ -332,14 +550,68 @@ public class Main {
      * @param operands the operands.
      */
     private static void log(Gitlet gitlet, String[] operands) {
-        if (operands.length != 0) {
+        int limit = -1;
+        Instant since = null;
+        Path path = null;
+        for (int i = 0; i < operands.length; i += 2) {
+            if (i + 1 == operands.length) {
+                throw Utils.error("Incorrect operands.");
+            }
+            if ("-n".equals(operands[i])) {
+                limit = parseCount(operands[i + 1]);
+            } else if ("--since".equals(operands[i])) {
+                since = parseDate(operands[i + 1]);
+            } else if ("--".equals(operands[i]) && i + 2 == operands.length) {
+                path = Paths.get(operands[i + 1]);
+            } else {
+                throw Utils.error("Incorrect operands.");
+            }
+        }
+        gitlet.log(limit, since, path, commit -> {
+            System.out.print(commit.print());
+            System.out.println();
+        });
+    }
+
+    /**
+     * Parses a count of commits, which must not be negative.
+     * @param text the count.
+     * @return the count.
+     */
+    private static int parseCount(String text) {
+        int count;
+        try {
+            count = Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw Utils.error("Incorrect operands.");
+        }
+        if (count < 0) {
+            throw Utils.error("Count must not be negative.");
+        }
+        return count;
+    }
+
+    /**
+     * Parses a date given as an ISO date, taken as the start of that day
+     * in the default time zone, or as an ISO date and time.
+     * @param text the date.
+     * @return the instant.
+     */
+    private static Instant parseDate(String text) {
+        try {
+            if (text.indexOf('T') < 0) {
+                return LocalDate.parse(text)
+                        .atStartOfDay(ZoneId.systemDefault()).toInstant();
+            }
+            if (text.endsWith("Z") || text.lastIndexOf('+') > 0
+                    || text.lastIndexOf('-') > text.indexOf('T')) {
+                return OffsetDateTime.parse(text).toInstant();
+            }
+            return LocalDateTime.parse(text)
+                    .atZone(ZoneId.systemDefault()).toInstant();
+        } catch (DateTimeParseException e) {
             throw Utils.error("Incorrect operands.");
         }
-        List<Commit> logs = gitlet.log();
-        String message = logs.stream()
-                .map(Commit::print)
-                .collect(Collectors.joining(String.format("%n")));
-        System.out.println(message);
     }
 
     /**
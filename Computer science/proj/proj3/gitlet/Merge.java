@@ -0,0 +1,200 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Three-way line merges in the manner of diff3. Both versions are diffed
+ * against their common ancestor, and edits whose ranges of the ancestor
+ * overlap or touch are grouped. A group changed on one side only takes
+ * that side, a group changed alike on both sides takes either, and any
+ * other group is a conflict written between markers. Lines outside the
+ * groups are copied from the ancestor, and the result is written to the
+ * stream as it is produced.
+ *
+ * @author Charlie Zhou
+ */
+public class Merge {
+    /**
+     * The marker opening a conflict, before the current version.
+     */
+    private static final byte[] OURS = marker("<<<<<<< HEAD");
+    /**
+     * The marker between the two versions of a conflict.
+     */
+    private static final byte[] SEPARATOR = marker("=======");
+    /**
+     * The marker closing a conflict, after the given version.
+     */
+    private static final byte[] THEIRS = marker(">>>>>>>");
+    /**
+     * The line separator.
+     */
+    private static final byte[] NEWLINE = marker("");
+
+    /**
+     * Not instantiable.
+     */
+    private Merge() {
+    }
+
+    /**
+     * Merges two versions of a file. Binary content cannot be merged by
+     * lines, so it conflicts as a whole.
+     * @param base the common ancestor's version.
+     * @param ours the current version.
+     * @param theirs the given version.
+     * @param out receives the merged content.
+     * @return whether there are conflicts.
+     */
+    public static boolean merge(Text base, Text ours, Text theirs,
+                                OutputStream out) {
+        if (base.isBinary() || ours.isBinary() || theirs.isBinary()) {
+            conflict(ours, theirs, out);
+            return true;
+        }
+        int[][] lines = Diff.intern(base, ours, theirs);
+        List<Diff.Edit> first = Diff.diff(lines[0], lines[1]);
+        List<Diff.Edit> second = Diff.diff(lines[0], lines[2]);
+        boolean conflict = false;
+        int done = 0;
+        int i = 0;
+        int j = 0;
+        try {
+            while (i < first.size() || j < second.size()) {
+                boolean firstLeads = j == second.size()
+                        || (i < first.size() && first.get(i).beginA()
+                                <= second.get(j).beginA());
+                int lo = firstLeads ? first.get(i).beginA()
+                        : second.get(j).beginA();
+                int hi = lo;
+                int iEnd = i;
+                int jEnd = j;
+                boolean grew = true;
+                while (grew) {
+                    grew = false;
+                    if (iEnd < first.size()
+                            && first.get(iEnd).beginA() <= hi) {
+                        hi = Math.max(hi, first.get(iEnd).endA());
+                        iEnd += 1;
+                        grew = true;
+                    }
+                    if (jEnd < second.size()
+                            && second.get(jEnd).beginA() <= hi) {
+                        hi = Math.max(hi, second.get(jEnd).endA());
+                        jEnd += 1;
+                        grew = true;
+                    }
+                }
+                base.write(out, done, lo);
+                done = hi;
+
+                int[] ourRange = range(first, i, iEnd, lo, hi);
+                int[] theirRange = range(second, j, jEnd, lo, hi);
+                if (ourRange == null) {
+                    theirs.write(out, theirRange[0], theirRange[1]);
+                } else if (theirRange == null) {
+                    ours.write(out, ourRange[0], ourRange[1]);
+                } else if (Arrays.equals(lines[1], ourRange[0], ourRange[1],
+                        lines[2], theirRange[0], theirRange[1])) {
+                    ours.write(out, ourRange[0], ourRange[1]);
+                } else {
+                    conflict(ours, ourRange[0], ourRange[1],
+                            theirs, theirRange[0], theirRange[1], out);
+                    conflict = true;
+                }
+                i = iEnd;
+                j = jEnd;
+            }
+            base.write(out, done, base.size());
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return conflict;
+    }
+
+    /**
+     * Writes two versions of a file as one conflict.
+     * @param ours the current version.
+     * @param theirs the given version.
+     * @param out receives the conflict.
+     */
+    public static void conflict(Text ours, Text theirs, OutputStream out) {
+        try {
+            conflict(ours, 0, ours.size(), theirs, 0, theirs.size(), out);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Finds the lines of a version that replace a range of the ancestor.
+     * @param edits the edits from the ancestor to the version.
+     * @param from the first edit in the range.
+     * @param to the edit after the last edit in the range.
+     * @param lo the start of the range in the ancestor.
+     * @param hi the end of the range in the ancestor.
+     * @return the start and end of the lines, or null if the range is
+     *         unchanged.
+     */
+    private static int[] range(List<Diff.Edit> edits, int from, int to,
+                               int lo, int hi) {
+        if (from == to) {
+            return null;
+        }
+        Diff.Edit head = edits.get(from);
+        Diff.Edit tail = edits.get(to - 1);
+        return new int[] {head.beginB() - (head.beginA() - lo),
+            tail.endB() + (hi - tail.endA())};
+    }
+
+    /**
+     * Writes lines of two versions between conflict markers.
+     * @param ours the current version.
+     * @param oursFrom the first current line.
+     * @param oursTo the line after the last current line.
+     * @param theirs the given version.
+     * @param theirsFrom the first given line.
+     * @param theirsTo the line after the last given line.
+     * @param out receives the conflict.
+     * @throws IOException if writing fails.
+     */
+    private static void conflict(Text ours, int oursFrom, int oursTo,
+                                 Text theirs, int theirsFrom, int theirsTo,
+                                 OutputStream out) throws IOException {
+        out.write(OURS);
+        writeLines(ours, oursFrom, oursTo, out);
+        out.write(SEPARATOR);
+        writeLines(theirs, theirsFrom, theirsTo, out);
+        out.write(THEIRS);
+    }
+
+    /**
+     * Writes lines, ending the last with a newline if it lacks one, so
+     * that a marker after them starts a line.
+     * @param text the text.
+     * @param from the first line.
+     * @param to the line after the last.
+     * @param out the stream.
+     * @throws IOException if writing fails.
+     */
+    private static void writeLines(Text text, int from, int to,
+                                   OutputStream out) throws IOException {
+        text.write(out, from, to);
+        if (from < to && to == text.size() && !text.endsWithNewline()) {
+            out.write(NEWLINE);
+        }
+    }
+
+    /**
+     * @param text the marker.
+     * @return the marker as a line.
+     */
+    private static byte[] marker(String text) {
+        return (text + System.lineSeparator())
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
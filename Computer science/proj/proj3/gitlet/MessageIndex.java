@@ -0,0 +1,559 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The commit log and the search index over commit messages.
+ *
+ * The log holds one record per commit in the order they were made: the
+ * raw hash, the date, the raw parent hashes, the raw root tree hash and
+ * the message. It is appended to on every commit, and holds all that is
+ * needed to print a commit, so global-log streams it without reading
+ * any commit.
+ *
+ * The index is a sorted segment of keys, each the whole message or one
+ * of its lowercase words, with the raw hash of a commit, behind a table
+ * of entry offsets for binary search. It covers the log up to a recorded
+ * offset; the records after it are searched linearly, and the segment is
+ * rebuilt once more than TAIL_LIMIT of them pile up.
+ *
+ * @author Charlie Zhou
+ */
+public class MessageIndex {
+    /**
+     * How a message is matched.
+     */
+    public enum Match {
+        /**
+         * The whole message equals the query.
+         */
+        EXACT,
+        /**
+         * The message starts with the query.
+         */
+        PREFIX,
+        /**
+         * The message contains the query as a word, ignoring case.
+         */
+        TOKEN
+    }
+
+    /**
+     * The leading int of the log.
+     */
+    private static final int LOG_MAGIC = 0x474d4c47;
+    /**
+     * The leading int of the index.
+     */
+    private static final int INDEX_MAGIC = 0x474d4958;
+    /**
+     * The format version of both files.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The log header size.
+     */
+    private static final int LOG_HEADER = 8;
+    /**
+     * The index header size: magic, version, count and covered offset.
+     */
+    private static final int INDEX_HEADER = 20;
+    /**
+     * The raw hash size.
+     */
+    private static final int HASH = Utils.UID_LENGTH / 2;
+    /**
+     * The most log records searched linearly before the segment is
+     * rebuilt.
+     */
+    private static final int TAIL_LIMIT = 256;
+    /**
+     * The leading char of keys holding a whole message.
+     */
+    private static final char EXACT = '=';
+    /**
+     * The leading char of keys holding a word.
+     */
+    private static final char TOKEN = '#';
+
+    /**
+     * The log file.
+     */
+    private final Path logFile;
+    /**
+     * The index file.
+     */
+    private final Path indexFile;
+    /**
+     * The file store.
+     */
+    private final FileStore fileStore;
+    /**
+     * Resolves the parents of logged commits.
+     */
+    private final Function<String, Commit> commitResolver;
+
+    /**
+     * Creates a message index.
+     * @param logFile0 the log file.
+     * @param indexFile0 the index file.
+     * @param fileStore0 the file store.
+     * @param commitResolver0 the commit resolver.
+     */
+    public MessageIndex(Path logFile0, Path indexFile0,
+                        FileStore fileStore0,
+                        Function<String, Commit> commitResolver0) {
+        this.logFile = logFile0;
+        this.indexFile = indexFile0;
+        this.fileStore = fileStore0;
+        this.commitResolver = commitResolver0;
+    }
+
+    /**
+     * @return whether the log exists.
+     */
+    public boolean exists() {
+        return Files.exists(logFile);
+    }
+
+    /**
+     * Rewrites the log with a set of commits, in date order, and drops
+     * the segment.
+     * @param commits the commits.
+     */
+    public void rebuild(List<Commit> commits) {
+        List<Commit> sorted = new ArrayList<>(commits);
+        sorted.sort(Comparator.comparing(Commit::date));
+        try {
+            Path temp = Files.createTempFile(
+                    logFile.getParent(), ".tmp-", "");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(LOG_MAGIC);
+                out.writeInt(VERSION);
+                for (Commit commit : sorted) {
+                    writeRecord(commit, out);
+                }
+            }
+            IO.move(temp, logFile);
+            Files.deleteIfExists(indexFile);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Appends commits to the log.
+     * @param commits the commits.
+     */
+    public void append(List<Commit> commits) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            if (!exists()) {
+                out.writeInt(LOG_MAGIC);
+                out.writeInt(VERSION);
+            }
+            for (Commit commit : commits) {
+                writeRecord(commit, out);
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        try (OutputStream out = Files.newOutputStream(logFile,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Streams logged commits, oldest first.
+     * @param skip the number of commits to skip.
+     * @param limit the most commits to visit, negative for all.
+     * @param action receives each commit.
+     */
+    public void forEach(int skip, int limit, Consumer<Commit> action) {
+        try (DataInputStream in = openLog(LOG_HEADER)) {
+            for (int i = 0; limit < 0 || i < skip + limit; i++) {
+                Record record = readRecord(in);
+                if (record == null) {
+                    break;
+                }
+                if (i >= skip) {
+                    action.accept(record.commit());
+                }
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Finds the commits whose message matches a query.
+     * @param query the query.
+     * @param match how to match.
+     * @return the commit hashes.
+     */
+    public List<String> find(String query, Match match) {
+        ByteBuffer segment = openSegment();
+        long covered = segment == null ? LOG_HEADER
+                : segment.getLong(12);
+        List<Record> tail = readRecords(covered);
+        if (tail.size() > TAIL_LIMIT) {
+            segment = writeSegment();
+            tail = new ArrayList<>();
+        }
+
+        Set<String> result = new LinkedHashSet<>();
+        if (segment != null) {
+            String key = match == Match.TOKEN
+                    ? TOKEN + query.toLowerCase(Locale.ROOT) : EXACT + query;
+            int count = segment.getInt(8);
+            byte[] hash = new byte[HASH];
+            for (int i = lowerBound(segment, key); i < count; i++) {
+                int offset = segment.getInt(INDEX_HEADER + i * 4);
+                String found = readKey(segment, offset);
+                if (match == Match.PREFIX
+                        ? !found.startsWith(key) : !found.equals(key)) {
+                    break;
+                }
+                segment.get(offset + 2 + utf8Length(found), hash);
+                result.add(Utils.bytesToHex(hash));
+            }
+        }
+        for (Record record : tail) {
+            if (matches(record.message, query, match)) {
+                result.add(record.hash);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Checks a message against a query.
+     * @param message the message.
+     * @param query the query.
+     * @param match how to match.
+     * @return whether it matches.
+     */
+    private static boolean matches(String message, String query,
+                                   Match match) {
+        if (match == Match.EXACT) {
+            return message.equals(query);
+        } else if (match == Match.PREFIX) {
+            return message.startsWith(query);
+        }
+        return tokens(message).contains(query.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Splits a message into lowercase words.
+     * @param message the message.
+     * @return the words.
+     */
+    private static Set<String> tokens(String message) {
+        Set<String> result = new LinkedHashSet<>();
+        for (String token : message.toLowerCase(Locale.ROOT)
+                .split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                result.add(token);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rewrites the segment to cover the whole log.
+     * @return the segment.
+     */
+    private ByteBuffer writeSegment() {
+        List<String> keys = new ArrayList<>();
+        List<byte[]> hashes = new ArrayList<>();
+        long covered;
+        try (DataInputStream in = openLog(LOG_HEADER)) {
+            covered = LOG_HEADER;
+            Record record;
+            while ((record = readRecord(in)) != null) {
+                byte[] raw = Utils.hexToBytes(record.hash);
+                keys.add(EXACT + record.message);
+                hashes.add(raw);
+                for (String token : tokens(record.message)) {
+                    keys.add(TOKEN + token);
+                    hashes.add(raw);
+                }
+                covered += record.size;
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int cmp = keys.get(a).compareTo(keys.get(b));
+            return cmp != 0 ? cmp
+                    : Arrays.compareUnsigned(hashes.get(a), hashes.get(b));
+        });
+
+        try {
+            Path temp = Files.createTempFile(
+                    indexFile.getParent(), ".tmp-", "");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(order.length);
+                out.writeLong(covered);
+                int offset = INDEX_HEADER + order.length * 4;
+                for (int i : order) {
+                    out.writeInt(offset);
+                    offset += 2 + utf8Length(keys.get(i)) + HASH;
+                }
+                for (int i : order) {
+                    byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(key.length);
+                    out.write(key);
+                    out.write(hashes.get(i));
+                }
+            }
+            IO.move(temp, indexFile);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return openSegment();
+    }
+
+    /**
+     * Maps the segment.
+     * @return the segment, or null if missing or unreadable.
+     */
+    private ByteBuffer openSegment() {
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        try (FileChannel channel =
+                     FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            if (segment.capacity() < INDEX_HEADER
+                    || segment.getInt(0) != INDEX_MAGIC
+                    || segment.getInt(4) != VERSION) {
+                return null;
+            }
+            return segment;
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Binary searches the segment for the first key not smaller than a
+     * key.
+     * @param segment the segment.
+     * @param key the key.
+     * @return the position.
+     */
+    private static int lowerBound(ByteBuffer segment, String key) {
+        int low = 0;
+        int high = segment.getInt(8);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            String found = readKey(segment,
+                    segment.getInt(INDEX_HEADER + mid * 4));
+            if (found.compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads a key from the segment.
+     * @param segment the segment.
+     * @param offset where the entry starts.
+     * @return the key.
+     */
+    private static String readKey(ByteBuffer segment, int offset) {
+        byte[] key = new byte[segment.getShort(offset) & 0xffff];
+        segment.get(offset + 2, key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param key the key.
+     * @return the key's encoded length.
+     */
+    private static int utf8Length(String key) {
+        return key.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * @param text the text.
+     * @return the length of the text as written by writeUTF, without the
+     * length prefix.
+     */
+    private static int modifiedUtf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 1 && c <= 0x7f) {
+                length += 1;
+            } else if (c <= 0x7ff) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Reads the log records from an offset on.
+     * @param from the offset.
+     * @return the records.
+     */
+    private List<Record> readRecords(long from) {
+        List<Record> result = new ArrayList<>();
+        try (DataInputStream in = openLog(from)) {
+            Record record;
+            while ((record = readRecord(in)) != null) {
+                result.add(record);
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Opens the log.
+     * @param from the offset to read from.
+     * @return the stream.
+     * @throws IOException the IOException.
+     */
+    private DataInputStream openLog(long from) throws IOException {
+        InputStream in = Files.newInputStream(logFile);
+        in.skipNBytes(from);
+        return new DataInputStream(new BufferedInputStream(in));
+    }
+
+    /**
+     * Writes a log record.
+     * @param commit the commit.
+     * @param out the stream.
+     * @throws IOException the IOException.
+     */
+    private static void writeRecord(Commit commit, DataOutputStream out)
+            throws IOException {
+        out.write(Utils.hexToBytes(commit.hash()));
+        out.writeLong(commit.date().getEpochSecond());
+        out.writeInt(commit.date().getNano());
+        out.writeByte(commit.parentHashes().size());
+        for (String parent : commit.parentHashes()) {
+            out.write(Utils.hexToBytes(parent));
+        }
+        out.write(Utils.hexToBytes(commit.stagedFiles().writeTree()));
+        out.writeUTF(commit.message());
+    }
+
+    /**
+     * Reads a log record.
+     * @param in the stream.
+     * @return the record, or null at the end of the log.
+     * @throws IOException the IOException.
+     */
+    private Record readRecord(DataInputStream in) throws IOException {
+        byte[] raw = new byte[HASH];
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        try {
+            raw[0] = (byte) first;
+            in.readFully(raw, 1, HASH - 1);
+            Record record = new Record();
+            record.hash = Utils.bytesToHex(raw);
+            record.date = Instant.ofEpochSecond(in.readLong(), in.readInt());
+            int parents = in.readUnsignedByte();
+            record.parents = new ArrayList<>(parents);
+            for (int i = 0; i < parents; i++) {
+                in.readFully(raw);
+                record.parents.add(Utils.bytesToHex(raw));
+            }
+            in.readFully(raw);
+            record.tree = Utils.bytesToHex(raw);
+            record.message = in.readUTF();
+            record.size = HASH + 8 + 4 + 1 + (parents + 1) * HASH + 2
+                    + modifiedUtf8Length(record.message);
+            return record;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A log record.
+     */
+    private class Record {
+        /**
+         * The commit hash.
+         */
+        private String hash;
+        /**
+         * The date.
+         */
+        private Instant date;
+        /**
+         * The parent hashes.
+         */
+        private List<String> parents;
+        /**
+         * The root tree hash.
+         */
+        private String tree;
+        /**
+         * The message.
+         */
+        private String message;
+        /**
+         * The record's size in the log.
+         */
+        private int size;
+
+        /**
+         * @return the commit.
+         */
+        Commit commit() {
+            return Commit.of(hash, date, parents, message, tree,
+                    fileStore, commitResolver);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package gitlet;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Numbers a set of object hashes from 0 in sorted order, so that sets of
+ * objects can be bitmaps. The hashes are kept raw and back to back, 20
+ * bytes each, and an ID is found by binary search, so millions of
+ * objects take little more memory than their hashes.
+ *
+ * @author Charlie Zhou
+ */
+public class ObjectIds {
+    /**
+     * The ID of a hash not in the set.
+     */
+    public static final int NONE = -1;
+    /**
+     * The length of a raw hash.
+     */
+    private static final int HASH = Utils.UID_LENGTH / 2;
+
+    /**
+     * The sorted raw hashes.
+     */
+    private final byte[] hashes;
+    /**
+     * The number of hashes.
+     */
+    private final int size;
+
+    /**
+     * Numbers a set of hashes.
+     * @param hashes0 the hashes, without duplicates.
+     */
+    public ObjectIds(Collection<String> hashes0) {
+        String[] sorted = hashes0.toArray(new String[0]);
+        Arrays.sort(sorted);
+        this.size = sorted.length;
+        this.hashes = new byte[size * HASH];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(Utils.hexToBytes(sorted[i]), 0,
+                    hashes, i * HASH, HASH);
+        }
+    }
+
+    /**
+     * @return the number of hashes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param hash the hash.
+     * @return the hash's ID, or NONE if not in the set.
+     */
+    public int id(String hash) {
+        byte[] raw = Utils.hexToBytes(hash);
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = Arrays.compareUnsigned(hashes, mid * HASH,
+                    (mid + 1) * HASH, raw, 0, HASH);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @param marks a bitmap over the IDs.
+     * @param hash a hash.
+     * @return whether the hash is in the set and marked.
+     */
+    public boolean marked(BitSet marks, String hash) {
+        int id = id(hash);
+        return id != NONE && marks.get(id);
+    }
+
+    /**
+     * @param id the ID.
+     * @return the hash.
+     */
+    public String hash(int id) {
+        return Utils.bytesToHex(
+                Arrays.copyOfRange(hashes, id * HASH, (id + 1) * HASH));
+    }
+}
@@ -0,0 +1,383 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A store of content-addressed objects. Objects are written loose, one
+ * file per hash, and may later be consolidated into pack files. Reads
+ * look at loose objects first and then at the packs.
+ *
+ * @author Charlie Zhou
+ */
+public class ObjectStore {
+    /**
+     * The largest pack written, so that it can be mapped as one buffer
+     * and its offsets fit an int. Larger objects are kept loose.
+     */
+    private static final long PACK_LIMIT = 1L << 30;
+    /**
+     * The fewest objects copied from another store that go into a pack
+     * rather than loose, as with git's unpack limit.
+     */
+    private static final int UNPACK_LIMIT = 100;
+
+    /**
+     * The directory of loose objects.
+     */
+    private final Path looseDir;
+    /**
+     * The directory of packs.
+     */
+    private final Path packDir;
+    /**
+     * The opened packs, null until first needed.
+     */
+    private List<PackFile> packs;
+    /**
+     * The loose objects added since the store was last synced.
+     */
+    private final List<Path> unsynced =
+            Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Creates an object store.
+     * @param looseDir0 the directory of loose objects.
+     * @param packDir0 the directory of packs.
+     */
+    public ObjectStore(Path looseDir0, Path packDir0) {
+        this.looseDir = looseDir0;
+        this.packDir = packDir0;
+    }
+
+    /**
+     * @param hash the hash.
+     * @return where the loose object of the hash lives.
+     */
+    public Path loosePath(String hash) {
+        return looseDir.resolve(hash);
+    }
+
+    /**
+     * Creates an empty temporary file among the loose objects, to be
+     * moved to its loose path once completely written.
+     * @return the file.
+     */
+    public Path newLooseFile() {
+        try {
+            Files.createDirectories(looseDir);
+            return Files.createTempFile(looseDir, ".tmp-", "");
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Adds a loose object by moving a completely written file to its
+     * loose path. The object is flushed to disk by the next sync.
+     * @param temp the file, from newLooseFile.
+     * @param hash the hash.
+     */
+    public void putLoose(Path temp, String hash) {
+        Path loose = loosePath(hash);
+        IO.move(temp, loose);
+        unsynced.add(loose);
+    }
+
+    /**
+     * Flushes the loose objects added since the last sync to disk, all
+     * at once, so that references written afterwards never point at
+     * objects a crash could lose.
+     */
+    public void sync() {
+        List<Path> files;
+        synchronized (unsynced) {
+            files = new ArrayList<>(unsynced);
+            unsynced.clear();
+        }
+        if (!files.isEmpty()) {
+            files.add(looseDir);
+            IO.sync(files);
+        }
+    }
+
+    /**
+     * @param hash the hash.
+     * @return whether the object exists, loose or packed.
+     */
+    public boolean contains(String hash) {
+        if (Files.exists(loosePath(hash))) {
+            return true;
+        }
+        for (PackFile pack : packs()) {
+            if (pack.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens an object.
+     * @param hash the hash.
+     * @return the object's content, or null if absent.
+     */
+    public InputStream open(String hash) {
+        Path loose = loosePath(hash);
+        if (Files.exists(loose)) {
+            try {
+                return Files.newInputStream(loose);
+            } catch (IOException e) {
+                throw new GitletException(e);
+            }
+        }
+        for (PackFile pack : packs()) {
+            InputStream in = pack.open(hash);
+            if (in != null) {
+                return in;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the hashes of all objects.
+     */
+    public Set<String> hashes() {
+        Set<String> result = new LinkedHashSet<>(looseHashes());
+        for (PackFile pack : packs()) {
+            result.addAll(pack.hashes());
+        }
+        return result;
+    }
+
+    /**
+     * Moves all loose objects into new packs, but for those too large for
+     * a pack.
+     * @return the number of objects packed.
+     */
+    public synchronized int pack() {
+        List<String> packed = new ArrayList<>();
+        SortedMap<String, Path> batch = new TreeMap<>();
+        long batchSize = 0;
+        for (String hash : looseHashes()) {
+            Path file = loosePath(hash);
+            long size = IO.size(file);
+            if (size > PACK_LIMIT) {
+                continue;
+            }
+            packed.add(hash);
+            if (!batch.isEmpty() && batchSize + size > PACK_LIMIT) {
+                packs().add(PackFile.write(packDir, batch));
+                batch.clear();
+                batchSize = 0;
+            }
+            batch.put(hash, file);
+            batchSize += size;
+        }
+        if (!batch.isEmpty()) {
+            packs().add(PackFile.write(packDir, batch));
+        }
+        for (String hash : packed) {
+            IO.deleteIfExists(loosePath(hash));
+        }
+        return packed.size();
+    }
+
+    /**
+     * Deletes the objects not kept. Loose objects are deleted, with any
+     * temporary files a stopped command left behind. A pack holding
+     * objects not kept is rewritten with the rest before it is deleted,
+     * copying them as they are stored.
+     * @param keep whether to keep an object, given its hash.
+     * @return the bytes reclaimed.
+     */
+    public synchronized long retain(Predicate<String> keep) {
+        long reclaimed = deleteUnfinished(looseDir) + deleteUnfinished(packDir);
+        for (String hash : looseHashes()) {
+            if (!keep.test(hash)) {
+                reclaimed += IO.size(loosePath(hash));
+                IO.deleteIfExists(loosePath(hash));
+            }
+        }
+        List<PackFile> kept = new ArrayList<>();
+        for (PackFile pack : packs()) {
+            SortedSet<String> live = pack.hashes().stream().filter(keep)
+                    .collect(Collectors.toCollection(TreeSet::new));
+            if (live.size() == pack.size()) {
+                kept.add(pack);
+                continue;
+            }
+            reclaimed += pack.length();
+            if (!live.isEmpty()) {
+                PackFile rewritten = PackFile.write(packDir, live, pack::open);
+                reclaimed -= rewritten.length();
+                kept.add(rewritten);
+            }
+            pack.delete();
+        }
+        packs = kept;
+        return reclaimed;
+    }
+
+    /**
+     * Deletes the temporary files in a directory and the packs whose
+     * index was never renamed into place, left by a stopped command.
+     * @param dir the directory.
+     * @return the bytes reclaimed.
+     */
+    private static long deleteUnfinished(Path dir) {
+        if (Files.notExists(dir)) {
+            return 0;
+        }
+        List<Path> garbage;
+        try (Stream<Path> files = IO.walk(dir)) {
+            garbage = files.filter(child -> !Files.isDirectory(child))
+                    .filter(child -> {
+                        String name = child.getFileName().toString();
+                        if (!name.endsWith(PackFile.PACK_SUFFIX)) {
+                            return name.startsWith(".");
+                        }
+                        String base = name.substring(0, name.length()
+                                - PackFile.PACK_SUFFIX.length());
+                        return Files.notExists(child.resolveSibling(
+                                base + PackFile.INDEX_SUFFIX));
+                    })
+                    .collect(Collectors.toList());
+        }
+        long reclaimed = 0;
+        for (Path file : garbage) {
+            reclaimed += IO.size(file);
+            IO.deleteIfExists(file);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Copies objects from another store as they are stored there. A few
+     * objects are copied loose, in the given order; more are written
+     * straight into new packs, so a large transfer costs a few files.
+     * Objects too large for a pack are copied loose either way.
+     * @param from the other store.
+     * @param hashes the hashes of the objects, none of them in this store.
+     */
+    public synchronized void copyFrom(ObjectStore from,
+                                      Collection<String> hashes) {
+        if (hashes.size() < UNPACK_LIMIT) {
+            for (String hash : hashes) {
+                copyLoose(from, hash);
+            }
+            return;
+        }
+        SortedSet<String> batch = new TreeSet<>();
+        long batchSize = 0;
+        for (String hash : hashes) {
+            long size = from.size(hash);
+            if (size > PACK_LIMIT) {
+                copyLoose(from, hash);
+                continue;
+            }
+            if (!batch.isEmpty() && batchSize + size > PACK_LIMIT) {
+                packs().add(PackFile.write(packDir, batch, from::openExisting));
+                batch = new TreeSet<>();
+                batchSize = 0;
+            }
+            batch.add(hash);
+            batchSize += size;
+        }
+        if (!batch.isEmpty()) {
+            packs().add(PackFile.write(packDir, batch, from::openExisting));
+        }
+    }
+
+    /**
+     * Copies an object from another store as a loose object.
+     * @param from the other store.
+     * @param hash the hash.
+     */
+    private void copyLoose(ObjectStore from, String hash) {
+        Path temp = newLooseFile();
+        IO.copyFile(from.openExisting(hash), temp);
+        putLoose(temp, hash);
+    }
+
+    /**
+     * Opens an object that must exist.
+     * @param hash the hash.
+     * @return the object's content.
+     */
+    private InputStream openExisting(String hash) {
+        InputStream in = open(hash);
+        if (in == null) {
+            throw Utils.error("Object %s does not exist.", hash);
+        }
+        return in;
+    }
+
+    /**
+     * @param hash the hash of an object that exists.
+     * @return the size of the object as stored.
+     */
+    private long size(String hash) {
+        Path loose = loosePath(hash);
+        if (Files.exists(loose)) {
+            return IO.size(loose);
+        }
+        for (PackFile pack : packs()) {
+            ByteBuffer content = pack.find(hash);
+            if (content != null) {
+                return content.remaining();
+            }
+        }
+        throw Utils.error("Object %s does not exist.", hash);
+    }
+
+    /**
+     * @return the hashes of loose objects.
+     */
+    private List<String> looseHashes() {
+        if (Files.notExists(looseDir)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = IO.walk(looseDir)) {
+            return files.filter(child -> !Files.isDirectory(child))
+                    .map(child -> child.getFileName().toString())
+                    .filter(name -> !name.startsWith("."))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return the packs, opening them on first use.
+     */
+    private synchronized List<PackFile> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            if (Files.exists(packDir)) {
+                try (Stream<Path> files = IO.walk(packDir)) {
+                    files.filter(file -> file.getFileName().toString()
+                                    .endsWith(PackFile.INDEX_SUFFIX))
+                            .sorted()
+                            .forEach(file -> packs.add(new PackFile(file)));
+                }
+            }
+        }
+        return packs;
+    }
+}
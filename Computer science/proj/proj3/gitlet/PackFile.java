@@ -0,0 +1,384 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * An immutable pack of objects. The pack file holds the objects back to
+ * back; the index file holds a fanout table, the sorted raw hashes and
+ * the offsets of the objects. Both files are memory-mapped.
+ *
+ * @author Charlie Zhou
+ */
+public class PackFile {
+    /**
+     * The pack file suffix.
+     */
+    static final String PACK_SUFFIX = ".pack";
+    /**
+     * The index file suffix.
+     */
+    static final String INDEX_SUFFIX = ".idx";
+    /**
+     * The magic number of a pack file.
+     */
+    private static final int PACK_MAGIC = 0x4750414b;
+    /**
+     * The magic number of an index file.
+     */
+    private static final int INDEX_MAGIC = 0x47494458;
+    /**
+     * The format version.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The number of fanout buckets, one per leading hash byte.
+     */
+    private static final int FANOUT = 256;
+    /**
+     * The length of a raw hash.
+     */
+    private static final int HASH_BYTES = Utils.UID_LENGTH / 2;
+    /**
+     * The size of the pack header.
+     */
+    private static final int PACK_HEADER = 12;
+    /**
+     * The size of the index header.
+     */
+    private static final int INDEX_HEADER = 12;
+
+    /**
+     * The index file.
+     */
+    private final Path indexFile;
+    /**
+     * The pack file.
+     */
+    private final Path packFile;
+    /**
+     * The pack content.
+     */
+    private final ByteBuffer pack;
+    /**
+     * The index content.
+     */
+    private final ByteBuffer index;
+    /**
+     * The number of objects.
+     */
+    private final int count;
+    /**
+     * Where the offset table starts in the index.
+     */
+    private final int offsetTable;
+
+    /**
+     * Opens a pack by its index file.
+     * @param indexFile0 the index file.
+     */
+    public PackFile(Path indexFile0) {
+        String name = indexFile0.getFileName().toString();
+        this.indexFile = indexFile0;
+        this.packFile = indexFile0.resolveSibling(
+                name.substring(0, name.length() - INDEX_SUFFIX.length())
+                        + PACK_SUFFIX);
+        this.index = map(indexFile0);
+        this.pack = map(packFile);
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION
+                || pack.getInt(0) != PACK_MAGIC) {
+            throw Utils.error("Corrupted pack %s.", name);
+        }
+        this.count = index.getInt(8);
+        this.offsetTable = INDEX_HEADER + FANOUT * 4 + count * HASH_BYTES;
+    }
+
+    /**
+     * Writes objects to a new pack and its index.
+     * @param packDir the directory of packs.
+     * @param objects the hashes and files of the objects.
+     * @return the written pack.
+     */
+    public static PackFile write(Path packDir,
+                                 SortedMap<String, Path> objects) {
+        return write(packDir, new TreeSet<>(objects.keySet()), hash -> {
+            try {
+                return Files.newInputStream(objects.get(hash));
+            } catch (IOException e) {
+                throw new GitletException(e);
+            }
+        });
+    }
+
+    /**
+     * Writes objects read from streams to a new pack and its index. Both
+     * are flushed to disk before the index is renamed into place, so a
+     * pack is never found half written.
+     * @param packDir the directory of packs.
+     * @param hashes the hashes of the objects, in sorted order.
+     * @param source opens each object's content.
+     * @return the written pack.
+     */
+    public static PackFile write(Path packDir, SortedSet<String> hashes,
+                                 Function<String, InputStream> source) {
+        String name = "pack-" + Utils.sha1(hashes);
+        Path packFile = packDir.resolve(name + PACK_SUFFIX);
+        Path indexFile = packDir.resolve(name + INDEX_SUFFIX);
+        long[] offsets = new long[hashes.size() + 1];
+        int[] fanout = new int[FANOUT];
+        try {
+            Files.createDirectories(packDir);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            Files.newOutputStream(packFile)))) {
+                out.writeInt(PACK_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(hashes.size());
+                long offset = PACK_HEADER;
+                int i = 0;
+                for (String hash : hashes) {
+                    offsets[i] = offset;
+                    try (InputStream in = source.apply(hash)) {
+                        offset += in.transferTo(out);
+                    }
+                    fanout[Utils.hexToBytes(hash)[0] & 0xff] += 1;
+                    i += 1;
+                }
+                offsets[i] = offset;
+            }
+            if (offsets[hashes.size()] > Integer.MAX_VALUE) {
+                throw Utils.error("Pack %s is too large.", name);
+            }
+            Path temp = Files.createTempFile(packDir, ".tmp-", "");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            Files.newOutputStream(temp)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(hashes.size());
+                int total = 0;
+                for (int bucket : fanout) {
+                    total += bucket;
+                    out.writeInt(total);
+                }
+                for (String hash : hashes) {
+                    out.write(Utils.hexToBytes(hash));
+                }
+                for (long offset : offsets) {
+                    out.writeLong(offset);
+                }
+            }
+            IO.sync(List.of(packFile, temp));
+            IO.move(temp, indexFile);
+            IO.sync(List.of(packDir));
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return new PackFile(indexFile);
+    }
+
+    /**
+     * @return the number of objects.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the bytes the pack and its index take on disk.
+     */
+    public long length() {
+        return (long) pack.capacity() + index.capacity();
+    }
+
+    /**
+     * Deletes the pack, the index first so that the pack is never found
+     * without its objects. The mapped content stays readable.
+     */
+    public void delete() {
+        IO.deleteIfExists(indexFile);
+        IO.deleteIfExists(packFile);
+    }
+
+    /**
+     * @return the hashes of all objects in sorted order.
+     */
+    public List<String> hashes() {
+        List<String> result = new ArrayList<>(count);
+        byte[] raw = new byte[HASH_BYTES];
+        for (int i = 0; i < count; i++) {
+            index.get(hashOffset(i), raw);
+            result.add(Utils.bytesToHex(raw));
+        }
+        return result;
+    }
+
+    /**
+     * Finds an object.
+     * @param hash the hash.
+     * @return the object's content, or null if not in this pack.
+     */
+    public ByteBuffer find(String hash) {
+        int position = position(Utils.hexToBytes(hash));
+        if (position < 0) {
+            return null;
+        }
+        long start = index.getLong(offsetTable + position * 8);
+        long end = index.getLong(offsetTable + (position + 1) * 8);
+        return pack.slice(Math.toIntExact(start),
+                Math.toIntExact(end - start));
+    }
+
+    /**
+     * @param hash the hash.
+     * @return whether this pack holds the object.
+     */
+    public boolean contains(String hash) {
+        return position(Utils.hexToBytes(hash)) >= 0;
+    }
+
+    /**
+     * Opens an object as a stream.
+     * @param hash the hash.
+     * @return the stream, or null if not in this pack.
+     */
+    public InputStream open(String hash) {
+        ByteBuffer content = find(hash);
+        if (content == null) {
+            return null;
+        }
+        return new BufferInputStream(content);
+    }
+
+    /**
+     * Binary searches the fanout bucket of a hash.
+     * @param raw the raw hash.
+     * @return the position, or -1 if absent.
+     */
+    private int position(byte[] raw) {
+        int bucket = raw[0] & 0xff;
+        int low = bucket == 0 ? 0 : index.getInt(fanoutOffset(bucket - 1));
+        int high = index.getInt(fanoutOffset(bucket)) - 1;
+        byte[] probe = new byte[HASH_BYTES];
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            index.get(hashOffset(mid), probe);
+            int cmp = Arrays.compareUnsigned(probe, raw);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param bucket the bucket.
+     * @return the offset of the bucket's cumulative count.
+     */
+    private static int fanoutOffset(int bucket) {
+        return INDEX_HEADER + bucket * 4;
+    }
+
+    /**
+     * @param position the object position.
+     * @return the offset of the object's hash in the index.
+     */
+    private static int hashOffset(int position) {
+        return INDEX_HEADER + FANOUT * 4 + position * HASH_BYTES;
+    }
+
+    /**
+     * Maps a file read-only.
+     * @param file the file.
+     * @return the mapped content.
+     */
+    private static ByteBuffer map(Path file) {
+        try (FileChannel channel =
+                     FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * An input stream over a buffer.
+     */
+    static class BufferInputStream extends InputStream {
+        /**
+         * The buffer.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * @param buffer0 the buffer.
+         */
+        BufferInputStream(ByteBuffer buffer0) {
+            this.buffer = buffer0;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            long n = buffer.remaining();
+            if (buffer.hasArray()) {
+                out.write(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), (int) n);
+                buffer.position(buffer.limit());
+                return n;
+            }
+            byte[] chunk = new byte[(int) Math.min(n, 1 << 16)];
+            while (buffer.hasRemaining()) {
+                int len = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, len);
+                out.write(chunk, 0, len);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
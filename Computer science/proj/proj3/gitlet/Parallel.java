@@ -0,0 +1,64 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Runs per-file work on a bounded pool of threads. The pool size is
+ * set by the gitlet.threads property and defaults to the number of
+ * processors.
+ *
+ * @author Charlie Zhou
+ */
+public class Parallel {
+    /**
+     * The number of threads.
+     */
+    private static final int THREADS = Math.max(1, Integer.getInteger(
+            "gitlet.threads", Runtime.getRuntime().availableProcessors()));
+    /**
+     * The pool, created on first use.
+     */
+    private static ForkJoinPool pool;
+
+    /**
+     * Not instantiable.
+     */
+    private Parallel() {
+    }
+
+    /**
+     * Applies a function to every item in parallel.
+     * @param items the items.
+     * @param function the function.
+     * @param <T> the item type.
+     * @param <R> the result type.
+     * @return the results, in the order of the items.
+     */
+    public static <T, R> List<R> map(List<T> items,
+                                     Function<T, R> function) {
+        if (THREADS == 1 || items.size() < 2) {
+            List<R> result = new ArrayList<>(items.size());
+            for (T item : items) {
+                result.add(function.apply(item));
+            }
+            return result;
+        }
+        return pool().submit(() -> items.parallelStream()
+                .map(function)
+                .collect(Collectors.toList())).join();
+    }
+
+    /**
+     * @return the pool.
+     */
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(THREADS);
+        }
+        return pool;
+    }
+}
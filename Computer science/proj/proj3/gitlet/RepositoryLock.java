@@ -0,0 +1,268 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A read/write lock on a repository, held by a command from loading the
+ * repository until it is done with it. Commands that only read share the
+ * lock and run together, while a command that writes holds it alone.
+ * Between processes this is a lock on the lock file, which the system
+ * drops if a process dies. A process holds such a lock for all its
+ * threads at once, so threads first take a read/write lock of their own
+ * and share the file lock among those holding it.
+ *
+ * The lock file holds a generation, a count a writer increments as soon
+ * as it takes the lock, so a process keeping a repository loaded between
+ * commands can tell whether another process changed it since, even one
+ * that died before releasing the lock.
+ *
+ * @author Charlie Zhou
+ */
+public final class RepositoryLock implements AutoCloseable {
+    /**
+     * The lock file name.
+     */
+    static final String LOCK_FILE = "lock";
+    /**
+     * The state of each repository locked by this process, by gitlet
+     * directory.
+     */
+    private static final Map<Path, Repository> REPOSITORIES =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The repository's state.
+     */
+    private final Repository repository;
+    /**
+     * Whether the lock is held alone.
+     */
+    private boolean exclusive;
+    /**
+     * Whether the lock is held.
+     */
+    private boolean held;
+    /**
+     * The repository's generation when the lock was taken, or the one a
+     * writer left when it released the lock.
+     */
+    private long generation;
+
+    /**
+     * Creates a lock, not yet held.
+     * @param repository0 the repository's state.
+     */
+    private RepositoryLock(Repository repository0) {
+        this.repository = repository0;
+    }
+
+    /**
+     * Takes the lock of a repository, waiting for it if needed.
+     * @param gitletDir the gitlet directory.
+     * @param exclusive0 whether to hold the lock alone, to write.
+     * @return the lock.
+     */
+    public static RepositoryLock acquire(Path gitletDir, boolean exclusive0) {
+        Repository repository = REPOSITORIES.computeIfAbsent(
+                gitletDir.toAbsolutePath().normalize(), Repository::new);
+        RepositoryLock lock = new RepositoryLock(repository);
+        lock.lock(exclusive0);
+        return lock;
+    }
+
+    /**
+     * @return whether the lock is held alone.
+     */
+    public boolean exclusive() {
+        return exclusive;
+    }
+
+    /**
+     * @return the repository's generation when the lock was taken, or
+     * the one it left if held alone and released.
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Releases the lock.
+     */
+    @Override
+    public void close() {
+        if (!held) {
+            return;
+        }
+        held = false;
+        if (exclusive) {
+            generation = repository.generation;
+        }
+        try {
+            repository.unlockFile();
+        } finally {
+            if (exclusive) {
+                repository.threads.writeLock().unlock();
+            } else {
+                repository.threads.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes the lock, waiting for it if needed.
+     * @param exclusive0 whether to hold the lock alone.
+     */
+    private void lock(boolean exclusive0) {
+        Lock threadLock = exclusive0 ? repository.threads.writeLock()
+                : repository.threads.readLock();
+        threadLock.lock();
+        try {
+            repository.lockFile(exclusive0);
+        } catch (RuntimeException e) {
+            threadLock.unlock();
+            throw e;
+        }
+        this.exclusive = exclusive0;
+        this.held = true;
+        this.generation = repository.generation;
+        if (exclusive0) {
+            try {
+                repository.advance();
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The locks of a repository in this process.
+     */
+    private static final class Repository {
+        /**
+         * Orders the threads of this process.
+         */
+        private final ReentrantReadWriteLock threads =
+                new ReentrantReadWriteLock();
+        /**
+         * The lock file.
+         */
+        private final Path file;
+        /**
+         * The lock file's channel, open while the file is locked.
+         */
+        private FileChannel channel;
+        /**
+         * The file lock, shared by all holders in this process.
+         */
+        private FileLock fileLock;
+        /**
+         * The number of holders of the file lock.
+         */
+        private int holders;
+        /**
+         * The generation read when the file was locked, or written since.
+         */
+        private long generation;
+
+        /**
+         * Creates the state of a repository.
+         * @param gitletDir0 the gitlet directory.
+         */
+        private Repository(Path gitletDir0) {
+            this.file = gitletDir0.resolve(LOCK_FILE);
+        }
+
+        /**
+         * Locks the file for a holder, unless it is already locked by
+         * this process; the thread lock decides whether that is allowed.
+         * @param exclusive whether to lock the file alone.
+         */
+        private synchronized void lockFile(boolean exclusive) {
+            if (holders == 0) {
+                try {
+                    channel = open();
+                    fileLock = channel.lock(0, Long.MAX_VALUE, !exclusive);
+                    generation = readGeneration();
+                } catch (IOException e) {
+                    closeChannel();
+                    throw new GitletException(e);
+                }
+            }
+            holders += 1;
+        }
+
+        /**
+         * Increments the generation in the file, which is locked alone.
+         */
+        private synchronized void advance() {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+            buffer.putLong(0, generation + 1);
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, buffer.position());
+                }
+            } catch (IOException e) {
+                throw new GitletException(e);
+            }
+            generation += 1;
+        }
+
+        /**
+         * @return the generation in the file, 0 if it has none.
+         * @throws IOException if reading fails.
+         */
+        private long readGeneration() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+            while (buffer.hasRemaining()
+                    && channel.read(buffer, buffer.position()) >= 0) {
+                continue;
+            }
+            return buffer.hasRemaining() ? 0 : buffer.getLong(0);
+        }
+
+        /**
+         * Releases the file for a holder, unlocking it after the last.
+         */
+        private synchronized void unlockFile() {
+            holders -= 1;
+            if (holders == 0) {
+                closeChannel();
+            }
+        }
+
+        /**
+         * @return a channel of the lock file, which is created if needed.
+         * @throws IOException if opening fails.
+         */
+        private FileChannel open() throws IOException {
+            return FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Closes the channel, which releases its lock.
+         */
+        private void closeChannel() {
+            fileLock = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new GitletException(e);
+                } finally {
+                    channel = null;
+                }
+            }
+        }
+    }
+}
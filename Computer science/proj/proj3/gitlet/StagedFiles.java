@@ -1,21 +1,41 @@
 package gitlet;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
- * Represents the staging area of the repository.
+ * Represents the staging area of the repository. The files are kept in a
+ * {@link Tree}, so a staging copied from another shares all directories
+ * that neither changes.
  *
  * @author Charlie Zhou
  */
 public class StagedFiles {
+    /**
+     * The leading bytes of an index in the binary format, ending with
+     * its version.
+     */
+    private static final byte[] MAGIC = {'g', 'l', 'i', 1};
+
     /**
      * The working directory.
      */
@@ -23,38 +43,60 @@ public class StagedFiles {
     /**
      * The files and corresponding hashes.
      */
-    private Map<Path, String> fileAndHash;
+    private Tree root;
+    /**
+     * The staged files, null until listed after a change.
+     */
+    private Set<Path> files;
     /**
      * The file store.
      */
     private FileStore fileStore;
+    /**
+     * The stat data of working files known to match their hash. Only
+     * kept by the index.
+     */
+    private Map<Path, FileStat> stats;
+    /**
+     * Whether stat data was refreshed by {@link #modified(Path)}.
+     */
+    private volatile boolean statsRefreshed;
 
     /**
      * Create an empty file stage.
-     * @param workingDir0 the working directory.
+     * @param fileStore0 the file store.
      */
-    public StagedFiles(Path workingDir0) {
-        this(workingDir0, new HashMap<>());
+    public StagedFiles(FileStore fileStore0) {
+        this(fileStore0, Tree.empty(fileStore0));
     }
 
     /**
      * Create an inherent file stage.
-     * @param workingDir0 the working directory.
      * @param parent0 the parent stage.
      */
-    public StagedFiles(Path workingDir0, StagedFiles parent0) {
-        this(workingDir0, parent0.fileAndHash);
+    public StagedFiles(StagedFiles parent0) {
+        this(parent0.fileStore, parent0.root);
+        this.stats.putAll(parent0.stats);
+    }
+
+    /**
+     * @return a staging of the same files, sharing their tree but none of
+     * the stat data, for a commit to keep.
+     */
+    public StagedFiles snapshot() {
+        return new StagedFiles(fileStore, root);
     }
 
     /**
      * The constructor to create a StagedFiles.
-     * @param workingDir0 the working directory.
-     * @param fileAndHash0 the files and hashes.
+     * @param fileStore0 the file store.
+     * @param root0 the files and hashes.
      */
-    private StagedFiles(Path workingDir0, Map<Path, String> fileAndHash0) {
-        this.workingDir = workingDir0;
-        this.fileAndHash = new HashMap<>(fileAndHash0);
-        this.fileStore = new FileStore(this.workingDir);
+    private StagedFiles(FileStore fileStore0, Tree root0) {
+        this.workingDir = fileStore0.workingDir();
+        this.root = root0;
+        this.fileStore = fileStore0;
+        this.stats = new ConcurrentHashMap<>();
     }
 
     /**
@@ -63,48 +105,229 @@ public class StagedFiles {
      */
     public void addFile(Path file) {
         file = file.toAbsolutePath().normalize();
-        String hash = fileStore.putFile(file);
-        fileAndHash.put(file, hash);
+        String hash = fileStore.putFile(file, getHash(file));
+        put(file, hash);
+        recordStat(file);
+    }
+
+    /**
+     * Adds files to the staging area, hashing and storing them in
+     * parallel. The index is updated in the order of the files.
+     * @param files the files, assumed to exist.
+     */
+    public void addFiles(List<Path> files) {
+        List<Path> normalized = new ArrayList<>(files.size());
+        for (Path file : files) {
+            normalized.add(file.toAbsolutePath().normalize());
+        }
+        List<String> hashes = Parallel.map(normalized, file -> {
+            String hash = fileStore.putFile(file, getHash(file));
+            recordStat(file);
+            return hash;
+        });
+        for (int i = 0; i < normalized.size(); i++) {
+            put(normalized.get(i), hashes.get(i));
+        }
+    }
+
+    /**
+     * Stages a file's hash.
+     * @param file the file.
+     * @param hash the hash.
+     */
+    private void put(Path file, String hash) {
+        root = root.put(workingDir.relativize(file), hash);
+        files = null;
+    }
+
+    /**
+     * Records the stat data of a working file that matches its staged
+     * content. Racy stats are dropped so the file gets compared later.
+     * @param file the file.
+     */
+    public void recordStat(Path file) {
+        FileStat stat = FileStat.of(file);
+        if (stat == null || stat.racy()) {
+            stats.remove(file);
+        } else {
+            stats.put(file, stat);
+        }
+    }
+
+    /**
+     * Checks whether an existing working file differs from its staged
+     * content. Matching stat data skips the check; otherwise the content
+     * is compared and the stat data refreshed if it matches.
+     * @param file the file.
+     * @return whether modified.
+     */
+    public boolean modified(Path file) {
+        FileStat recorded = stats.get(file);
+        FileStat current = FileStat.of(file);
+        if (recorded != null && recorded.equals(current)) {
+            return false;
+        }
+        if (recorded != null && current != null
+                && recorded.size() != current.size()) {
+            return true;
+        }
+        if (IO.different(file, openFile(file))) {
+            return true;
+        }
+        if (current != null && !current.racy()) {
+            stats.put(file, current);
+            statsRefreshed = true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether stat data was refreshed since the last call.
+     */
+    public boolean takeStatsRefreshed() {
+        boolean result = statsRefreshed;
+        statsRefreshed = false;
+        return result;
     }
 
     /**
      * @return the staged files.
      */
     public Set<Path> files() {
-        return Collections.unmodifiableSet(this.fileAndHash.keySet());
+        Set<Path> result = files;
+        if (result == null) {
+            Set<Path> all = new HashSet<>();
+            root.forEach(workingDir, (file, hash) -> all.add(file));
+            result = Collections.unmodifiableSet(all);
+            files = result;
+        }
+        return result;
+    }
+
+    /**
+     * Visits every staged file.
+     * @param action receives each file and its blob hash.
+     */
+    public void forEach(BiConsumer<Path, String> action) {
+        root.forEach(workingDir, action);
     }
 
     /**
-     * Writes the staging to a stream.
+     * Writes the staging and its stat data in the binary format: the
+     * number of files, then for each file its path as the length of the
+     * prefix shared with the previous path and the rest, its raw blob hash
+     * and its stat data, if any.
      * @param stagedFiles the staged file.
-     * @param s the output stream.
+     * @param out the stream.
      * @throws IOException the IOException.
      */
     public static void writeStaging(StagedFiles stagedFiles,
-                                    ObjectOutputStream s) throws IOException {
-        s.writeInt(stagedFiles.fileAndHash.size());
+                                    OutputStream out) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        stagedFiles.root.forEachName("", (name, hash) -> {
+            names.add(name);
+            hashes.add(hash);
+        });
+        out.write(MAGIC);
+        IO.writeVarint(out, names.size());
+        byte[] previous = new byte[0];
+        for (int i = 0; i < names.size(); i++) {
+            byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+            int shared = Arrays.mismatch(previous, name);
+            IO.writeVarint(out, shared);
+            IO.writeVarint(out, name.length - shared);
+            out.write(name, shared, name.length - shared);
+            out.write(Utils.hexToBytes(hashes.get(i)));
+            FileStat stat = stagedFiles.stats.get(
+                    stagedFiles.workingDir.resolve(names.get(i)));
+            if (stat == null) {
+                out.write(0);
+            } else {
+                out.write(1);
+                stat.write(out);
+            }
+            previous = name;
+        }
+    }
+
+    /**
+     * Reads a staging written by writeStaging.
+     * @param in the buffer.
+     * @param fileStore the file store.
+     * @return the staging.
+     */
+    public static StagedFiles readStaging(ByteBuffer in,
+                                          FileStore fileStore) {
+        byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw Utils.error("Unknown index format.");
+        }
+        StagedFiles stagedFiles = new StagedFiles(fileStore);
+        int size = (int) IO.readVarint(in);
+        stagedFiles.stats = new ConcurrentHashMap<>(size * 2);
+        Map<String, String> files = new LinkedHashMap<>(size * 2);
+        byte[] name = new byte[0];
+        byte[] hash = new byte[Utils.UID_LENGTH / 2];
+        for (int i = 0; i < size; i++) {
+            int shared = (int) IO.readVarint(in);
+            int length = shared + (int) IO.readVarint(in);
+            if (length > name.length) {
+                name = Arrays.copyOf(name, Math.max(length, name.length * 2));
+            }
+            in.get(name, shared, length - shared);
+            String path = new String(name, 0, length, StandardCharsets.UTF_8);
+            in.get(hash);
+            files.put(path, Utils.bytesToHex(hash));
+            if (in.get() != 0) {
+                stagedFiles.stats.put(stagedFiles.workingDir.resolve(path),
+                        FileStat.read(in));
+            }
+        }
+        stagedFiles.root = Tree.ofNames(fileStore, files);
+        return stagedFiles;
+    }
 
-        for (Map.Entry<Path, String> entry
-                : stagedFiles.fileAndHash.entrySet()) {
-            String path = stagedFiles.workingDir
-                    .relativize(entry.getKey()).toString();
-            String hash = entry.getValue();
-            s.writeUTF(path);
-            s.writeUTF(hash);
+    /**
+     * Reads a staging and its stat data written by Java serialization, as
+     * before the binary format. An index written without stat data reads
+     * as having none.
+     * @param s the stream.
+     * @param fileStore the file store.
+     * @return the staging.
+     * @throws IOException the IOException.
+     */
+    public static StagedFiles readSerialized(ObjectInputStream s,
+                                             FileStore fileStore)
+            throws IOException {
+        StagedFiles stagedFiles = readSerialized(s, fileStore, s.readInt());
+        int size;
+        try {
+            size = s.readInt();
+        } catch (EOFException e) {
+            return stagedFiles;
+        }
+        for (int i = 0; i < size; i++) {
+            Path file = stagedFiles.workingDir.resolve(s.readUTF());
+            stagedFiles.stats.put(file.normalize(),
+                    FileStat.readSerialized(s));
         }
+        return stagedFiles;
     }
 
     /**
-     * Reads a staging from a stream.
+     * Reads the entries of a staging written by Java serialization.
      * @param s the stream.
-     * @param workingDir the working directory.
+     * @param fileStore the file store.
+     * @param size the number of entries.
      * @return the staging.
      * @throws IOException the IOException.
      */
-    public static StagedFiles readStaging(ObjectInputStream s,
-                                          Path workingDir)
+    static StagedFiles readSerialized(ObjectInputStream s,
+                                      FileStore fileStore, int size)
             throws IOException {
-        int size = s.readInt();
+        Path workingDir = fileStore.workingDir();
 
         Map<Path, String> pathAndFile = new HashMap<>(size);
 
@@ -115,14 +338,57 @@ public class StagedFiles {
             pathAndFile.put(workingDir.resolve(path).normalize(), hash);
         }
 
-        return new StagedFiles(workingDir, pathAndFile);
+        return new StagedFiles(fileStore, Tree.of(fileStore, pathAndFile));
+    }
+
+    /**
+     * Reads the staging of a stored tree.
+     * @param fileStore the file store.
+     * @param treeHash the hash of the root tree.
+     * @return the staging.
+     */
+    public static StagedFiles readTree(FileStore fileStore,
+                                       String treeHash) {
+        return new StagedFiles(fileStore, fileStore.tree(treeHash));
+    }
+
+    /**
+     * Stores the trees of the staged files not stored yet.
+     * @return the hash of the root tree.
+     */
+    public String writeTree() {
+        return root.write();
     }
 
     /**
-     * @return the hash of files.
+     * @return the hash of files, which is the hash of their root tree.
      */
     public String hash() {
-        return Utils.sha1(fileAndHash.keySet(), fileAndHash.values());
+        return root.hash();
+    }
+
+    /**
+     * Visits the stored trees and the blobs of the staging, each tree
+     * after everything in it.
+     * @param enter whether to visit a stored tree, given its hash.
+     * @param blob receives each blob hash.
+     * @param tree receives the hash of each stored tree visited.
+     */
+    public void walk(Predicate<String> enter, Consumer<String> blob,
+                     Consumer<String> tree) {
+        root.walk(enter, blob, tree);
+    }
+
+    /**
+     * Lists the files whose content differs from another staging,
+     * without visiting the directories they share.
+     * @param other the other staging.
+     * @return the files added, removed or changed.
+     */
+    public Set<Path> changedFiles(StagedFiles other) {
+        Set<Path> result = new HashSet<>();
+        Tree.changed(root, other.root, workingDir, result);
+        return result;
     }
 
     /**
@@ -139,7 +405,9 @@ public class StagedFiles {
      * @param path the file.
      */
     public void remove(Path path) {
-        fileAndHash.remove(path);
+        root = root.remove(workingDir.relativize(path));
+        files = null;
+        stats.remove(path);
     }
 
     /**
@@ -148,21 +416,43 @@ public class StagedFiles {
      * @return result.
      */
     public boolean same(StagedFiles other) {
-        return this.hash().equals(other.hash());
+        return root == other.root || this.hash().equals(other.hash());
     }
 
     /**
-     * Gets a file's path of truth.
+     * Opens a file's stored content.
      * @param file the file.
-     * @return the truth.
+     * @return the content, or null if the file is not staged.
      */
-    public Path getFile(Path file) {
+    public InputStream openFile(Path file) {
         file = file.toAbsolutePath().normalize();
-        String hash = fileAndHash.get(file);
+        String hash = getHash(file);
         if (hash == null) {
             return null;
         }
-        return fileStore.getFile(hash);
+        return fileStore.openFile(hash);
+    }
+
+    /**
+     * Restores a staged file's stored content into the working directory.
+     * @param file the file.
+     */
+    public void checkoutFile(Path file) {
+        file = file.toAbsolutePath().normalize();
+        fileStore.checkoutFile(getHash(file), file);
+    }
+
+    /**
+     * Takes the stat data of a file from another staging of the same
+     * content, so the working file is not read again.
+     * @param other the other staging.
+     * @param file the file.
+     */
+    public void copyStat(StagedFiles other, Path file) {
+        FileStat stat = other.stats.get(file);
+        if (stat != null) {
+            stats.put(file, stat);
+        }
     }
 
     /**
@@ -174,27 +464,40 @@ public class StagedFiles {
     public Set<Path> difference(StagedFiles anotherStage, boolean identity) {
         Set<Path> result = new HashSet<>();
 
-        for (Map.Entry<Path, String> entry : fileAndHash.entrySet()) {
-            String anotherHash = anotherStage.getHash(entry.getKey());
-            if (identity) {
-                if (anotherHash == null
-                    || !anotherHash.equals(entry.getValue())) {
-                    result.add(entry.getKey());
-                }
-            } else if (anotherHash == null) {
-                result.add(entry.getKey());
+        for (Path file : changedFiles(anotherStage)) {
+            if (contains(file)
+                    && (identity || !anotherStage.contains(file))) {
+                result.add(file);
             }
         }
         return result;
     }
 
+    /**
+     * Gets the hash of a file or directory.
+     * @param file the file or directory.
+     * @return the blob hash of a file or the tree hash of a directory, or
+     *         null if neither is staged.
+     */
+    public String hashOf(Path file) {
+        Path relative = workingDir.relativize(file);
+        if (relative.startsWith("..")) {
+            return null;
+        }
+        return root.hashOf(relative);
+    }
+
     /**
      * Gets the hash of a file.
      * @param file the file.
      * @return the hash.
      */
     public String getHash(Path file) {
-        return fileAndHash.get(file);
+        Path relative = workingDir.relativize(file);
+        if (relative.startsWith("..")) {
+            return null;
+        }
+        return root.get(relative);
     }
 
     /**
@@ -203,6 +506,6 @@ public class StagedFiles {
      * @return the result.
      */
     public boolean contains(Path file) {
-        return fileAndHash.containsKey(file);
+        return getHash(file) != null;
     }
 }
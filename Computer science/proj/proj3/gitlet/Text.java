@@ -0,0 +1,159 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The content of a file split into lines, for diffing and merging. Lines
+ * are ranges of the content ending just after their newline, so writing
+ * lines back reproduces the content byte for byte, and a last line without
+ * a newline stays without one.
+ *
+ * @author Charlie Zhou
+ */
+public class Text {
+    /**
+     * How much of the content is checked for NUL bytes, as git does.
+     */
+    private static final int BINARY_CHECK = 8000;
+
+    /**
+     * The content.
+     */
+    private final byte[] content;
+    /**
+     * The offset just past each line.
+     */
+    private final int[] ends;
+    /**
+     * The number of lines.
+     */
+    private final int size;
+
+    /**
+     * Splits content into lines.
+     * @param content0 the content.
+     */
+    public Text(byte[] content0) {
+        this.content = content0;
+        int[] found = new int[16];
+        int count = 0;
+        for (int i = 0; i < content0.length; i++) {
+            if (content0[i] == '\n' || i == content0.length - 1) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = i + 1;
+            }
+        }
+        this.ends = found;
+        this.size = count;
+    }
+
+    /**
+     * Reads a file.
+     * @param file the file, empty if missing.
+     * @return the text.
+     */
+    public static Text read(Path file) {
+        if (!Files.exists(file)) {
+            return new Text(new byte[0]);
+        }
+        try {
+            return new Text(Files.readAllBytes(file));
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Reads a stream and closes it.
+     * @param in the stream, null for empty.
+     * @return the text.
+     */
+    public static Text read(InputStream in) {
+        if (in == null) {
+            return new Text(new byte[0]);
+        }
+        try (in) {
+            return new Text(in.readAllBytes());
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * @return the number of lines.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return whether the content looks binary rather than text.
+     */
+    public boolean isBinary() {
+        int limit = Math.min(content.length, BINARY_CHECK);
+        for (int i = 0; i < limit; i++) {
+            if (content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the content is empty or ends with a newline.
+     */
+    public boolean endsWithNewline() {
+        return content.length == 0 || content[content.length - 1] == '\n';
+    }
+
+    /**
+     * @param line the line.
+     * @return the hash of the line's content.
+     */
+    public int hash(int line) {
+        int h = 1;
+        for (int i = start(line); i < ends[line]; i++) {
+            h = 31 * h + content[i];
+        }
+        return h;
+    }
+
+    /**
+     * @param line the line.
+     * @param other the other text.
+     * @param otherLine the line of the other text.
+     * @return whether the lines have the same content.
+     */
+    public boolean lineEquals(int line, Text other, int otherLine) {
+        return Arrays.equals(content, start(line), ends[line],
+                other.content, other.start(otherLine), other.ends[otherLine]);
+    }
+
+    /**
+     * Writes a range of lines.
+     * @param out the stream.
+     * @param from the first line.
+     * @param to the line after the last.
+     * @throws IOException if writing fails.
+     */
+    public void write(OutputStream out, int from, int to) throws IOException {
+        if (from < to) {
+            out.write(content, start(from), ends[to - 1] - start(from));
+        }
+    }
+
+    /**
+     * @param line the line.
+     * @return the offset of the line.
+     */
+    private int start(int line) {
+        return line == 0 ? 0 : ends[line - 1];
+    }
+}
@@ -0,0 +1,499 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A directory of tracked files, mapping names to blob hashes and to
+ * subdirectories. Trees are immutable: changing a file copies only the
+ * directories on its path, so stagings derived from one another share
+ * every other directory. A tree is stored under the hash of its content,
+ * and a stored tree is read only when its entries are first needed.
+ *
+ * @author Charlie Zhou
+ */
+public class Tree {
+    /**
+     * The type of an entry referring to a blob.
+     */
+    private static final int BLOB = 0;
+    /**
+     * The type of an entry referring to a tree.
+     */
+    private static final int TREE = 1;
+
+    /**
+     * The file store.
+     */
+    private final FileStore fileStore;
+    /**
+     * The entries by name, each a blob hash or a subtree. Null until a
+     * stored tree is read.
+     */
+    private volatile SortedMap<String, Object> entries;
+    /**
+     * The hash, null until computed.
+     */
+    private volatile String hash;
+    /**
+     * Whether the tree and its subtrees are in the store.
+     */
+    private volatile boolean stored;
+
+    /**
+     * Creates a tree that is not stored.
+     * @param fileStore0 the file store.
+     * @param entries0 the entries, not to be modified afterwards.
+     */
+    private Tree(FileStore fileStore0, SortedMap<String, Object> entries0) {
+        this.fileStore = fileStore0;
+        this.entries = entries0;
+    }
+
+    /**
+     * Refers to a stored tree, read when first needed.
+     * @param fileStore0 the file store.
+     * @param hash0 the hash.
+     */
+    Tree(FileStore fileStore0, String hash0) {
+        this.fileStore = fileStore0;
+        this.hash = hash0;
+        this.stored = true;
+    }
+
+    /**
+     * @param fileStore the file store.
+     * @return the empty tree.
+     */
+    public static Tree empty(FileStore fileStore) {
+        return new Tree(fileStore, Collections.emptySortedMap());
+    }
+
+    /**
+     * Builds the tree of a set of files.
+     * @param fileStore the file store.
+     * @param files the files, under the store's working directory, and
+     *              their blob hashes.
+     * @return the tree.
+     */
+    public static Tree of(FileStore fileStore, Map<Path, String> files) {
+        SortedMap<String, Object> root = new TreeMap<>();
+        Path workingDir = fileStore.workingDir();
+        for (Map.Entry<Path, String> entry : files.entrySet()) {
+            Path relative = workingDir.relativize(entry.getKey());
+            SortedMap<String, Object> dir = root;
+            for (int i = 0; i < relative.getNameCount() - 1; i++) {
+                dir = subdirectory(dir, relative.getName(i).toString());
+            }
+            dir.put(relative.getFileName().toString(), entry.getValue());
+        }
+        return freeze(fileStore, root);
+    }
+
+    /**
+     * Builds the tree of a set of files named by their paths relative to
+     * the working directory, separated by slashes. Files of the same
+     * directory are cheapest to add one after another.
+     * @param fileStore the file store.
+     * @param files the paths of the files and their blob hashes.
+     * @return the tree.
+     */
+    public static Tree ofNames(FileStore fileStore,
+                               Map<String, String> files) {
+        SortedMap<String, Object> root = new TreeMap<>();
+        String lastPrefix = "";
+        SortedMap<String, Object> lastDir = root;
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            String name = entry.getKey();
+            int start = name.lastIndexOf('/') + 1;
+            if (!name.startsWith(lastPrefix)
+                    || name.indexOf('/', lastPrefix.length()) >= 0) {
+                lastDir = root;
+                for (int i = 0, slash; i < start; i = slash + 1) {
+                    slash = name.indexOf('/', i);
+                    lastDir = subdirectory(lastDir, name.substring(i, slash));
+                }
+                lastPrefix = name.substring(0, start);
+            }
+            lastDir.put(name.substring(start), entry.getValue());
+        }
+        return freeze(fileStore, root);
+    }
+
+    /**
+     * @return whether the tree has no entries.
+     */
+    public boolean isEmpty() {
+        return entries().isEmpty();
+    }
+
+    /**
+     * Looks up a file.
+     * @param relative the file's path relative to this tree.
+     * @return the blob hash, or null if absent.
+     */
+    public String get(Path relative) {
+        Tree dir = this;
+        int last = relative.getNameCount() - 1;
+        for (int i = 0; i < last; i++) {
+            Object child = dir.entries().get(relative.getName(i).toString());
+            if (!(child instanceof Tree)) {
+                return null;
+            }
+            dir = (Tree) child;
+        }
+        Object entry = dir.entries().get(relative.getName(last).toString());
+        return entry instanceof String ? (String) entry : null;
+    }
+
+    /**
+     * Looks up a file or directory.
+     * @param relative the path relative to this tree, empty for the tree
+     *                 itself.
+     * @return the blob hash of a file or the tree hash of a directory, or
+     *         null if absent.
+     */
+    public String hashOf(Path relative) {
+        Object entry = this;
+        if (!relative.toString().isEmpty()) {
+            for (Path name : relative) {
+                if (!(entry instanceof Tree)) {
+                    return null;
+                }
+                entry = ((Tree) entry).entries().get(name.toString());
+            }
+        }
+        return entry instanceof Tree ? ((Tree) entry).hash() : (String) entry;
+    }
+
+    /**
+     * Sets a file's blob hash.
+     * @param relative the file's path relative to this tree.
+     * @param blobHash the blob hash.
+     * @return the changed tree.
+     */
+    public Tree put(Path relative, String blobHash) {
+        return with(relative, 0, blobHash);
+    }
+
+    /**
+     * Removes a file. Directories left empty are removed too.
+     * @param relative the file's path relative to this tree.
+     * @return the changed tree, or this tree if the file is absent.
+     */
+    public Tree remove(Path relative) {
+        if (get(relative) == null) {
+            return this;
+        }
+        return with(relative, 0, null);
+    }
+
+    /**
+     * Visits every file under the tree.
+     * @param dir the directory of the tree.
+     * @param action receives each file and its blob hash.
+     */
+    public void forEach(Path dir, BiConsumer<Path, String> action) {
+        for (Map.Entry<String, Object> entry : entries().entrySet()) {
+            Path path = dir.resolve(entry.getKey());
+            if (entry.getValue() instanceof Tree) {
+                ((Tree) entry.getValue()).forEach(path, action);
+            } else {
+                action.accept(path, (String) entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Visits every file under the tree by its path joined with slashes.
+     * @param prefix the path of the tree followed by a slash, or empty.
+     * @param action receives each file's path and blob hash.
+     */
+    public void forEachName(String prefix, BiConsumer<String, String> action) {
+        for (Map.Entry<String, Object> entry : entries().entrySet()) {
+            String name = prefix + entry.getKey();
+            if (entry.getValue() instanceof Tree) {
+                ((Tree) entry.getValue()).forEachName(name + "/", action);
+            } else {
+                action.accept(name, (String) entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Visits the stored trees and the blobs under the tree, each tree
+     * after everything in it, without descending into the stored trees a
+     * filter rejects.
+     * @param enter whether to visit a stored tree, given its hash.
+     * @param blob receives each blob hash.
+     * @param tree receives the hash of each stored tree visited.
+     */
+    public void walk(Predicate<String> enter, Consumer<String> blob,
+                     Consumer<String> tree) {
+        if (stored) {
+            if (enter.test(hash)) {
+                walk(fileStore, hash, enter, blob, tree);
+            }
+            return;
+        }
+        for (Object child : entries().values()) {
+            if (child instanceof Tree) {
+                ((Tree) child).walk(enter, blob, tree);
+            } else {
+                blob.accept((String) child);
+            }
+        }
+    }
+
+    /**
+     * Visits a stored tree like walk, scanning the encodings for hashes
+     * instead of reading the trees, since each is seen only once.
+     * @param fileStore the file store.
+     * @param hash the tree's hash.
+     * @param enter whether to visit a subtree, given its hash.
+     * @param blob receives each blob hash.
+     * @param tree receives the hash of each tree visited.
+     */
+    private static void walk(FileStore fileStore, String hash,
+                             Predicate<String> enter, Consumer<String> blob,
+                             Consumer<String> tree) {
+        byte[] content;
+        try (InputStream in = fileStore.openTree(hash)) {
+            content = in.readAllBytes();
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        int size = buffer.getInt();
+        List<String> subtrees = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int type = buffer.get();
+            int skip = buffer.getShort() & 0xffff;
+            buffer.position(buffer.position() + skip);
+            int length = buffer.getShort() & 0xffff;
+            String entryHash = new String(content, buffer.position(), length,
+                    StandardCharsets.ISO_8859_1);
+            buffer.position(buffer.position() + length);
+            if (type == TREE) {
+                subtrees.add(entryHash);
+            } else {
+                blob.accept(entryHash);
+            }
+        }
+        for (String subtree : subtrees) {
+            if (enter.test(subtree)) {
+                walk(fileStore, subtree, enter, blob, tree);
+            }
+        }
+        tree.accept(hash);
+    }
+
+    /**
+     * @return the hash of the tree's encoding.
+     */
+    public String hash() {
+        String result = hash;
+        if (result == null) {
+            result = Utils.sha1(List.of(encode()));
+            hash = result;
+        }
+        return result;
+    }
+
+    /**
+     * Stores the tree and the subtrees not stored yet.
+     * @return the hash.
+     */
+    public String write() {
+        if (!stored) {
+            for (Object child : entries().values()) {
+                if (child instanceof Tree) {
+                    ((Tree) child).write();
+                }
+            }
+            hash = fileStore.putTree(encode());
+            stored = true;
+        }
+        return hash;
+    }
+
+    /**
+     * Lists the files that differ between two trees, without descending
+     * into subtrees that are shared or have the same hash.
+     * @param first the first tree, null for none.
+     * @param second the second tree, null for none.
+     * @param dir the directory of the trees.
+     * @param changed receives the paths of files that differ.
+     */
+    public static void changed(Tree first, Tree second, Path dir,
+                               Set<Path> changed) {
+        if (first == second || (first != null && second != null
+                && first.hash().equals(second.hash()))) {
+            return;
+        }
+        Map<String, Object> a = first == null
+                ? Collections.emptyMap() : first.entries();
+        Map<String, Object> b = second == null
+                ? Collections.emptyMap() : second.entries();
+        Set<String> names = new TreeSet<>(a.keySet());
+        names.addAll(b.keySet());
+        for (String name : names) {
+            Object x = a.get(name);
+            Object y = b.get(name);
+            if (x instanceof String && x.equals(y)) {
+                continue;
+            }
+            Path path = dir.resolve(name);
+            Tree xTree = x instanceof Tree ? (Tree) x : null;
+            Tree yTree = y instanceof Tree ? (Tree) y : null;
+            if (xTree != null || yTree != null) {
+                changed(xTree, yTree, path, changed);
+            }
+            if (x instanceof String || y instanceof String) {
+                changed.add(path);
+            }
+        }
+    }
+
+    /**
+     * Copies the directories on a path with a file set or removed.
+     * @param relative the file's path relative to this tree.
+     * @param depth the index of this tree's name in the path.
+     * @param blobHash the blob hash, or null to remove the file.
+     * @return the changed tree, or null if it is left empty.
+     */
+    private Tree with(Path relative, int depth, String blobHash) {
+        SortedMap<String, Object> copy = new TreeMap<>(entries());
+        String name = relative.getName(depth).toString();
+        if (depth == relative.getNameCount() - 1) {
+            if (blobHash == null) {
+                copy.remove(name);
+            } else {
+                copy.put(name, blobHash);
+            }
+        } else {
+            Object child = copy.get(name);
+            Tree dir = child instanceof Tree
+                    ? (Tree) child : empty(fileStore);
+            Tree changed = dir.with(relative, depth + 1, blobHash);
+            if (changed == null) {
+                copy.remove(name);
+            } else {
+                copy.put(name, changed);
+            }
+        }
+        if (copy.isEmpty() && depth > 0) {
+            return null;
+        }
+        return new Tree(fileStore, copy);
+    }
+
+    /**
+     * @return the entries, reading a stored tree on first use.
+     */
+    private SortedMap<String, Object> entries() {
+        SortedMap<String, Object> result = entries;
+        if (result == null) {
+            result = read();
+            entries = result;
+        }
+        return result;
+    }
+
+    /**
+     * Reads the entries of a stored tree.
+     * @return the entries by name.
+     */
+    private SortedMap<String, Object> read() {
+        SortedMap<String, Object> result = new TreeMap<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(fileStore.openTree(hash)))) {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                int type = in.readByte();
+                String name = in.readUTF();
+                String entryHash = in.readUTF();
+                result.put(name, type == TREE
+                        ? fileStore.tree(entryHash) : entryHash);
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return Collections.unmodifiableSortedMap(result);
+    }
+
+    /**
+     * @return the tree's encoding.
+     */
+    private byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            SortedMap<String, Object> all = entries();
+            out.writeInt(all.size());
+            for (Map.Entry<String, Object> entry : all.entrySet()) {
+                if (entry.getValue() instanceof Tree) {
+                    out.writeByte(TREE);
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(((Tree) entry.getValue()).hash());
+                } else {
+                    out.writeByte(BLOB);
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF((String) entry.getValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Turns nested maps of a directory into trees.
+     * @param fileStore the file store.
+     * @param dir the names in the directory mapped to blob hashes or to
+     *            subdirectories.
+     * @return the tree.
+     */
+    @SuppressWarnings("unchecked")
+    private static Tree freeze(FileStore fileStore,
+                               SortedMap<String, Object> dir) {
+        for (Map.Entry<String, Object> entry : dir.entrySet()) {
+            if (entry.getValue() instanceof SortedMap) {
+                entry.setValue(freeze(fileStore,
+                        (SortedMap<String, Object>) entry.getValue()));
+            }
+        }
+        return new Tree(fileStore, dir);
+    }
+
+    /**
+     * Gets or creates a subdirectory.
+     * @param dir the directory.
+     * @param name the subdirectory's name.
+     * @return the subdirectory.
+     */
+    @SuppressWarnings("unchecked")
+    private static SortedMap<String, Object> subdirectory(
+            SortedMap<String, Object> dir, String name) {
+        return (SortedMap<String, Object>) dir.computeIfAbsent(name,
+            key -> new TreeMap<String, Object>());
+    }
+}
@@ -6,18 +6,21 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Formatter;
 import java.util.List;
 
 
@@ -31,52 +34,104 @@ class Utils {
     /** The length of a complete SHA-1 UID as a hexadecimal numeral. */
     static final int UID_LENGTH = 40;
 
+    /** The hexadecimal digits. */
+    private static final char[] HEX_DIGITS =
+        "0123456789abcdef".toCharArray();
+
+    /** The size of the buffer files are hashed through. */
+    private static final int HASH_BUFFER_SIZE = 1 << 16;
+
+    /** Files at least this large are hashed through mapped windows. */
+    private static final long MAP_THRESHOLD = 64L << 20;
+
+    /** The size of a mapped window. */
+    private static final long MAP_WINDOW = 256L << 20;
+
+    /** A reusable direct buffer per thread for hashing files. */
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFER =
+        ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
+    /** A SHA-1 digest per thread. */
+    private static final ThreadLocal<MessageDigest> SHA1 =
+        ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException excp) {
+                throw new IllegalArgumentException(
+                    "System does not support SHA-1");
+            }
+        });
+
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     private static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else if (val instanceof Path) {
-                    md.update(val.toString().getBytes(StandardCharsets.UTF_8));
-                } else if (val instanceof Commit) {
-                    md.update((((Commit) val).hash())
-                            .getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
-                }
-            }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        MessageDigest md = SHA1.get();
+        md.reset();
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+            } else if (val instanceof String) {
+                md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+            } else if (val instanceof Path) {
+                md.update(val.toString().getBytes(StandardCharsets.UTF_8));
+            } else if (val instanceof Commit) {
+                md.update((((Commit) val).hash())
+                        .getBytes(StandardCharsets.UTF_8));
+            } else {
+                throw new IllegalArgumentException("improper type to sha1");
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
         }
+        return bytesToHex(md.digest());
     }
 
     /**
-     * The hash of a file.
+     * The hash of a file. The file is streamed through a reusable
+     * buffer, or through mapped windows when large, so memory use does
+     * not depend on the file's size.
      * @param file the file.
      * @return the hash.
      */
     static String fileHash(Path file) {
+        MessageDigest md = SHA1.get();
+        md.reset();
+        try (FileChannel channel =
+                 FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                    md.update(channel.map(FileChannel.MapMode.READ_ONLY,
+                        pos, Math.min(MAP_WINDOW, size - pos)));
+                }
+            } else {
+                ByteBuffer buffer = HASH_BUFFER.get();
+                buffer.clear();
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    md.update(buffer);
+                    buffer.clear();
+                }
+            }
+            return bytesToHex(md.digest());
+        } catch (IOException ex) {
+            throw new GitletException(ex);
+        }
+    }
+
+    /**
+     * The hash of a stream's content, read a buffer at a time.
+     * @param in the stream, which the caller closes.
+     * @return the hash.
+     */
+    static String streamHash(InputStream in) {
+        MessageDigest md = SHA1.get();
+        md.reset();
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
         try {
-            byte[] bytes = Files.readAllBytes(file);
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(bytes);
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                md.update(buffer, 0, n);
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
+            return bytesToHex(md.digest());
         } catch (IOException ex) {
             throw new GitletException(ex);
         }
@@ -118,6 +173,34 @@ class Utils {
         return sha1(sha1(vals.toArray()), sha1(vals2.toArray()));
     }
 
+    /**
+     * Decodes a hexadecimal hash into raw bytes.
+     * @param hex the hash.
+     * @return the bytes.
+     */
+    static byte[] hexToBytes(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4)
+                    | Character.digit(hex.charAt(2 * i + 1), 16));
+        }
+        return result;
+    }
+
+    /**
+     * Encodes raw bytes as a hexadecimal hash.
+     * @param bytes the bytes.
+     * @return the hash.
+     */
+    static String bytesToHex(byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
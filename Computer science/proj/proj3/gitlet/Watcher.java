@@ -0,0 +1,345 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the changes to a working directory through the file system's
+ * events, so a process keeping a repository loaded need not walk the
+ * directory or stat every tracked file for each status. It keeps the
+ * list of working files, and the files found to match the blob they
+ * track; any event on a file drops it from those, so only files touched
+ * since are examined again. When events were lost, everything is
+ * examined again as without a watcher.
+ *
+ * Events arrive late, so before answering, the watcher creates a marker
+ * file in a directory of its own and takes events until the marker's:
+ * the system reports events in order, so the changes made before are in
+ * by then.
+ *
+ * @author Charlie Zhou
+ */
+public final class Watcher implements AutoCloseable {
+    /**
+     * The directory of marker files, in the gitlet directory.
+     */
+    static final String WATCH_DIR = "watch";
+    /**
+     * How long to wait for a marker's event, in milliseconds, before
+     * examining everything again.
+     */
+    private static final long SYNC_TIMEOUT = 10_000;
+
+    /**
+     * The working directory.
+     */
+    private final Path workingDir;
+    /**
+     * The gitlet directory, which is not watched.
+     */
+    private final Path gitletDir;
+    /**
+     * The directory of marker files.
+     */
+    private final Path markerDir;
+    /**
+     * The watch service.
+     */
+    private final WatchService service;
+    /**
+     * The watched directories, by key.
+     */
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    /**
+     * The working files, if the list is current.
+     */
+    private final Set<Path> files = new HashSet<>();
+    /**
+     * Whether the list of working files is current.
+     */
+    private boolean scanned;
+    /**
+     * The blob each file matched when last examined, dropped when the
+     * file changes.
+     */
+    private final Map<Path, String> clean = new ConcurrentHashMap<>();
+    /**
+     * The number of markers created.
+     */
+    private long markers;
+    /**
+     * Whether every directory is watched; once one cannot be, the
+     * watcher knows nothing.
+     */
+    private boolean watching = true;
+
+    /**
+     * Creates a watcher.
+     * @param workingDir0 the working directory.
+     * @param service0 the watch service.
+     */
+    private Watcher(Path workingDir0, WatchService service0) {
+        this.workingDir = workingDir0;
+        this.gitletDir = workingDir0.resolve(Gitlet.GITLET_DIR);
+        this.markerDir = gitletDir.resolve(WATCH_DIR);
+        this.service = service0;
+    }
+
+    /**
+     * Starts watching a working directory.
+     * @param workingDir the working directory.
+     * @return the watcher, or null if the system cannot watch it, for
+     * instance because it allows too few watched directories.
+     */
+    public static Watcher start(Path workingDir) {
+        Watcher watcher;
+        try {
+            watcher = new Watcher(workingDir,
+                    workingDir.getFileSystem().newWatchService());
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            Files.createDirectories(watcher.markerDir);
+            watcher.register(watcher.markerDir);
+            watcher.scan(workingDir);
+        } catch (IOException e) {
+            watcher.watching = false;
+        }
+        if (!watcher.watching) {
+            watcher.close();
+            return null;
+        }
+        watcher.scanned = true;
+        return watcher;
+    }
+
+    /**
+     * @return the working files, as IO.workingFiles lists them, or null
+     * if the watcher cannot tell.
+     */
+    public synchronized Collection<Path> files() {
+        sync();
+        if (watching && !scanned) {
+            files.clear();
+            scan(workingDir);
+            scanned = watching;
+        }
+        return watching ? Collections.unmodifiableSet(new HashSet<>(files))
+                : null;
+    }
+
+    /**
+     * Takes the events so far, dropping the files they touch from the
+     * clean ones.
+     */
+    public synchronized void update() {
+        sync();
+    }
+
+    /**
+     * @param file a tracked file.
+     * @param hash the blob it tracks.
+     * @return whether the file matched the blob when last examined and
+     * has not changed since.
+     */
+    public boolean clean(Path file, String hash) {
+        return hash != null && hash.equals(clean.get(file));
+    }
+
+    /**
+     * Records that a file matches a blob. It must be examined after the
+     * last update, so a later change has an event.
+     * @param file the file.
+     * @param hash the blob.
+     */
+    public void markClean(Path file, String hash) {
+        if (watching) {
+            clean.put(file, hash);
+        }
+    }
+
+    /**
+     * Stops watching.
+     */
+    @Override
+    public void close() {
+        try {
+            service.close();
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+    }
+
+    /**
+     * Takes events until those of changes made so far are in. If events
+     * were lost, or the marker's does not come, the working files are
+     * listed again and no file is clean.
+     */
+    private void sync() {
+        if (!watching) {
+            return;
+        }
+        Path marker = markerDir.resolve(Long.toString(markers++));
+        try {
+            Files.createFile(marker);
+            Files.delete(marker);
+        } catch (IOException e) {
+            throw new GitletException(e);
+        }
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(SYNC_TIMEOUT);
+        boolean synced = false;
+        try {
+            while (true) {
+                WatchKey key;
+                if (synced) {
+                    key = service.poll();
+                    if (key == null) {
+                        return;
+                    }
+                } else {
+                    long wait = deadline - System.nanoTime();
+                    key = wait > 0
+                            ? service.poll(wait, TimeUnit.NANOSECONDS)
+                            : null;
+                    if (key == null) {
+                        invalidate();
+                        return;
+                    }
+                }
+                synced |= process(key, marker);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            invalidate();
+        } catch (ClosedWatchServiceException e) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Takes the events of a key.
+     * @param key the key.
+     * @param marker the marker awaited.
+     * @return whether the marker's event was among them.
+     */
+    private boolean process(WatchKey key, Path marker) {
+        Path dir = directories.get(key);
+        boolean marked = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                invalidate();
+                marked |= dir.equals(markerDir);
+                continue;
+            }
+            Path file = dir.resolve((Path) event.context());
+            if (dir.equals(markerDir)) {
+                marked |= file.equals(marker);
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                scan(file);
+            } else if (event.kind()
+                    == StandardWatchEventKinds.ENTRY_DELETE) {
+                remove(file);
+            } else {
+                clean.remove(file);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    files.add(file);
+                }
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+        return marked;
+    }
+
+    /**
+     * Forgets a file deleted, or a directory and all its files.
+     * @param file the file or directory.
+     */
+    private void remove(Path file) {
+        clean.remove(file);
+        if (!files.remove(file)) {
+            files.removeIf(f -> f.startsWith(file));
+            clean.keySet().removeIf(f -> f.startsWith(file));
+        }
+    }
+
+    /**
+     * Forgets everything known about the working files, after events
+     * were lost.
+     */
+    private void invalidate() {
+        scanned = false;
+        clean.clear();
+    }
+
+    /**
+     * Watches a directory and those in it, and lists their files as
+     * working files that are not clean. If one cannot be watched, the
+     * watcher stops.
+     * @param from the directory.
+     */
+    private void scan(Path from) {
+        try {
+            Files.walkFileTree(from, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(
+                        Path dir, BasicFileAttributes attrs)
+                        throws IOException {
+                    if (dir.equals(gitletDir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    register(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(
+                        Path file, BasicFileAttributes attrs) {
+                    if (!attrs.isDirectory()) {
+                        files.add(file);
+                        clean.remove(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            watching = false;
+            files.clear();
+            clean.clear();
+        }
+    }
+
+    /**
+     * Watches a directory for entries created, deleted and modified.
+     * @param dir the directory.
+     * @throws IOException if the system cannot watch it.
+     */
+    private void register(Path dir) throws IOException {
+        directories.put(dir.register(service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY), dir);
+    }
+}